@@ -0,0 +1,398 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.HostnameVerifier;
+
+import okhttp3.RequestBody;
+import okio.ByteString;
+
+// ApproovBenchmarks measures the per request overheads of the request processing core against the in memory
+// ApproovFakeSdk, so that no network access is required. All state is shared between the benchmark threads so
+// that contention on the caches and metrics is included. Where an operation replaced an earlier approach, that
+// approach is also measured as a baseline. The benchmarks are run with 1, 4 and 16 threads by the nested classes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public abstract class ApproovBenchmarks {
+    // query parameter keys that are substituted
+    private static final List<String> QUERY_KEYS = Arrays.asList("api_key", "token");
+
+    // URL with query parameters to be substituted
+    private static final String QUERY_URL = "https://api.example.com/v1/items?page=2&api_key=key-1&sort=asc&token=key-2";
+
+    /**
+     * State with an initialized processor whose token and secure strings are already cached.
+     */
+    @State(Scope.Benchmark)
+    public static class ProcessorState {
+        ApproovFakeSdk sdk;
+        ApproovRequestProcessor processor;
+        URL url;
+        URL queryURL;
+        Map<String, String> secureStrings;
+
+        @Setup
+        public void setup() throws IOException {
+            sdk = new ApproovFakeSdk();
+            sdk.secureStrings.put("key-1", "secret-1");
+            sdk.secureStrings.put("key-2", "secret-2");
+            secureStrings = new HashMap<>(sdk.secureStrings);
+            ApproovRequestConfig config = new ApproovRequestConfig("Approov-Token", "")
+                    .withSubstitutionHeader("Api-Key", "")
+                    .withSubstitutionQueryParam("api_key", true)
+                    .withSubstitutionQueryParam("token", true);
+            processor = new ApproovRequestProcessor(sdk, config, null);
+            processor.enabled = true;
+            url = new URL("https://api.example.com/v1/items");
+            queryURL = new URL(QUERY_URL);
+
+            // prime the token and secure string caches
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(url);
+            connection.setRequestProperty("Api-Key", "key-1");
+            processor.addApproov(connection);
+            processor.substituteQueryParams(queryURL);
+        }
+    }
+
+    /**
+     * State with a set of exclusion expressions of a given size.
+     */
+    @State(Scope.Benchmark)
+    public static class ExclusionState {
+        @Param({"1", "10", "100", "500"})
+        public int ruleCount;
+
+        List<Pattern> patterns;
+        ApproovExclusionMatcher matcher;
+        String protectedURL;
+        String excludedURL;
+
+        @Setup
+        public void setup() {
+            // mix anchored host prefixes with unanchored path expressions, as is typical of real exclusions
+            patterns = new ArrayList<>();
+            for (int i = 0; i < ruleCount; i++) {
+                if ((i % 2) == 0)
+                    patterns.add(Pattern.compile("^https://cdn" + i + "\\.example\\.com/.*"));
+                else
+                    patterns.add(Pattern.compile("/static/v" + i + "/[a-z]+\\.png"));
+            }
+            matcher = new ApproovExclusionMatcher(patterns);
+            protectedURL = "https://api.example.com/v1/items?page=2";
+            excludedURL = "https://cdn" + (((ruleCount - 1) / 2) * 2) + ".example.com/images/logo.png";
+        }
+    }
+
+    /**
+     * State with a number of each kind of setting to be applied to the request configuration.
+     */
+    @State(Scope.Benchmark)
+    public static class ConfigState {
+        @Param({"10", "50"})
+        public int settingCount;
+
+        ApproovRequestConfig base;
+        Map<String, String> headers;
+        List<String> queryKeys;
+        Map<String, Pattern> exclusions;
+
+        @Setup
+        public void setup() {
+            base = new ApproovRequestConfig("Approov-Token", "");
+            headers = new HashMap<>();
+            queryKeys = new ArrayList<>();
+            exclusions = new HashMap<>();
+            for (int i = 0; i < settingCount; i++) {
+                headers.put("Api-Key-" + i, "");
+                queryKeys.add("key_" + i);
+                String regex = "^https://cdn" + i + "\\.example\\.com/.*";
+                exclusions.put(regex, Pattern.compile(regex));
+            }
+        }
+    }
+
+    /**
+     * State with a processor that signs requests and a request body of a given size.
+     */
+    @State(Scope.Benchmark)
+    public static class SigningState {
+        @Param({"1", "10", "100"})
+        public int bodyMegabytes;
+
+        ApproovFakeSdk sdk;
+        ApproovRequestProcessor processor;
+        byte[] bodyBytes;
+        RequestBody body;
+        FakeHttpsURLConnection connection;
+        ApproovRequestProcessor.ProtectedRequest request;
+
+        @Setup
+        public void setup() throws IOException {
+            sdk = new ApproovFakeSdk();
+            processor = new ApproovRequestProcessor(sdk, new ApproovRequestConfig("Approov-Token", "")
+                    .withRequestSigning("Approov-Signature", Arrays.asList("Content-Type")), null);
+            processor.enabled = true;
+            bodyBytes = new byte[bodyMegabytes * 1024 * 1024];
+            for (int i = 0; i < bodyBytes.length; i++)
+                bodyBytes[i] = (byte) ('a' + (i % 26));
+            body = RequestBody.create(bodyBytes, null);
+
+            // the request is protected once so that only the signing is measured
+            connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1/upload"));
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            processor.addApproov(connection);
+            request = new ApproovRequestProcessor.ProtectedRequest() {
+                @Override
+                public URL getURL() {
+                    return connection.getURL();
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return connection.getRequestProperty(name);
+                }
+
+                @Override
+                public void addHeader(String name, String value) {
+                    connection.addRequestProperty(name, value);
+                }
+
+                @Override
+                public void setHeader(String name, String value) {
+                    connection.setRequestProperty(name, value);
+                }
+
+                @Override
+                public void pin(HostnameVerifier verifier) {
+                }
+
+                @Override
+                public int getConnectTimeout() {
+                    return 0;
+                }
+            };
+        }
+    }
+
+    /**
+     * State with a pinning verifier whose pins include the peer certificate, together with more distinct
+     * sessions than the verifier remembers so that cycling through them always verifies a new session.
+     */
+    @State(Scope.Benchmark)
+    public static class PinState {
+        ApproovPinningVerifier verifier;
+        FakeSSLSession session;
+        FakeSSLSession[] newSessions;
+        int nextSession;
+        X509Certificate cert;
+
+        @Setup
+        public void setup() throws Exception {
+            cert = FakeSSLSession.testCertificate();
+            session = new FakeSSLSession("bench.example.com", new byte[] { 1, 2, 3, 4 }, cert);
+            List<String> hostPins = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                hostPins.add(ByteString.of(new byte[] { (byte) i, 1, 2, 3 }).sha256().base64());
+            hostPins.add(ApproovPinningVerifier.getSpkiDigest(cert).base64());
+            Map<String, List<String>> pins = new HashMap<>();
+            pins.put("bench.example.com", hostPins);
+            ApproovFakeSdk sdk = new ApproovFakeSdk();
+            sdk.pins = pins;
+            verifier = new ApproovPinningVerifier(null, sdk, new ApproovMetrics());
+            if (!verifier.verify("bench.example.com", session))
+                throw new IllegalStateException("test certificate is not pinned");
+            newSessions = new FakeSSLSession[1024];
+            for (int i = 0; i < newSessions.length; i++)
+                newSessions[i] = new FakeSSLSession("bench.example.com", new byte[] { 2, (byte) (i >> 8), (byte) i }, cert);
+        }
+    }
+
+    /**
+     * State with an Approov stream handler wrapping a handler that opens connections without any network access.
+     */
+    @State(Scope.Benchmark)
+    public static class ConnectionState {
+        @Param({"direct", "reflective"})
+        public String dispatch;
+
+        URL url;
+
+        @Setup
+        public void setup() throws IOException {
+            URLStreamHandler delegate = new URLStreamHandler() {
+                @Override
+                protected URLConnection openConnection(URL u) {
+                    return new FakeHttpsURLConnection(u);
+                }
+            };
+            ProcessorState processorState = new ProcessorState();
+            processorState.setup();
+            ApproovURLStreamHandler handler = new ApproovURLStreamHandler(delegate, processorState.processor);
+            handler.directDispatch = dispatch.equals("direct");
+            url = new URL(null, "https://api.example.com/v1/items?page=2", handler);
+        }
+    }
+
+    @Benchmark
+    public FakeHttpsURLConnection addApproov(ProcessorState state) throws IOException {
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(state.url);
+        connection.setRequestProperty("Api-Key", "key-1");
+        state.processor.addApproov(connection);
+        return connection;
+    }
+
+    @Benchmark
+    public URL substituteQueryParams(ProcessorState state) throws IOException {
+        return state.processor.substituteQueryParams(state.queryURL);
+    }
+
+    @Benchmark
+    public String substituteQueryParamsRegexBaseline(ProcessorState state) {
+        // the original substitution compiled and ran a regular expression for each key
+        String url = QUERY_URL;
+        for (String key: QUERY_KEYS) {
+            Matcher matcher = Pattern.compile("[\\?&]" + key + "=([^&;]+)").matcher(url);
+            if (matcher.find()) {
+                String value = state.secureStrings.get(matcher.group(1));
+                if (value != null)
+                    url = new StringBuilder(url).replace(matcher.start(1), matcher.end(1), value).toString();
+            }
+        }
+        return url;
+    }
+
+    @Benchmark
+    public boolean exclusionMatchProtected(ExclusionState state) {
+        return state.matcher.matches(state.protectedURL);
+    }
+
+    @Benchmark
+    public boolean exclusionMatchExcluded(ExclusionState state) {
+        return state.matcher.matches(state.excludedURL);
+    }
+
+    @Benchmark
+    public boolean exclusionMatchRegexBaseline(ExclusionState state) {
+        // the original matching ran every expression against the URL
+        for (Pattern pattern: state.patterns) {
+            if (pattern.matcher(state.protectedURL).find())
+                return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public ApproovRequestConfig configureCombined(ConfigState state) {
+        return state.base.withAdditions(state.headers, state.queryKeys, state.exclusions);
+    }
+
+    @Benchmark
+    public ApproovRequestConfig configurePerCallBaseline(ConfigState state) {
+        // each setting made with a separate call publishes its own snapshot of the configuration
+        ApproovRequestConfig config = state.base;
+        for (Map.Entry<String, String> header: state.headers.entrySet())
+            config = config.withSubstitutionHeader(header.getKey(), header.getValue());
+        for (String key: state.queryKeys)
+            config = config.withSubstitutionQueryParam(key, true);
+        for (Map.Entry<String, Pattern> exclusion: state.exclusions.entrySet())
+            config = config.withExclusionURLRegex(exclusion.getKey(), exclusion.getValue());
+        return config;
+    }
+
+    @Benchmark
+    public String signStreamedBody(SigningState state) throws IOException {
+        state.processor.signRequest(state.request, "POST", ApproovInterceptor.getBodyDigest(state.body));
+        return state.connection.getRequestProperty("Approov-Signature");
+    }
+
+    @Benchmark
+    public String signBufferedBodyBaseline(SigningState state) {
+        // signing from the app required the whole body to be held as a string and included in the signed message
+        String message = "POST\nhttps://api.example.com/v1/upload\n" + new String(state.bodyBytes, StandardCharsets.UTF_8);
+        return state.sdk.getMessageSignature(message);
+    }
+
+    @Benchmark
+    public boolean pinVerify(PinState state) {
+        // the same session is presented again, as when it is resumed, so it is accepted without checking the chain
+        return state.verifier.verify("bench.example.com", state.session);
+    }
+
+    @Benchmark
+    public boolean pinVerifyNewSession(PinState state) {
+        // a full handshake presents a session that has not been verified before, so the chain is checked
+        FakeSSLSession session = state.newSessions[state.nextSession++ & (state.newSessions.length - 1)];
+        return state.verifier.verify("bench.example.com", session);
+    }
+
+    @Benchmark
+    public ByteString pinDigestBaseline(PinState state) {
+        // the original verification encoded and hashed the public key on every connection
+        return ByteString.of(state.cert.getPublicKey().getEncoded()).sha256();
+    }
+
+    @Benchmark
+    public void metricsRecord(ProcessorState state) {
+        state.processor.metrics.record(ApproovMetrics.Stage.TOKEN_FETCH, "api.example.com", "SUCCESS", System.nanoTime());
+        state.processor.metrics.recordTokenStatus("api.example.com", ApproovFetchStatus.SUCCESS);
+    }
+
+    @Benchmark
+    public URLConnection openConnection(ConnectionState state) throws IOException {
+        return state.url.openConnection();
+    }
+
+    @Threads(1)
+    public static class SingleThread extends ApproovBenchmarks {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends ApproovBenchmarks {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends ApproovBenchmarks {
+    }
+}
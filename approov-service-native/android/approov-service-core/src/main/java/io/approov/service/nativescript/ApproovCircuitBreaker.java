@@ -0,0 +1,223 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+// ApproovCircuitBreaker stops requests from waiting for Approov fetches that are likely to fail because the
+// Approov service cannot currently be reached. It is closed while fetches are succeeding. Once the threshold
+// number of network failures has occurred within the window it opens, and for the cool down period requests
+// do not wait for a fetch but immediately apply the network failure policy. The first request after the cool
+// down is allowed through as a single half open probe, while any others continue to fail fast, and the result
+// of its fetch either closes the breaker again or reopens it for a further cool down. The result of every
+// fetch is recorded when the fetch completes, even if the request that started it has stopped waiting. A
+// fetch that throws says nothing about the network so it is not counted as a failure, but it lets the next
+// request through as another probe. If the result of a probe has still not been recorded after a further cool
+// down then another probe is also allowed, so that the breaker cannot be left half open.
+final class ApproovCircuitBreaker {
+    /**
+     * The state of the breaker.
+     */
+    enum State {
+        CLOSED("closed"),
+        OPEN("open"),
+        HALF_OPEN("halfOpen");
+
+        // name of the state in the JSON snapshot
+        final String jsonName;
+
+        State(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    // default number of network failures within the window that opens the breaker
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    // default number of seconds within which the network failures must occur
+    static final long DEFAULT_WINDOW_SECONDS = 30;
+
+    // default number of seconds for which the breaker stays open before a probe is allowed
+    static final long DEFAULT_COOL_DOWN_SECONDS = 30;
+
+    // logging tag
+    private static final String TAG = "ApproovService";
+
+    // current state of the breaker, which is only changed while holding the lock of the breaker
+    private volatile State state = State.CLOSED;
+
+    // times in nanoseconds of the network failures within the current window, oldest first
+    private final ArrayDeque<Long> failureNanos = new ArrayDeque<>();
+
+    // number of network failures within the current window, so that a success can be recorded without locking
+    // in the usual case that there are none
+    private volatile int failureCount = 0;
+
+    // time in nanoseconds at which an open breaker allows a probe, or a half open breaker allows another probe
+    private long probeAtNanos = 0;
+
+    // number of network failures within the window that opens the breaker, or 0 if it never opens
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    // number of nanoseconds within which the network failures must occur
+    private long windowNanos = TimeUnit.SECONDS.toNanos(DEFAULT_WINDOW_SECONDS);
+
+    // number of nanoseconds for which the breaker stays open before a probe is allowed
+    private long coolDownNanos = TimeUnit.SECONDS.toNanos(DEFAULT_COOL_DOWN_SECONDS);
+
+    // number of times the breaker has opened
+    private long opens = 0;
+
+    // number of requests that failed fast, or proceeded without waiting, while the breaker was not closed
+    private long rejections = 0;
+
+    /**
+     * Sets when the breaker opens and how long it stays open. Any current failures are forgotten and the
+     * breaker is closed.
+     *
+     * @param threshold is the number of network failures within the window that opens the breaker, or 0 if it never opens
+     * @param windowMillis is the number of milliseconds within which the network failures must occur
+     * @param coolDownMillis is the number of milliseconds for which the breaker stays open before a probe is allowed
+     */
+    synchronized void setTiming(int threshold, long windowMillis, long coolDownMillis) {
+        failureThreshold = threshold;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        coolDownNanos = TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+        failureNanos.clear();
+        failureCount = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Checks whether a request may wait for a fetch. This is always the case while the breaker is closed. Once
+     * the cool down has passed, the first request is allowed through as the probe and the breaker becomes half
+     * open until the result of its fetch is recorded. If that takes longer than another cool down then the
+     * next request is allowed through as a further probe.
+     *
+     * @return true if the request may wait for a fetch, false if it should fail fast
+     */
+    boolean allowRequest() {
+        if (state == State.CLOSED)
+            return true;
+        synchronized (this) {
+            long nowNanos = System.nanoTime();
+            if ((state != State.CLOSED) && (nowNanos - probeAtNanos >= 0)) {
+                state = State.HALF_OPEN;
+                probeAtNanos = nowNanos + coolDownNanos;
+                ApproovLog.d(TAG, "circuit breaker half open");
+                return true;
+            }
+            if (state == State.CLOSED)
+                return true;
+            rejections++;
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the breaker is closed, without allowing a probe. This is used for fetches that are not
+     * needed by a request and so can be skipped while the breaker is not closed.
+     *
+     * @return true if the breaker is closed, false otherwise
+     */
+    boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Records the result of a fetch that reached the Approov service, which closes the breaker and forgets any
+     * earlier network failures.
+     */
+    void recordSuccess() {
+        if ((state == State.CLOSED) && (failureCount == 0))
+            return;
+        synchronized (this) {
+            failureNanos.clear();
+            failureCount = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                ApproovLog.d(TAG, "circuit breaker closed");
+            }
+        }
+    }
+
+    /**
+     * Records a fetch that failed because of network conditions. This opens the breaker if the threshold is
+     * reached within the window, or reopens it if the fetch was the probe.
+     */
+    synchronized void recordFailure() {
+        if (failureThreshold <= 0)
+            return;
+        long nowNanos = System.nanoTime();
+        if (state == State.CLOSED) {
+            failureNanos.addLast(nowNanos);
+            while (nowNanos - failureNanos.peekFirst() > windowNanos)
+                failureNanos.removeFirst();
+            failureCount = failureNanos.size();
+            if (failureCount < failureThreshold)
+                return;
+        }
+        else if (state == State.OPEN)
+            return;
+        failureNanos.clear();
+        failureCount = 0;
+        state = State.OPEN;
+        probeAtNanos = nowNanos + coolDownNanos;
+        opens++;
+        ApproovLog.d(TAG, "circuit breaker open");
+    }
+
+    /**
+     * Records a fetch that did not produce a result, such as when the SDK throws, which says nothing about
+     * whether the Approov service can be reached. This is not counted as a network failure, but if the breaker
+     * is half open then the next request is allowed through as another probe.
+     */
+    void recordNoResult() {
+        if (state != State.HALF_OPEN)
+            return;
+        synchronized (this) {
+            if (state == State.HALF_OPEN)
+                probeAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Gets the current state of the breaker.
+     *
+     * @return the state
+     */
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Gets a snapshot of the breaker as a JSON object, with its "state", the number of recent network
+     * "failures" counted towards opening it, the number of milliseconds until a probe is allowed "probeInMillis"
+     * if it is open, and the total number of times it has opened "opens" and of requests rejected "rejections".
+     *
+     * @return String of the JSON object
+     */
+    synchronized String toJSON() {
+        long probeInMillis = 0;
+        if (state == State.OPEN)
+            probeInMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(probeAtNanos - System.nanoTime()));
+        return "{\"state\":\"" + state.jsonName + "\",\"failures\":" + failureNanos.size() +
+                ",\"probeInMillis\":" + probeInMillis + ",\"opens\":" + opens + ",\"rejections\":" + rejections + "}";
+    }
+}
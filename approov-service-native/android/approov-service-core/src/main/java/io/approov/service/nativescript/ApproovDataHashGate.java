@@ -0,0 +1,167 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+// ApproovDataHashGate controls changes to the data hash that the SDK includes in the tokens it fetches,
+// which is global state in the SDK. Any number of token fetches may hold the gate at the same time as long
+// as they need the same data hash, so that fetches for the same binding header value proceed concurrently.
+// A fetch needing a different data hash waits until those in progress have completed before the data hash
+// is changed. Once such a change is waiting, further fetches needing the current data hash also wait so
+// that the change is not held off indefinitely. Fetches without a binding header value also hold the gate,
+// so that their tokens only include the data the app itself set, if it has set any.
+final class ApproovDataHashGate {
+    // data set in the SDK for tokens without a binding header value when the app has not set any, since the
+    // data hash cannot be removed once it has been set for a binding header value
+    private static final String UNSET_DATA = "";
+
+    // the SDK whose data hash is controlled
+    private final ApproovSdk sdk;
+
+    // the data last set in the SDK, or null if it has not been set through the gate
+    private String current = null;
+
+    // true once the data hash in the SDK has been changed through the gate
+    private boolean currentSet = false;
+
+    // the data set by the app for tokens without a binding header value, or null if it has not set any
+    private String unboundData = null;
+
+    // number of fetches currently holding the gate
+    private int holders = 0;
+
+    // number of fetches waiting to change the data hash
+    private int changesWaiting = 0;
+
+    /**
+     * Construct a new ApproovDataHashGate.
+     *
+     * @param sdk is the SDK whose data hash is controlled
+     */
+    ApproovDataHashGate(ApproovSdk sdk) {
+        this.sdk = sdk;
+    }
+
+    /**
+     * Acquires the gate for a fetch that needs the given data in its token, setting it in the SDK if
+     * necessary. This waits for any fetches holding the gate for different data to release it. The
+     * gate is held even if setting the data fails, so acquire should be called within a try block
+     * whose finally releases it.
+     *
+     * @param data is the data that must be included in the token
+     */
+    synchronized void acquire(String data) {
+        boolean interrupted = false;
+        boolean change = !data.equals(current);
+        if (change)
+            changesWaiting++;
+        try {
+            while ((holders > 0) && (!data.equals(current) || (!change && (changesWaiting > 0)))) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    // the data hash must be consistent for the fetch so keep waiting
+                    interrupted = true;
+                }
+                if (change && data.equals(current)) {
+                    // another fetch has already changed to the same data, so join it
+                    changesWaiting--;
+                    change = false;
+                }
+            }
+        }
+        finally {
+            if (change)
+                changesWaiting--;
+            holders++;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        if (!data.equals(current)) {
+            current = null;
+            currentSet = true;
+            sdk.setDataHashInToken(data);
+            current = data;
+        }
+    }
+
+    /**
+     * Acquires the gate for a fetch without a binding header value. If the app has set data to be
+     * included in tokens then this is acquired as for that data. Otherwise, if data has been set for a
+     * binding header value and no fetch is using it, the data is reset to UNSET_DATA. If a fetch is still
+     * using it then the data hash is left as it is, but cannot be changed while the gate is held, so
+     * that this fetch does not wait. As for acquire, the gate is always held on return and must be
+     * released.
+     *
+     * @return true if the token will only include any data set by the app, or false if it may include
+     *         data set for a binding header value and so must not be shared with other requests
+     */
+    synchronized boolean acquireUnbound() {
+        if (unboundData != null) {
+            acquire(unboundData);
+            return true;
+        }
+        boolean interrupted = false;
+        while ((holders > 0) && (changesWaiting > 0)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                // the data hash must be consistent for the fetch so keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        boolean unset = !currentSet || UNSET_DATA.equals(current);
+        if (!unset && (holders == 0)) {
+            acquire(UNSET_DATA);
+            return true;
+        }
+        holders++;
+        return unset;
+    }
+
+    /**
+     * Releases the gate after a fetch, allowing any waiting change of the data hash to proceed.
+     */
+    synchronized void release() {
+        holders--;
+        if (holders == 0)
+            notifyAll();
+    }
+
+    /**
+     * Sets the data to be included in subsequently fetched tokens, waiting for any fetches in progress
+     * that need different data to complete first. This data is also restored for any later fetches
+     * without a binding header value.
+     *
+     * @param data is the data to be included in tokens
+     */
+    void set(String data) {
+        synchronized (this) {
+            unboundData = data;
+        }
+        try {
+            acquire(data);
+        }
+        finally {
+            release();
+        }
+    }
+}
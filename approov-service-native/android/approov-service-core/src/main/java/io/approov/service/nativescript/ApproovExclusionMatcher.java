@@ -0,0 +1,425 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// ApproovExclusionMatcher determines whether a URL matches any of a set of exclusion regular expressions
+// without running every expression against the URL. Each expression is examined when the matcher is built:
+//  - expressions anchored with "^" and followed by some literal text are placed in a character trie keyed
+//    by that literal prefix, so only the expressions whose prefix the URL actually starts with are run
+//  - other expressions that contain some literal text that any match must include are only run if the URL
+//    contains that text
+//  - any remaining expressions are combined into a single alternation so the URL is only scanned once
+// The result is always the same as running each expression individually with Matcher.find.
+final class ApproovExclusionMatcher {
+    // minimum length of required literal text that is worth checking before running an expression
+    private static final int MIN_REQUIRED_LITERAL = 3;
+
+    // an expression along with the literal text that any match must contain
+    private static final class Guarded {
+        // literal text that must be present in the URL for the expression to match
+        final String literal;
+
+        // the expression itself
+        final Pattern pattern;
+
+        Guarded(String literal, Pattern pattern) {
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+    }
+
+    // node of the trie of literal prefixes for anchored expressions
+    private static final class Node {
+        // child nodes for each following character of a prefix
+        final Map<Character, Node> children = new HashMap<>();
+
+        // expressions whose literal prefix ends at this node, or null if none
+        List<Pattern> patterns;
+    }
+
+    // root of the trie of anchored expression prefixes
+    private final Node prefixRoot;
+
+    // expressions that are only run if the URL contains their required literal text
+    private final Guarded[] guarded;
+
+    // all other expressions combined into a single alternation, or null if there are none
+    private final Pattern combined;
+
+    // expressions that could not be combined into the alternation
+    private final Pattern[] residual;
+
+    // true if there are no expressions at all
+    private final boolean isEmpty;
+
+    /**
+     * Builds a matcher for a collection of compiled exclusion expressions.
+     *
+     * @param patterns is the collection of compiled expressions
+     */
+    ApproovExclusionMatcher(Collection<Pattern> patterns) {
+        prefixRoot = new Node();
+        List<Guarded> guardedList = new ArrayList<>();
+        List<Pattern> combinable = new ArrayList<>();
+        List<Pattern> residualList = new ArrayList<>();
+        for (Pattern pattern: patterns) {
+            String regex = pattern.pattern();
+            Literals literals = analyze(regex);
+            if ((literals != null) && (literals.prefix.length() > 0)) {
+                Node node = prefixRoot;
+                for (int i = 0; i < literals.prefix.length(); i++) {
+                    Character c = literals.prefix.charAt(i);
+                    Node child = node.children.get(c);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                if (node.patterns == null)
+                    node.patterns = new ArrayList<>();
+                node.patterns.add(pattern);
+            }
+            else if ((literals != null) && (literals.required.length() >= MIN_REQUIRED_LITERAL))
+                guardedList.add(new Guarded(literals.required, pattern));
+            else if (isCombinable(regex))
+                combinable.add(pattern);
+            else
+                residualList.add(pattern);
+        }
+        guarded = guardedList.toArray(new Guarded[0]);
+
+        // combine the remaining expressions into a single alternation, falling back to running them
+        // individually if that is not possible for any reason
+        Pattern combinedPattern = null;
+        if (combinable.size() == 1)
+            combinedPattern = combinable.get(0);
+        else if (combinable.size() > 1) {
+            StringBuilder alternation = new StringBuilder();
+            for (Pattern pattern: combinable) {
+                if (alternation.length() > 0)
+                    alternation.append('|');
+                alternation.append("(?:").append(pattern.pattern()).append(')');
+            }
+            try {
+                combinedPattern = Pattern.compile(alternation.toString());
+            }
+            catch (PatternSyntaxException e) {
+                residualList.addAll(combinable);
+            }
+        }
+        combined = combinedPattern;
+        residual = residualList.toArray(new Pattern[0]);
+        isEmpty = prefixRoot.children.isEmpty() && (guarded.length == 0) && (combined == null) && (residual.length == 0);
+    }
+
+    /**
+     * Determines whether a URL matches any of the exclusion expressions.
+     *
+     * @param url is the URL to be checked
+     * @return true if any expression is found in the URL, false otherwise
+     */
+    boolean matches(String url) {
+        if (isEmpty)
+            return false;
+
+        // run the anchored expressions whose literal prefix matches the start of the URL
+        Node node = prefixRoot;
+        for (int i = 0; i < url.length(); i++) {
+            node = node.children.get(url.charAt(i));
+            if (node == null)
+                break;
+            if (node.patterns != null) {
+                for (Pattern pattern: node.patterns) {
+                    if (pattern.matcher(url).find())
+                        return true;
+                }
+            }
+        }
+
+        // run the expressions whose required literal text is present
+        for (Guarded entry: guarded) {
+            if (url.contains(entry.literal) && entry.pattern.matcher(url).find())
+                return true;
+        }
+
+        // run everything else
+        if ((combined != null) && combined.matcher(url).find())
+            return true;
+        for (Pattern pattern: residual) {
+            if (pattern.matcher(url).find())
+                return true;
+        }
+        return false;
+    }
+
+    // literal text extracted from an expression
+    static final class Literals {
+        // literal text that an anchored expression requires at the start of the input, or empty if none
+        final String prefix;
+
+        // the longest literal text that any match of the expression must contain, or empty if none
+        final String required;
+
+        Literals(String prefix, String required) {
+            this.prefix = prefix;
+            this.required = required;
+        }
+    }
+
+    /**
+     * Analyzes an expression to find literal text that any match must contain. This only considers
+     * the top level sequence of the expression, and gives up if there is any top level alternation,
+     * any inline flag that could change how literal text is matched or any quoted section. A literal
+     * character followed by a quantifier is not considered to be required.
+     *
+     * @param regex is the expression to be analyzed
+     * @return Literals for the expression, or null if the expression cannot be analyzed
+     */
+    static Literals analyze(String regex) {
+        int length = regex.length();
+        boolean anchored = (length > 0) && (regex.charAt(0) == '^');
+        boolean inPrefix = anchored;
+        String prefix = "";
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = anchored ? 1 : 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            int next;
+            char literal = 0;
+            boolean isLiteral = false;
+            if (c == '\\') {
+                if (i + 1 >= length)
+                    return null;
+                char escaped = regex.charAt(i + 1);
+                if ((escaped == 'Q') || (escaped == 'E'))
+                    return null;
+                if (!Character.isLetterOrDigit(escaped)) {
+                    literal = escaped;
+                    isLiteral = (depth == 0);
+                }
+                next = skipEscape(regex, i);
+                if (next < 0)
+                    return null;
+            }
+            else if (c == '[') {
+                next = skipClass(regex, i);
+                if (next < 0)
+                    return null;
+            }
+            else if (c == '(') {
+                if ((i + 2 < length) && (regex.charAt(i + 1) == '?') && ("idmsuxU-".indexOf(regex.charAt(i + 2)) >= 0))
+                    return null;
+                depth++;
+                next = i + 1;
+            }
+            else if (c == ')') {
+                depth--;
+                next = i + 1;
+            }
+            else if (c == '|') {
+                if (depth == 0)
+                    return null;
+                next = i + 1;
+            }
+            else if (c == '{') {
+                // skip over the bounds of a quantifier
+                next = regex.indexOf('}', i);
+                if (next < 0)
+                    return null;
+                next++;
+            }
+            else {
+                if ("^$.?*+}]".indexOf(c) < 0) {
+                    literal = c;
+                    isLiteral = (depth == 0);
+                }
+                next = i + 1;
+            }
+
+            // a literal followed by a quantifier is not required
+            if (isLiteral && (next < length) && ("?*+{".indexOf(regex.charAt(next)) >= 0))
+                isLiteral = false;
+            if (isLiteral)
+                run.append(literal);
+            else {
+                if (inPrefix)
+                    prefix = run.toString();
+                inPrefix = false;
+                if (run.length() > longest.length())
+                    longest = run.toString();
+                run.setLength(0);
+            }
+            i = next;
+        }
+        if (inPrefix)
+            prefix = run.toString();
+        if (run.length() > longest.length())
+            longest = run.toString();
+        return new Literals(prefix, longest);
+    }
+
+    /**
+     * Finds the end of an escape sequence in an expression. This includes all of the characters that form
+     * part of the sequence, such as the digits of a hexadecimal, unicode or octal escape, the character
+     * following a control escape, or the braces of a property or named character, so that none of them
+     * are taken to be literal text.
+     *
+     * @param regex is the expression
+     * @param start is the index of the "\\" starting the escape sequence
+     * @return the index after the escape sequence, or -1 if it is a quoted section or is not terminated
+     */
+    private static int skipEscape(String regex, int start) {
+        int length = regex.length();
+        if (start + 1 >= length)
+            return -1;
+        char escaped = regex.charAt(start + 1);
+        int i = start + 2;
+        switch (escaped) {
+            case 'Q':
+            case 'E':
+                return -1;
+            case 'x':
+                if ((i < length) && (regex.charAt(i) == '{'))
+                    return skipBraces(regex, i);
+                return skipMatching(regex, i, 2, "0123456789abcdefABCDEF");
+            case 'u':
+                return skipMatching(regex, i, 4, "0123456789abcdefABCDEF");
+            case '0':
+                return skipMatching(regex, i, 3, "01234567");
+            case 'c':
+                return (i < length) ? i + 1 : -1;
+            case 'p':
+            case 'P':
+            case 'N':
+            case 'b':
+            case 'k':
+                // properties, named characters, boundaries and named back references may have a braced or
+                // angled argument, and single letter properties have a one character argument
+                if ((i < length) && ((regex.charAt(i) == '{') || ((escaped == 'k') && (regex.charAt(i) == '<'))))
+                    return skipBraces(regex, i);
+                if ((escaped == 'p') || (escaped == 'P'))
+                    return (i < length) ? i + 1 : -1;
+                return i;
+            default:
+                // any digits following a back reference are part of the group number
+                if ((escaped >= '1') && (escaped <= '9'))
+                    return skipMatching(regex, i, Integer.MAX_VALUE, "0123456789");
+                return i;
+        }
+    }
+
+    /**
+     * Finds the end of a braced or angled argument of an escape sequence.
+     *
+     * @param regex is the expression
+     * @param start is the index of the opening "{" or "<" of the argument
+     * @return the index after the closing "}" or ">" of the argument, or -1 if it is not terminated
+     */
+    private static int skipBraces(String regex, int start) {
+        int end = regex.indexOf((regex.charAt(start) == '{') ? '}' : '>', start);
+        return (end < 0) ? -1 : end + 1;
+    }
+
+    /**
+     * Skips over up to a maximum number of characters that are all from a given set.
+     *
+     * @param regex is the expression
+     * @param start is the index of the first character to be checked
+     * @param max is the maximum number of characters to be skipped
+     * @param chars is the set of characters that may be skipped
+     * @return the index of the first character that is not skipped
+     */
+    private static int skipMatching(String regex, int start, int max, String chars) {
+        int i = start;
+        while ((i < regex.length()) && (i - start < max) && (chars.indexOf(regex.charAt(i)) >= 0))
+            i++;
+        return i;
+    }
+
+    /**
+     * Finds the end of a character class in an expression.
+     *
+     * @param regex is the expression
+     * @param start is the index of the opening "[" of the class
+     * @return the index after the closing "]" of the class, or -1 if it is not terminated
+     */
+    private static int skipClass(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i = skipEscape(regex, i);
+                if (i < 0)
+                    return -1;
+            }
+            else if (c == '[') {
+                depth++;
+                i++;
+                // a "]" immediately after the opening (or after a negation) is a literal
+                if ((i < regex.length()) && (regex.charAt(i) == '^'))
+                    i++;
+                if ((i < regex.length()) && (regex.charAt(i) == ']'))
+                    i++;
+            }
+            else if (c == ']') {
+                depth--;
+                i++;
+                if (depth == 0)
+                    return i;
+            }
+            else
+                i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether an expression can be safely combined into an alternation with others. This is not
+     * possible if it uses back references or named groups, since their numbering or names may clash.
+     *
+     * @param regex is the expression
+     * @return true if the expression can be combined
+     */
+    private static boolean isCombinable(String regex) {
+        for (int i = 0; i + 1 < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                char escaped = regex.charAt(i + 1);
+                if (Character.isDigit(escaped) || (escaped == 'k'))
+                    return false;
+                i++;
+            }
+            else if ((c == '(') && regex.startsWith("(?<", i) && (i + 3 < regex.length()) &&
+                    (regex.charAt(i + 3) != '=') && (regex.charAt(i + 3) != '!'))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,94 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+// ApproovFetchResult is the immutable result of a fetch made through the ApproovSdk facade, holding the
+// same information as the result of an SDK fetch.
+final class ApproovFetchResult {
+    // status of the fetch
+    private final ApproovFetchStatus status;
+
+    // any Approov token that was fetched, or null if none
+    private final String token;
+
+    // any secure string that was fetched, or null if none
+    private final String secureString;
+
+    // any Attestation Response Code for a rejection, or null if none
+    private final String arc;
+
+    // any rejection reasons for a rejection, or null if none
+    private final String rejectionReasons;
+
+    // true if a dynamic configuration update was reported by the fetch
+    private final boolean configChanged;
+
+    // a version of any token that is suitable for logging, or null if none
+    private final String loggableToken;
+
+    /**
+     * Construct a new ApproovFetchResult.
+     *
+     * @param status is the status of the fetch
+     * @param token is any fetched Approov token, or null
+     * @param secureString is any fetched secure string, or null
+     * @param arc is any Attestation Response Code, or null
+     * @param rejectionReasons is any rejection reasons, or null
+     * @param configChanged is true if a dynamic configuration update was reported
+     * @param loggableToken is any loggable version of the token, or null
+     */
+    ApproovFetchResult(ApproovFetchStatus status, String token, String secureString, String arc,
+                       String rejectionReasons, boolean configChanged, String loggableToken) {
+        this.status = status;
+        this.token = token;
+        this.secureString = secureString;
+        this.arc = arc;
+        this.rejectionReasons = rejectionReasons;
+        this.configChanged = configChanged;
+        this.loggableToken = loggableToken;
+    }
+
+    ApproovFetchStatus getStatus() {
+        return status;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    String getSecureString() {
+        return secureString;
+    }
+
+    String getARC() {
+        return arc;
+    }
+
+    String getRejectionReasons() {
+        return rejectionReasons;
+    }
+
+    boolean isConfigChanged() {
+        return configChanged;
+    }
+
+    String getLoggableToken() {
+        return loggableToken;
+    }
+}
@@ -0,0 +1,40 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+// ApproovFetchStatus is the status of a fetch made through the ApproovSdk facade. The values are the
+// same as those of the status of an SDK fetch so that they can be converted by name.
+enum ApproovFetchStatus {
+    SUCCESS,
+    NO_NETWORK,
+    MITM_DETECTED,
+    POOR_NETWORK,
+    NO_APPROOV_SERVICE,
+    BAD_URL,
+    UNKNOWN_URL,
+    UNPROTECTED_URL,
+    NO_NETWORK_PERMISSION,
+    MISSING_LIB_DEPENDENCY,
+    INTERNAL_ERROR,
+    REJECTED,
+    DISABLED,
+    UNKNOWN_KEY,
+    BAD_KEY,
+    BAD_PAYLOAD
+}
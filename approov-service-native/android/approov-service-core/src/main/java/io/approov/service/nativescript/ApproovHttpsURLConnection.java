@@ -43,16 +43,21 @@ class ApproovHttpsURLConnection extends HttpsURLConnection {
     // the wrapped HttpsURLConnection that is being delegated to
     private HttpsURLConnection delegate;
 
+    // the processor that adds Approov protection to the connection
+    private final ApproovRequestProcessor processor;
+
     /**
      * Construct a new ApproovHttpsURLConnection with the original HttpsURLConnection that
      * is being wrapped for delegation.
      *
      * @param url is the URL for the connection
      * @param delegate is the wrapped HttpsURLConnection being delegated to
+     * @param processor is the processor that adds Approov protection to the connection
      */
-    public ApproovHttpsURLConnection(URL url, HttpsURLConnection delegate) {
+    public ApproovHttpsURLConnection(URL url, HttpsURLConnection delegate, ApproovRequestProcessor processor) {
         super(url);
         this.delegate = delegate;
+        this.processor = processor;
     }
 
     @Override
@@ -103,7 +108,7 @@ class ApproovHttpsURLConnection extends HttpsURLConnection {
     @Override
     public void connect() throws IOException {
         // we add Approov to the real connection and then just delegate to the original handler
-        ApproovServiceNative.addApproov(delegate);
+        processor.addApproov(delegate);
         delegate.connect();
     }
 
@@ -264,6 +269,8 @@ class ApproovHttpsURLConnection extends HttpsURLConnection {
 
     @Override
     public OutputStream getOutputStream() throws IOException {
+        // the request headers are already committed at this point, so any request signature added when
+        // connecting cannot include a digest of the body written here
         return delegate.getOutputStream();
     }
 
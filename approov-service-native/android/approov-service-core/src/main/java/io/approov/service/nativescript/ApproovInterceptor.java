@@ -0,0 +1,149 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.io.IOException;
+import java.net.URL;
+
+import javax.net.ssl.HostnameVerifier;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.HashingSink;
+import okio.Okio;
+
+// ApproovInterceptor adds Approov protection to requests made with OkHttp, applying the same exclusions,
+// token and secure string substitutions as for requests made through the URL handler hook. Only https
+// requests are protected. Pinning cannot be applied per request with OkHttp, so the client must also use
+// the pinning verifier of the processor as its HostnameVerifier, which is checked for each new connection.
+// ApproovRequestProcessor.getOkHttpClient provides a shared client that is set up in this way. If request
+// signing is enabled then the body is streamed through a digest before the request is sent, so that the
+// signature can cover it without the body being buffered. This is only possible for bodies that can be
+// written more than once, so a one shot body is signed without its digest.
+final class ApproovInterceptor implements Interceptor {
+    // the processor that adds Approov protection to requests
+    private final ApproovRequestProcessor processor;
+
+    /**
+     * Construct a new ApproovInterceptor.
+     *
+     * @param processor is the processor that adds Approov protection to requests
+     */
+    ApproovInterceptor(ApproovRequestProcessor processor) {
+        this.processor = processor;
+    }
+
+    // adapts an OkHttp request, which is immutable, so that Approov can be added to it
+    private static final class OkHttpRequest implements ApproovRequestProcessor.ProtectedRequest {
+        // the request with any changes made so far
+        Request request;
+
+        // the URL of the request
+        private final URL url;
+
+        // the connect timeout of the call in milliseconds
+        private final int connectTimeout;
+
+        OkHttpRequest(Request request, URL url, int connectTimeout) {
+            this.request = request;
+            this.url = url;
+            this.connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return request.header(name);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            request = request.newBuilder().addHeader(name, value).build();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            request = request.newBuilder().header(name, value).build();
+        }
+
+        @Override
+        public void pin(HostnameVerifier verifier) {
+            // the pinning verifier is set on the client rather than for each request
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!request.isHttps())
+            return chain.proceed(request);
+
+        // substitute any query parameters, which may change the URL of the request
+        URL url = request.url().url();
+        URL substitutedURL = processor.substituteQueryParams(url, chain.connectTimeoutMillis());
+        if (substitutedURL != url)
+            request = request.newBuilder().url(HttpUrl.get(substitutedURL.toString())).build();
+
+        // add the Approov token and perform any header substitutions
+        OkHttpRequest protectedRequest = new OkHttpRequest(request, substitutedURL, chain.connectTimeoutMillis());
+        processor.addApproov(protectedRequest);
+
+        // sign the request with the digest of its body if required
+        if (processor.isSigningRequests()) {
+            RequestBody body = request.body();
+            ByteString bodyDigest = null;
+            if (body == null)
+                bodyDigest = ByteString.EMPTY.sha256();
+            else if (!body.isOneShot())
+                bodyDigest = getBodyDigest(body);
+            processor.signRequest(protectedRequest, request.method(), bodyDigest);
+        }
+        return chain.proceed(protectedRequest.request);
+    }
+
+    /**
+     * Gets the SHA256 digest of a request body. The body is written through a hashing sink that discards it,
+     * so only a single segment of the body is held in memory at a time.
+     *
+     * @param body is the request body to be digested
+     * @return ByteString of the digest
+     * @throws IOException if the body could not be written
+     */
+    static ByteString getBodyDigest(RequestBody body) throws IOException {
+        HashingSink hashingSink = HashingSink.sha256(Okio.blackhole());
+        BufferedSink sink = Okio.buffer(hashingSink);
+        body.writeTo(sink);
+        sink.flush();
+        return hashingSink.hash();
+    }
+}
@@ -0,0 +1,122 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+// ApproovLog provides logging for the request processing core. Log messages are passed to a sink that
+// is installed by the platform layer (android.util.Log on Android) and are discarded if there is none,
+// so that the core does not depend on any platform logging API. Only messages at or above the current
+// level are logged. Callers should check isLoggable before building any message that is not a constant,
+// so that nothing is formatted on the request path unless it is actually going to be logged.
+final class ApproovLog {
+    /**
+     * Interface for the destination of log messages.
+     */
+    interface Sink {
+        /**
+         * Logs a debug message.
+         *
+         * @param tag is the tag for the message
+         * @param message is the message to be logged
+         */
+        void d(String tag, String message);
+
+        /**
+         * Logs an error message.
+         *
+         * @param tag is the tag for the message
+         * @param message is the message to be logged
+         */
+        void e(String tag, String message);
+    }
+
+    // level of debug messages, which has the same value as android.util.Log.DEBUG
+    static final int DEBUG = 3;
+
+    // level of error messages, which has the same value as android.util.Log.ERROR
+    static final int ERROR = 6;
+
+    // level at which no messages are logged
+    static final int NONE = Integer.MAX_VALUE;
+
+    // the sink for log messages, or null if they are discarded
+    private static volatile Sink sink = null;
+
+    // minimum level of messages that are logged, which by default includes the debug messages that have always
+    // been logged for each request
+    private static volatile int level = DEBUG;
+
+    /**
+     * Don't allow construction of the class as it only provides static methods.
+     */
+    private ApproovLog() {
+    }
+
+    /**
+     * Sets the sink for log messages.
+     *
+     * @param newSink is the sink to be used, or null to discard log messages
+     */
+    static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    /**
+     * Sets the minimum level of messages that are logged.
+     *
+     * @param newLevel is the new level, which is DEBUG, ERROR or NONE
+     */
+    static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Determines whether messages of the given level are logged. This should be checked before building any
+     * message that requires formatting.
+     *
+     * @param messageLevel is the level of the message
+     * @return true if messages of the level are logged, false otherwise
+     */
+    static boolean isLoggable(int messageLevel) {
+        return (messageLevel >= level) && (sink != null);
+    }
+
+    /**
+     * Logs a debug message.
+     *
+     * @param tag is the tag for the message
+     * @param message is the message to be logged
+     */
+    static void d(String tag, String message) {
+        Sink current = sink;
+        if ((current != null) && (DEBUG >= level))
+            current.d(tag, message);
+    }
+
+    /**
+     * Logs an error message.
+     *
+     * @param tag is the tag for the message
+     * @param message is the message to be logged
+     */
+    static void e(String tag, String message) {
+        Sink current = sink;
+        if ((current != null) && (ERROR >= level))
+            current.e(tag, message);
+    }
+}
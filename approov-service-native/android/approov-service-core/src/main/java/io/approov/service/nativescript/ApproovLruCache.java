@@ -0,0 +1,128 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ApproovLruCache is a bounded map that may be read and updated concurrently without locking. When
+// an addition takes it over capacity the least recently used entries are evicted. The recency of
+// each entry is tracked with a timestamp rather than a linked list so that lookups never contend
+// with each other. Eviction scans all of the entries and is therefore only suitable for the small
+// capacities used here.
+final class ApproovLruCache<K, V> {
+    // a cached value with the time it was last used
+    private static final class Node<V> {
+        // the cached value
+        final V value;
+
+        // time in nanoseconds at which the value was last used
+        volatile long lastUsed;
+
+        Node(V value) {
+            this.value = value;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    // maximum number of entries to be held
+    private final int capacity;
+
+    // map of keys to their cached values
+    private final ConcurrentHashMap<K, Node<V>> entries = new ConcurrentHashMap<>();
+
+    // lock held while evicting entries so that concurrent additions do not evict more than necessary
+    private final Object evictionLock = new Object();
+
+    /**
+     * Construct a new ApproovLruCache.
+     *
+     * @param capacity is the maximum number of entries to be held
+     */
+    ApproovLruCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the value cached for a key, marking it as recently used.
+     *
+     * @param key is the key to be looked up
+     * @return the cached value, or null if there is none
+     */
+    V get(K key) {
+        Node<V> node = entries.get(key);
+        if (node == null)
+            return null;
+        node.lastUsed = System.nanoTime();
+        return node.value;
+    }
+
+    /**
+     * Adds a value to the cache, evicting the least recently used entries if the cache is then
+     * over capacity.
+     *
+     * @param key is the key for the value
+     * @param value is the value to be cached
+     */
+    void put(K key, V value) {
+        entries.put(key, new Node<>(value));
+        if (entries.size() > capacity) {
+            synchronized (evictionLock) {
+                while (entries.size() > capacity) {
+                    K oldestKey = null;
+                    Node<V> oldestNode = null;
+                    for (Map.Entry<K, Node<V>> entry: entries.entrySet()) {
+                        Node<V> node = entry.getValue();
+                        if ((oldestNode == null) || (node.lastUsed - oldestNode.lastUsed < 0)) {
+                            oldestKey = entry.getKey();
+                            oldestNode = node;
+                        }
+                    }
+                    if (oldestKey == null)
+                        break;
+                    entries.remove(oldestKey, oldestNode);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a value from the cache.
+     *
+     * @param key is the key for the value to be removed
+     */
+    void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all of the values from the cache.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of values currently cached.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return entries.size();
+    }
+}
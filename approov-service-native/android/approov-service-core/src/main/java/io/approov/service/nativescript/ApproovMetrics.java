@@ -0,0 +1,284 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ApproovMetrics records how long each stage of adding Approov protection to a request takes, along with
+// the outcome of each token fetch for each host. All recording is lock free so that it can be left enabled
+// in production. The duration of each stage is counted in a histogram with buckets that double in size,
+// where bucket 0 counts durations of less than one microsecond and bucket i counts durations of at least
+// 2^(i-1) and less than 2^i microseconds. A snapshot of all the metrics can be obtained as JSON. Each stage
+// may also be recorded in an optional ApproovTrace.
+final class ApproovMetrics {
+    // the stages of a request that are timed
+    enum Stage {
+        EXCLUSION_CHECK("exclusionCheck"),
+        QUERY_SUBSTITUTION("querySubstitution"),
+        TOKEN_FETCH("tokenFetch"),
+        HEADER_SUBSTITUTION("headerSubstitution"),
+        PIN_VERIFICATION("pinVerification"),
+        INITIALIZATION_WAIT("initializationWait"),
+        REQUEST_SIGNING("requestSigning");
+
+        // name of the stage in the JSON snapshot
+        final String jsonName;
+
+        Stage(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    // number of buckets in each histogram, the last of which also counts all longer durations
+    static final int BUCKETS = 32;
+
+    // maximum number of hosts for which token fetch outcomes are counted individually, with any others
+    // counted together under OTHER_HOSTS
+    static final int MAX_HOSTS = 64;
+
+    // name under which the token fetch outcomes for hosts beyond the MAX_HOSTS limit are counted
+    static final String OTHER_HOSTS = "*";
+
+    // the duration histogram of a stage along with its totals
+    private static final class Histogram {
+        // counts for each bucket
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        // total of all recorded durations in nanoseconds
+        final AtomicLong totalNanos = new AtomicLong();
+
+        // the longest recorded duration in nanoseconds
+        final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Records a single duration.
+         *
+         * @param nanos is the duration in nanoseconds
+         */
+        void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while ((nanos > max) && !maxNanos.compareAndSet(max, nanos))
+                max = maxNanos.get();
+        }
+    }
+
+    // histograms for each stage, indexed by the ordinal of the stage
+    private final Histogram[] histograms;
+
+    // count of token fetch outcomes for all hosts, indexed by the ordinal of the status
+    private final AtomicLongArray statusCounts = new AtomicLongArray(ApproovFetchStatus.values().length);
+
+    // count of token fetch outcomes for each host, indexed by the ordinal of the status
+    private final ConcurrentHashMap<String, AtomicLongArray> hostStatusCounts = new ConcurrentHashMap<>();
+
+    // trace in which each stage is also recorded, or null if tracing is disabled
+    volatile ApproovTrace trace = null;
+
+    /**
+     * Construct a new ApproovMetrics with all counts zero.
+     */
+    ApproovMetrics() {
+        histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new Histogram();
+    }
+
+    /**
+     * Gets the histogram bucket for a duration.
+     *
+     * @param nanos is the duration in nanoseconds
+     * @return the index of the bucket
+     */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Records the duration of a stage that has just completed, adding it to any trace.
+     *
+     * @param stage is the stage that has completed
+     * @param host is the host of the request, or null if not known
+     * @param outcome is the outcome of the stage, which should be a constant to avoid building strings
+     * @param startNanos is the value of System.nanoTime() when the stage started
+     */
+    void record(Stage stage, String host, String outcome, long startNanos) {
+        long nanos = Math.max(0, System.nanoTime() - startNanos);
+        histograms[stage.ordinal()].record(nanos);
+        ApproovTrace current = trace;
+        if (current != null)
+            current.record(stage, host, outcome, nanos);
+    }
+
+    /**
+     * Records the outcome of a token fetch for a host, which includes fetches satisfied from the token cache.
+     *
+     * @param host is the host for which the token was fetched
+     * @param status is the status of the fetch
+     */
+    void recordTokenStatus(String host, ApproovFetchStatus status) {
+        statusCounts.incrementAndGet(status.ordinal());
+        AtomicLongArray counts = hostStatusCounts.get(host);
+        if (counts == null) {
+            // the number of hosts is limited, although it may be slightly exceeded by concurrent requests
+            String key = (hostStatusCounts.size() < MAX_HOSTS) ? host : OTHER_HOSTS;
+            counts = hostStatusCounts.get(key);
+            if (counts == null) {
+                AtomicLongArray newCounts = new AtomicLongArray(ApproovFetchStatus.values().length);
+                counts = hostStatusCounts.putIfAbsent(key, newCounts);
+                if (counts == null)
+                    counts = newCounts;
+            }
+        }
+        counts.incrementAndGet(status.ordinal());
+    }
+
+    /**
+     * Gets a snapshot of the metrics as a JSON object. This has a "stages" object with an entry for each stage
+     * holding its "count", "totalMicros", "maxMicros", the "p50Micros", "p90Micros" and "p99Micros" upper
+     * bounds on those percentiles, and the "buckets" counts up to the last one that is not empty. It also has
+     * a "tokenStatus" object with the count for each status and a "hosts" object with the count for each
+     * status for each host, with only the statuses that have occurred included. As recording continues while
+     * the snapshot is taken the values may not be exactly consistent with each other.
+     *
+     * @return String of the JSON snapshot
+     */
+    String toJSON() {
+        StringBuilder json = new StringBuilder("{\"stages\":{");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append('"').append(stages[i].jsonName).append("\":");
+            appendHistogram(json, histograms[i]);
+        }
+        json.append("},\"tokenStatus\":");
+        appendStatusCounts(json, statusCounts);
+        json.append(",\"hosts\":{");
+        boolean first = true;
+        for (Map.Entry<String, AtomicLongArray> entry: hostStatusCounts.entrySet()) {
+            if (!first)
+                json.append(',');
+            first = false;
+            appendString(json, entry.getKey());
+            json.append(':');
+            appendStatusCounts(json, entry.getValue());
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Appends a histogram snapshot as a JSON object.
+     *
+     * @param json is the builder to be appended to
+     * @param histogram is the histogram
+     */
+    private static void appendHistogram(StringBuilder json, Histogram histogram) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histogram.buckets.get(i);
+            count += buckets[i];
+            if (buckets[i] != 0)
+                used = i + 1;
+        }
+        json.append("{\"count\":").append(count)
+            .append(",\"totalMicros\":").append(histogram.totalNanos.get() / 1000)
+            .append(",\"maxMicros\":").append(histogram.maxNanos.get() / 1000)
+            .append(",\"p50Micros\":").append(percentile(buckets, count, 50))
+            .append(",\"p90Micros\":").append(percentile(buckets, count, 90))
+            .append(",\"p99Micros\":").append(percentile(buckets, count, 99))
+            .append(",\"buckets\":[");
+        for (int i = 0; i < used; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append(buckets[i]);
+        }
+        json.append("]}");
+    }
+
+    /**
+     * Gets an upper bound on a percentile of the durations in a histogram.
+     *
+     * @param buckets is the count for each bucket
+     * @param count is the total of all the counts
+     * @param percent is the percentile required
+     * @return the upper bound in microseconds of the bucket holding the percentile, or 0 if there are no counts
+     */
+    static long percentile(long[] buckets, long count, int percent) {
+        if (count == 0)
+            return 0;
+        long target = ((count * percent) + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target)
+                return 1L << i;
+        }
+        return 1L << (buckets.length - 1);
+    }
+
+    /**
+     * Appends the counts of each status that has occurred as a JSON object.
+     *
+     * @param json is the builder to be appended to
+     * @param counts is the count for each status, indexed by its ordinal
+     */
+    private static void appendStatusCounts(StringBuilder json, AtomicLongArray counts) {
+        json.append('{');
+        boolean first = true;
+        ApproovFetchStatus[] statuses = ApproovFetchStatus.values();
+        for (int i = 0; i < statuses.length; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                if (!first)
+                    json.append(',');
+                first = false;
+                json.append('"').append(statuses[i].toString()).append("\":").append(count);
+            }
+        }
+        json.append('}');
+    }
+
+    /**
+     * Appends a string as a JSON string, escaping any characters that require it.
+     *
+     * @param json is the builder to be appended to
+     * @param value is the string to be appended
+     */
+    static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c == '"') || (c == '\\'))
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+}
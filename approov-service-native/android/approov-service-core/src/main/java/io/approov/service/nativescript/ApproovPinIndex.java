@@ -0,0 +1,112 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okio.ByteString;
+
+// ApproovPinIndex is an immutable index of the public key pins for each host, built from the pins
+// provided by the SDK for a particular configuration. Each pinned host is mapped directly to the set
+// of raw SHA256 public key digests that are acceptable for it, with any use of the pins for the "*"
+// domain (managed trust roots) already resolved. Hosts that are not pinned have no entry at all.
+final class ApproovPinIndex {
+    // version of the pin configuration the index was built from
+    final long version;
+
+    // the pins provided by the SDK that the index was built from, or null if there were none
+    final Map<String, List<String>> sourcePins;
+
+    // map of pinned hosts to their set of acceptable public key digests (which is only empty if none of the
+    // pins for the host could be decoded, in which case no certificate is accepted)
+    private final Map<String, Set<ByteString>> hostPins;
+
+    /**
+     * Construct an ApproovPinIndex.
+     *
+     * @param version is the version of the pin configuration
+     * @param sourcePins is the map of pins provided by the SDK, or null if none
+     * @param hostPins is the map of pinned hosts to their acceptable digests, which must not be modified
+     */
+    private ApproovPinIndex(long version, Map<String, List<String>> sourcePins, Map<String, Set<ByteString>> hostPins) {
+        this.version = version;
+        this.sourcePins = sourcePins;
+        this.hostPins = hostPins;
+    }
+
+    /**
+     * Builds an index from the pins provided by the SDK. If a host has an empty list of pins then
+     * any pins associated with the "*" domain for managed trust roots are used instead (note this is
+     * not applied to hosts that do not have a map entry at all). Pins that are not valid base64 can
+     * never match, but a host is still considered to be pinned if all of its pins are invalid.
+     *
+     * @param version is the version of the pin configuration
+     * @param allPins is the map of hosts to their base64 encoded public key SHA256 pins, or null if none
+     * @return ApproovPinIndex the index of the pins
+     */
+    static ApproovPinIndex build(long version, Map<String, List<String>> allPins) {
+        Map<String, Set<ByteString>> hostPins = new HashMap<>();
+        if (allPins != null) {
+            Set<ByteString> managedTrustRoots = decode(allPins.get("*"));
+            for (Map.Entry<String, List<String>> entry: allPins.entrySet()) {
+                if (entry.getKey().equals("*"))
+                    continue;
+                List<String> pins = entry.getValue();
+                Set<ByteString> digests = ((pins != null) && pins.isEmpty()) ? managedTrustRoots : decode(pins);
+                if (digests != null)
+                    hostPins.put(entry.getKey(), digests);
+            }
+        }
+        return new ApproovPinIndex(version, allPins, Collections.unmodifiableMap(hostPins));
+    }
+
+    /**
+     * Gets the acceptable public key digests for a host.
+     *
+     * @param hostname is the host being connected to
+     * @return the set of acceptable digests, or null if the host is not pinned
+     */
+    Set<ByteString> getPins(String hostname) {
+        if (hostPins.isEmpty())
+            return null;
+        return hostPins.get(hostname);
+    }
+
+    /**
+     * Decodes a list of base64 pins into a set of raw digests.
+     *
+     * @param pins is the list of base64 encoded pins, or null
+     * @return the unmodifiable set of raw digests, or null if there are no pins
+     */
+    private static Set<ByteString> decode(List<String> pins) {
+        if ((pins == null) || pins.isEmpty())
+            return null;
+        Set<ByteString> digests = new HashSet<>();
+        for (String pin: pins) {
+            ByteString digest = ByteString.decodeBase64(pin);
+            if (digest != null)
+                digests.add(digest);
+        }
+        return Collections.unmodifiableSet(digests);
+    }
+}
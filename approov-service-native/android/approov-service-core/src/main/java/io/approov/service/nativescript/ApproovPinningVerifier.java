@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2018-2022 CriticalBlue Ltd.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package io.approov.service.nativescript;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLException;
+
+import java.lang.ref.WeakReference;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import okio.ByteString;
+
+/**
+ * This implementation of HostnameVerifier is intended to enhance the HostnameVerifier your TLS
+ * implementation normally uses. The HostnameVerifier passed into the constructor continues to be
+ * executed when verify is called. This verifier is only applied if the usual HostnameVerifier
+ * first passes (so this implementation can only be more secure). This pins to the SHA256 of the
+ * public key hash of any certificate in the trust chain for the host (so technically this is public
+ * key rather than certificate pinning). The live Approov pins are compiled into an ApproovPinIndex
+ * that is rebuilt whenever a configuration update to the app is received. If no pin matches then the
+ * live pins are checked again before the connection is rejected, so a pin update is always applied.
+ * Sessions that pass are remembered for each host, so that the same session presented again when it is
+ * resumed is accepted without checking its chain again until the pins change.
+ */
+final class ApproovPinningVerifier implements HostnameVerifier {
+
+    /** The HostnameVerifier you would normally be using. */
+    private final HostnameVerifier delegate;
+
+    /** The SDK providing the live pins */
+    private final ApproovSdk sdk;
+
+    /** Metrics recording the time taken by each verification */
+    private final ApproovMetrics metrics;
+
+    /** Tag for log messages */
+    private static final String TAG = "ApproovService";
+
+    /** Maximum number of certificates whose public key digests are remembered */
+    private static final int SPKI_CACHE_CAPACITY = 64;
+
+    /**
+     * Cache of the SHA256 digests of the public keys of recently seen certificates. Certificates
+     * are equal if their encoded forms are equal and they cache their own hash codes, so they
+     * can be used directly as the key.
+     */
+    private static final ApproovLruCache<Certificate, ByteString> spkiDigests =
+            new ApproovLruCache<>(SPKI_CACHE_CAPACITY);
+
+    /** Number of slots for remembering verified sessions, which must be a power of two */
+    private static final int SESSION_SLOTS = 64;
+
+    /**
+     * Sessions that have passed the pinning checks, in slots indexed by the identity hash code of the
+     * session so that a lookup needs neither the session identifier nor the certificate chain. A newly
+     * verified session replaces any other session in its slot. Only weak references to the sessions
+     * are held so that they are not retained.
+     */
+    private final AtomicReferenceArray<VerifiedSession> verifiedSessions =
+            new AtomicReferenceArray<>(SESSION_SLOTS);
+
+    /** Version of the pin configuration, which is incremented whenever the pins may have changed */
+    private final AtomicLong pinVersion = new AtomicLong();
+
+    /** Index of the pins for the current version of the pin configuration, or null if not yet built */
+    private volatile ApproovPinIndex pinIndex = null;
+
+    /**
+     * Construct an ApproovPinningVerifier which delegates the initial verify to a user
+     * defined HostnameVerifier before applying public key pinning on top.
+     *
+     * @param delegate the HostnameVerifier to apply before the custom pinning, or null if none
+     * @param sdk the SDK providing the live pins
+     * @param metrics the metrics in which the time taken by each verification is recorded
+     */
+    public ApproovPinningVerifier(HostnameVerifier delegate, ApproovSdk sdk, ApproovMetrics metrics) {
+        this.delegate = delegate;
+        this.sdk = sdk;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean verify(String hostname, SSLSession session) {
+        long startNanos = System.nanoTime();
+        String outcome = "failed";
+        try {
+            boolean verified = verifyHost(hostname, session);
+            outcome = verified ? "accepted" : "rejected";
+            return verified;
+        }
+        finally {
+            metrics.record(ApproovMetrics.Stage.PIN_VERIFICATION, hostname, outcome, startNanos);
+        }
+    }
+
+    /**
+     * Applies the delegate verification followed by the pinning checks.
+     *
+     * @param hostname is the host being connected to
+     * @param session is the established session
+     * @return true if the connection is accepted, false otherwise
+     */
+    private boolean verifyHost(String hostname, SSLSession session) {
+        // check the delegate function first and only proceed if it passes
+        if ((delegate == null) || delegate.verify(hostname, session)) try {
+            // accept a resumed session that has already passed the checks against the current pins
+            if (isVerifiedSession(hostname, session))
+                return true;
+
+            // check the pins from the current index and, if they do not match, check again against an index
+            // rebuilt from the live pins in case they have been updated without a configuration change being
+            // observed yet
+            Certificate[] chain = session.getPeerCertificates();
+            ApproovPinIndex index = getPinIndex();
+            if (verifyPins(hostname, chain, index)) {
+                addVerifiedSession(hostname, session, index);
+                return true;
+            }
+            ApproovPinIndex liveIndex = rebuildPinIndex(index);
+            if ((liveIndex != index) && verifyPins(hostname, chain, liveIndex)) {
+                addVerifiedSession(hostname, session, liveIndex);
+                return true;
+            }
+
+            // the connection is rejected
+            if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                ApproovLog.d(TAG, "pinningVerifier no pins match for " + hostname +
+                            " (with " + liveIndex.getPins(hostname).size() + " pins)");
+            return false;
+        } catch (SSLException e) {
+            throw new RuntimeException(e);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether any certificate in the session chain matches the pins for a host.
+     *
+     * @param hostname is the host being connected to
+     * @param chain is the certificate chain of the established session
+     * @param index is the pin index to be checked against
+     * @return true if the host is unpinned or a pin matches, false otherwise
+     */
+    private static boolean verifyPins(String hostname, Certificate[] chain, ApproovPinIndex index) {
+        // if there are no pins then we accept any certificate / public key
+        Set<ByteString> hostPins = index.getPins(hostname);
+        if (hostPins == null) {
+            if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                ApproovLog.d(TAG, "pinningVerifier unpinned " + hostname);
+            return true;
+        }
+
+        // check to see if any of the pins are in the certificate chain
+        for (Certificate cert: chain) {
+            if (cert instanceof X509Certificate) {
+                ByteString digest = getSpkiDigest((X509Certificate)cert);
+                if (hostPins.contains(digest)) {
+                    if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                        ApproovLog.d(TAG, "pinningVerifier pin match " + digest.base64() + " for " + hostname +
+                                        " (with " + hostPins.size() + " pins)");
+                    return true;
+                }
+            }
+            else
+                ApproovLog.e(TAG, "Certificate not X.509");
+        }
+        return false;
+    }
+
+    /**
+     * Gets the index of the current pins, building it from the live Approov pins if the pin
+     * configuration has changed since it was last built.
+     *
+     * @return ApproovPinIndex of the current pins
+     */
+    ApproovPinIndex getPinIndex() {
+        ApproovPinIndex index = pinIndex;
+        long version = pinVersion.get();
+        if ((index != null) && (index.version == version))
+            return index;
+        index = ApproovPinIndex.build(version, sdk.getPins("public-key-sha256"));
+        if (version == pinVersion.get())
+            pinIndex = index;
+        return index;
+    }
+
+    /**
+     * Rebuilds the pin index from the live Approov pins if they differ from those a given index was
+     * built from, moving to a new version of the pin configuration.
+     *
+     * @param index is the index that may be out of date
+     * @return ApproovPinIndex of the live pins, which is the given index if the pins are unchanged
+     */
+    private ApproovPinIndex rebuildPinIndex(ApproovPinIndex index) {
+        Map<String, List<String>> allPins = sdk.getPins("public-key-sha256");
+        if ((allPins == null) ? (index.sourcePins == null) : allPins.equals(index.sourcePins))
+            return index;
+        long version = pinVersion.incrementAndGet();
+        ApproovPinIndex liveIndex = ApproovPinIndex.build(version, allPins);
+        if (version == pinVersion.get())
+            pinIndex = liveIndex;
+        return liveIndex;
+    }
+
+    /**
+     * Invalidates the current pin index so that it is rebuilt from the live Approov pins when it is
+     * next needed. This should be called whenever a dynamic configuration change is received.
+     */
+    void invalidatePins() {
+        pinVersion.incrementAndGet();
+        for (int i = 0; i < SESSION_SLOTS; i++)
+            verifiedSessions.set(i, null);
+    }
+
+    /**
+     * Checks whether a session has already been verified for a host against the current pins. The same
+     * session object must have been verified, so its certificate chain does not need to be compared.
+     *
+     * @param hostname is the host being connected to
+     * @param session is the established session
+     * @return true if the session was verified against the current pins, false otherwise
+     */
+    private boolean isVerifiedSession(String hostname, SSLSession session) {
+        VerifiedSession verified = verifiedSessions.get(System.identityHashCode(session) & (SESSION_SLOTS - 1));
+        return (verified != null) && (verified.get() == session) && (verified.version == pinVersion.get()) &&
+                verified.hostname.equals(hostname);
+    }
+
+    /**
+     * Remembers a session that has passed the pinning checks for a host.
+     *
+     * @param hostname is the host being connected to
+     * @param session is the established session
+     * @param index is the pin index the session was verified against
+     */
+    private void addVerifiedSession(String hostname, SSLSession session, ApproovPinIndex index) {
+        verifiedSessions.set(System.identityHashCode(session) & (SESSION_SLOTS - 1),
+                new VerifiedSession(session, hostname, index.version));
+    }
+
+    /**
+     * Gets the SHA256 digest of the public key of a certificate. This is remembered for recently
+     * seen certificates so that repeated connections to the same hosts do not need to encode and
+     * hash the public keys again.
+     *
+     * @param cert is the certificate whose public key digest is required
+     * @return ByteString holding the raw 32 byte digest
+     */
+    static ByteString getSpkiDigest(X509Certificate cert) {
+        ByteString digest = spkiDigests.get(cert);
+        if (digest == null) {
+            digest = ByteString.of(cert.getPublicKey().getEncoded()).sha256();
+            spkiDigests.put(cert, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * A session that has passed the pinning checks for a host, which is only weakly referenced.
+     */
+    private static final class VerifiedSession extends WeakReference<SSLSession> {
+        /** The host the session was verified for */
+        final String hostname;
+
+        /** Version of the pin configuration the session was verified against */
+        final long version;
+
+        /**
+         * Construct a new VerifiedSession.
+         *
+         * @param session is the session that was verified
+         * @param hostname is the host the session was verified for
+         * @param version is the version of the pin configuration the session was verified against
+         */
+        VerifiedSession(SSLSession session, String hostname, long version) {
+            super(session);
+            this.hostname = hostname;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// ApproovRequestConfig is an immutable snapshot of the configuration that is applied to each
+// protected request. A new snapshot is published whenever any of the settings are changed, so the
+// request path can read a consistent configuration without holding any lock. All of the "with" methods
+// return a new snapshot and leave the original unchanged.
+final class ApproovRequestConfig {
+    // header to be used to send Approov tokens
+    final String tokenHeader;
+
+    // any prefix String to be added before the transmitted Approov token
+    final String tokenPrefix;
+
+    // any header to be used for binding in Approov tokens or null if not set
+    final String bindingHeader;
+
+    // true if requests should proceed on network failures and not add an Approov token
+    final boolean proceedOnNetworkFail;
+
+    // unmodifiable map of headers that should have their values substituted for secure strings,
+    // mapped to their required prefixes
+    final Map<String, String> substitutionHeaders;
+
+    // substituter for the query parameters (specified by key name) and any path templates that may be
+    // substituted in URLs
+    final ApproovURLSubstituter urlSubstituter;
+
+    // unmodifiable map of URL regexs that should be excluded from any Approov protection, mapped to
+    // the compiled Pattern
+    final Map<String, Pattern> exclusionURLRegexs;
+
+    // matcher that checks a URL against all of the exclusion URL regexs in a single pass
+    final ApproovExclusionMatcher exclusionMatcher;
+
+    // header in which a signature of each protected request is sent, or null if requests are not signed
+    final String signatureHeader;
+
+    // unmodifiable list of the headers whose values are included in request signatures
+    final List<String> signedHeaders;
+
+    /**
+     * Construct the initial configuration with the given token header and prefix and no other settings.
+     *
+     * @param tokenHeader is the header to be used to send Approov tokens
+     * @param tokenPrefix is any prefix to be added before the Approov token
+     */
+    ApproovRequestConfig(String tokenHeader, String tokenPrefix) {
+        this(tokenHeader, tokenPrefix, null, false, Collections.<String, String>emptyMap(),
+                new ApproovURLSubstituter(Collections.<String>emptySet(), false), Collections.<String, Pattern>emptyMap(),
+                new ApproovExclusionMatcher(Collections.<Pattern>emptyList()), null, Collections.<String>emptyList());
+    }
+
+    /**
+     * Construct a configuration snapshot. The maps must not be modified after construction and the
+     * exclusion matcher must have been built from the exclusion URL regexs.
+     */
+    private ApproovRequestConfig(String tokenHeader, String tokenPrefix, String bindingHeader,
+                                 boolean proceedOnNetworkFail, Map<String, String> substitutionHeaders,
+                                 ApproovURLSubstituter urlSubstituter, Map<String, Pattern> exclusionURLRegexs,
+                                 ApproovExclusionMatcher exclusionMatcher, String signatureHeader,
+                                 List<String> signedHeaders) {
+        this.tokenHeader = tokenHeader;
+        this.tokenPrefix = tokenPrefix;
+        this.bindingHeader = bindingHeader;
+        this.proceedOnNetworkFail = proceedOnNetworkFail;
+        this.substitutionHeaders = substitutionHeaders;
+        this.urlSubstituter = urlSubstituter;
+        this.exclusionURLRegexs = exclusionURLRegexs;
+        this.exclusionMatcher = exclusionMatcher;
+        this.signatureHeader = signatureHeader;
+        this.signedHeaders = signedHeaders;
+    }
+
+    /**
+     * Gets a copy of this configuration with a different token header and prefix.
+     *
+     * @param header is the header to place the Approov token on
+     * @param prefix is any prefix String for the Approov token header
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withTokenHeader(String header, String prefix) {
+        return new ApproovRequestConfig(header, prefix, bindingHeader, proceedOnNetworkFail,
+                substitutionHeaders, urlSubstituter, exclusionURLRegexs, exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with a different binding header.
+     *
+     * @param header is the header to use for Approov token binding, or null if not required
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withBindingHeader(String header) {
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, header, proceedOnNetworkFail,
+                substitutionHeaders, urlSubstituter, exclusionURLRegexs, exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with a different network failure policy.
+     *
+     * @param proceed is true if requests should proceed on network failures
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withProceedOnNetworkFail(boolean proceed) {
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceed,
+                substitutionHeaders, urlSubstituter, exclusionURLRegexs, exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with a substitution header added or removed.
+     *
+     * @param header is the header being changed
+     * @param requiredPrefix is the required prefix for the header, or null to remove it
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withSubstitutionHeader(String header, String requiredPrefix) {
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                update(substitutionHeaders, header, requiredPrefix), urlSubstituter, exclusionURLRegexs,
+                exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with a substitution query parameter added or removed.
+     *
+     * @param key is the query parameter key name being changed
+     * @param add is true if the key should be added, or false to remove it
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withSubstitutionQueryParam(String key, boolean add) {
+        Set<String> queryKeys = new HashSet<>(urlSubstituter.queryKeys);
+        if (add)
+            queryKeys.add(key);
+        else
+            queryKeys.remove(key);
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                substitutionHeaders, new ApproovURLSubstituter(queryKeys, urlSubstituter.pathTemplates),
+                exclusionURLRegexs, exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with path template substitution enabled or disabled.
+     *
+     * @param enabled is true if path templates should be substituted
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withPathTemplates(boolean enabled) {
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                substitutionHeaders, new ApproovURLSubstituter(urlSubstituter.queryKeys, enabled),
+                exclusionURLRegexs, exclusionMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with an exclusion URL regex added or removed.
+     *
+     * @param urlRegex is the regular expression being changed
+     * @param pattern is the compiled regular expression, or null to remove it
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withExclusionURLRegex(String urlRegex, Pattern pattern) {
+        Map<String, Pattern> updated = update(exclusionURLRegexs, urlRegex, pattern);
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                substitutionHeaders, urlSubstituter, updated, new ApproovExclusionMatcher(updated.values()),
+                signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Gets a copy of this configuration with request signing enabled or disabled.
+     *
+     * @param header is the header in which request signatures are sent, or null if requests are not signed
+     * @param headers is the list of headers whose values are included in request signatures
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withRequestSigning(String header, List<String> headers) {
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                substitutionHeaders, urlSubstituter, exclusionURLRegexs, exclusionMatcher, header,
+                Collections.unmodifiableList(new ArrayList<>(headers)));
+    }
+
+    /**
+     * Gets a copy of this configuration with a number of substitution headers, substitution query parameters
+     * and exclusion URL regexs added together. This is equivalent to adding each of them separately, but the
+     * query parameter substituter and the exclusion matcher are only rebuilt once.
+     *
+     * @param headers is the map of substitution headers to be added to their required prefixes
+     * @param queryKeys is the collection of substitution query parameter key names to be added
+     * @param exclusions is the map of exclusion URL regexs to be added to their compiled patterns
+     * @return ApproovRequestConfig the updated configuration
+     */
+    ApproovRequestConfig withAdditions(Map<String, String> headers, Collection<String> queryKeys,
+                                       Map<String, Pattern> exclusions) {
+        Map<String, String> updatedHeaders = substitutionHeaders;
+        if (!headers.isEmpty()) {
+            updatedHeaders = new HashMap<>(substitutionHeaders);
+            updatedHeaders.putAll(headers);
+            updatedHeaders = Collections.unmodifiableMap(updatedHeaders);
+        }
+        ApproovURLSubstituter updatedSubstituter = urlSubstituter;
+        if (!queryKeys.isEmpty()) {
+            Set<String> updatedKeys = new HashSet<>(urlSubstituter.queryKeys);
+            updatedKeys.addAll(queryKeys);
+            updatedSubstituter = new ApproovURLSubstituter(updatedKeys, urlSubstituter.pathTemplates);
+        }
+        Map<String, Pattern> updatedExclusions = exclusionURLRegexs;
+        ApproovExclusionMatcher updatedMatcher = exclusionMatcher;
+        if (!exclusions.isEmpty()) {
+            updatedExclusions = new HashMap<>(exclusionURLRegexs);
+            updatedExclusions.putAll(exclusions);
+            updatedExclusions = Collections.unmodifiableMap(updatedExclusions);
+            updatedMatcher = new ApproovExclusionMatcher(updatedExclusions.values());
+        }
+        return new ApproovRequestConfig(tokenHeader, tokenPrefix, bindingHeader, proceedOnNetworkFail,
+                updatedHeaders, updatedSubstituter, updatedExclusions, updatedMatcher, signatureHeader, signedHeaders);
+    }
+
+    /**
+     * Creates an updated copy of an unmodifiable map.
+     *
+     * @param map is the original map, which is not changed
+     * @param key is the key to be updated
+     * @param value is the new value for the key, or null if the key should be removed
+     * @return Map<K, V> the new unmodifiable map
+     */
+    private static <K, V> Map<K, V> update(Map<K, V> map, K key, V value) {
+        Map<K, V> updated = new HashMap<>(map);
+        if (value == null)
+            updated.remove(key);
+        else
+            updated.put(key, value);
+        return Collections.unmodifiableMap(updated);
+    }
+}
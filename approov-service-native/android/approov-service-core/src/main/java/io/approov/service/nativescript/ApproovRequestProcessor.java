@@ -0,0 +1,1034 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+
+import okhttp3.OkHttpClient;
+import okio.ByteString;
+
+// ApproovRequestProcessor adds Approov protection to requests. This holds the request configuration and
+// the caches used on the request path, and accesses the SDK only through the ApproovSdk facade so that it
+// has no dependency on Android. ApproovServiceNative provides the public interface to it.
+final class ApproovRequestProcessor {
+  /**
+   * Interface for a request to which Approov is added, so that the same processing can be applied to requests
+   * made with different networking stacks.
+   */
+  interface ProtectedRequest {
+    /**
+     * Gets the URL of the request.
+     *
+     * @return URL of the request
+     */
+    URL getURL();
+
+    /**
+     * Gets the value of a request header.
+     *
+     * @param name is the name of the header
+     * @return the value of the header, or null if it is not present
+     */
+    String getHeader(String name);
+
+    /**
+     * Adds a request header value, retaining any existing values.
+     *
+     * @param name is the name of the header
+     * @param value is the value to be added
+     */
+    void addHeader(String name, String value);
+
+    /**
+     * Sets a request header value, replacing any existing values.
+     *
+     * @param name is the name of the header
+     * @param value is the value to be set
+     */
+    void setHeader(String name, String value);
+
+    /**
+     * Ensures that the connection used for the request is pinned with the given verifier.
+     *
+     * @param verifier is the pinning verifier
+     */
+    void pin(HostnameVerifier verifier);
+
+    /**
+     * Gets the timeout for establishing the connection used for the request, which also bounds the time spent
+     * fetching what is needed to protect it.
+     *
+     * @return the connect timeout in milliseconds, or 0 if there is none
+     */
+    int getConnectTimeout();
+  }
+
+  /**
+   * Interface for receiving the results of fetching a number of secure strings together.
+   */
+  interface SecureStringsCallback {
+    /**
+     * Provides the results once all of the fetches have completed.
+     *
+     * @param results is the map of each secure string key to the result of its fetch, in the order requested
+     */
+    void fetched(Map<String, ApproovFetchResult> results);
+  }
+
+  // tag for logging
+  private static final String TAG = "ApproovService";
+
+  // maximum time in milliseconds to wait for the secure strings needed by a request when several have to be fetched
+  private static final long SUBSTITUTION_TIMEOUT_MILLIS = 30000;
+
+  // body digest included in the signature of a request whose body cannot be read before it is sent
+  static final String UNSIGNED_BODY = "UNSIGNED-PAYLOAD";
+
+  // the SDK used for all fetches
+  private final ApproovSdk sdk;
+
+  // flag indicating whether protection is enabled, which is only the case once the SDK has been initialized
+  volatile boolean enabled = false;
+
+  // default maximum time in milliseconds that a request waits for an asynchronous initialization of the SDK
+  static final long DEFAULT_INITIALIZATION_WAIT_MILLIS = 10000;
+
+  // latch released once an asynchronous initialization of the SDK has completed, or null if none is in progress
+  private volatile CountDownLatch initialization = null;
+
+  // maximum time in milliseconds that a request waits for an asynchronous initialization of the SDK
+  volatile long initializationWaitMillis = DEFAULT_INITIALIZATION_WAIT_MILLIS;
+
+  // maximum time in milliseconds to spend fetching what is needed to protect a request, or 0 if this is only
+  // limited by the connect timeout of the request
+  volatile long fetchTimeoutMillis = 0;
+
+  // executor on which fetches are performed when a request may stop waiting for them at its deadline
+  private final ExecutorService fetchExecutor = createFetchExecutor();
+
+  // current snapshot of the request configuration - this is replaced (while holding the lock of the owner)
+  // whenever a setting is changed and is read without any locking on the request path
+  volatile ApproovRequestConfig requestConfig;
+
+  // hostname verifier that checks against the current Approov pins
+  final ApproovPinningVerifier pinningVerifier;
+
+  // gate held while fetching a token that must include the data hash for a binding header, since the data
+  // hash is global state in the SDK
+  private final ApproovDataHashGate dataHashGate;
+
+  // cache of Approov tokens for each host so they can be reused until shortly before they expire
+  final ApproovTokenCache tokenCache = new ApproovTokenCache();
+
+  // token fetches in progress, keyed by the host and any binding key, so that concurrent requests
+  // needing the same token share a single fetch
+  private final ApproovSingleFlight<String, ApproovFetchResult> tokenFetches = new ApproovSingleFlight<>(fetchExecutor);
+
+  // circuit breaker that stops requests waiting for token fetches while the Approov service cannot be reached
+  final ApproovCircuitBreaker circuitBreaker = new ApproovCircuitBreaker();
+
+  // refresher keeping the cached tokens of recently used hosts fresh in the background
+  final ApproovTokenRefresher tokenRefresher = new ApproovTokenRefresher(tokenCache, new ApproovTokenRefresher.Refresh() {
+    @Override
+    public void refresh(String host) {
+      refreshToken(host);
+    }
+  });
+
+  // latency and outcome metrics for the stages of each request
+  final ApproovMetrics metrics = new ApproovMetrics();
+
+  // shared OkHttpClient that adds Approov protection to its requests, or null if it has not been built yet
+  private volatile OkHttpClient okHttpClient = null;
+
+  // cache of secure string lookups used for header and query parameter substitutions
+  final ApproovSecureStringCache<ApproovFetchResult> secureStringCache =
+      new ApproovSecureStringCache<>(new SecureStringLoader(), fetchExecutor);
+
+  /**
+   * Construct a new ApproovRequestProcessor.
+   *
+   * @param sdk is the SDK to be used for all fetches
+   * @param requestConfig is the initial request configuration
+   * @param hostnameVerifier is the HostnameVerifier to be applied before pinning, or null if none
+   */
+  ApproovRequestProcessor(ApproovSdk sdk, ApproovRequestConfig requestConfig, HostnameVerifier hostnameVerifier) {
+    this.sdk = sdk;
+    this.dataHashGate = new ApproovDataHashGate(sdk);
+    this.requestConfig = requestConfig;
+    this.pinningVerifier = new ApproovPinningVerifier(hostnameVerifier, sdk, metrics);
+  }
+
+  /**
+   * Gets the shared OkHttpClient that adds Approov protection to its requests. This uses an ApproovInterceptor
+   * and pins its connections with the pinning verifier. A client with different settings can be obtained with
+   * newBuilder, which shares the same connection pool and dispatcher.
+   *
+   * @return OkHttpClient the shared client
+   */
+  OkHttpClient getOkHttpClient() {
+    OkHttpClient client = okHttpClient;
+    if (client == null) {
+      synchronized (this) {
+        client = okHttpClient;
+        if (client == null) {
+          client = new OkHttpClient.Builder()
+              .addInterceptor(new ApproovInterceptor(this))
+              .hostnameVerifier(pinningVerifier)
+              .build();
+          okHttpClient = client;
+        }
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Indicates that an asynchronous initialization of the SDK has started, so that requests wait for it to
+   * complete rather than being forwarded without protection.
+   */
+  void beginInitialization() {
+    initialization = new CountDownLatch(1);
+  }
+
+  /**
+   * Indicates that an asynchronous initialization of the SDK has completed, releasing any waiting requests.
+   *
+   * @param success is true if the SDK was initialized so that protection is enabled, false otherwise
+   */
+  void endInitialization(boolean success) {
+    CountDownLatch latch = initialization;
+    enabled = success;
+    initialization = null;
+    if (latch != null)
+      latch.countDown();
+  }
+
+  /**
+   * Determines whether protection is enabled for a request, waiting for any asynchronous initialization of the
+   * SDK in progress to complete first.
+   *
+   * @param host is the host of the request
+   * @return true if protection is enabled, false if the SDK is not initialized
+   * @throws IOException if the initialization did not complete within the wait time or the wait was interrupted
+   */
+  private boolean awaitEnabled(String host) throws IOException {
+    if (enabled)
+      return true;
+    CountDownLatch latch = initialization;
+    if (latch == null)
+      return false;
+    long startNanos = System.nanoTime();
+    String outcome = "failed";
+    try {
+      if (!latch.await(initializationWaitMillis, TimeUnit.MILLISECONDS))
+        throw new IOException("Approov initialization not completed for " + host);
+      outcome = enabled ? "enabled" : "disabled";
+      return enabled;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Approov initialization wait for " + host + " interrupted");
+    }
+    finally {
+      metrics.record(ApproovMetrics.Stage.INITIALIZATION_WAIT, host, outcome, startNanos);
+    }
+  }
+
+  /**
+   * Performs any query parameter substitutions, which may require Approov fetches. This may convert
+   * query parameters to map from their original values to a new value using a secure secret fetched
+   * from the Approov cloud. Any path templates are also substituted if enabled. Note that this does
+   * not specifically check that the domain being remapped is added to Approov, so managed trust roots
+   * should always be enabled if using a non Approov added domain to ensure the modified query parameter
+   * cannot be intercepted.
+   * 
+   * @param url is the URL being accessed that may contain query parameters
+   * @return any updated URL, or the original if no change was made
+   * @throws IOException if there is a problem, including due to an attestation failure
+   */
+  URL substituteQueryParams(URL url) throws IOException {
+    return substituteQueryParams(url, 0);
+  }
+
+  /**
+   * Performs any query parameter substitutions, in the same way as for a URL alone, for a request with a
+   * connect timeout that limits the time spent fetching the secure strings.
+   *
+   * @param url is the URL being accessed that may contain query parameters
+   * @param connectTimeoutMillis is the connect timeout of the request in milliseconds, or 0 if there is none
+   * @return any updated URL, or the original if no change was made
+   * @throws IOException if there is a problem, including due to an attestation failure
+   */
+  URL substituteQueryParams(URL url, int connectTimeoutMillis) throws IOException {
+    // if Approov is not initialized then we don't make a change
+    if (!awaitEnabled(url.getHost()))
+      return url;
+
+    // take a snapshot of the configuration to be used for the whole of this request
+    final ApproovRequestConfig config = requestConfig;
+
+    // we are only interested in URLs using the https protocol and if there is anything to substitute
+    if (!url.getProtocol().equals("https") || !config.urlSubstituter.isActive())
+      return url;
+
+    // check if the URL matches one of the exclusion regexs and just return if so
+    String urlString = url.toString();
+    String host = url.getHost();
+    long startNanos = System.nanoTime();
+    boolean excluded = config.exclusionMatcher.matches(urlString);
+    metrics.record(ApproovMetrics.Stage.EXCLUSION_CHECK, host, excluded ? "excluded" : "included", startNanos);
+    if (excluded)
+      return url;
+
+    // perform the substitutions, timing them whether or not they succeed
+    startNanos = System.nanoTime();
+    long deadlineNanos = getDeadlineNanos(startNanos, connectTimeoutMillis);
+    String outcome = "failed";
+    try {
+      URL newURL = substituteURL(url, urlString, config, deadlineNanos);
+      outcome = (newURL == url) ? "unchanged" : "substituted";
+      return newURL;
+    }
+    finally {
+      metrics.record(ApproovMetrics.Stage.QUERY_SUBSTITUTION, host, outcome, startNanos);
+    }
+  }
+
+  /**
+   * Performs the query parameter and path template substitutions for a URL that is not excluded.
+   *
+   * @param url is the URL being accessed
+   * @param urlString is the string form of the URL
+   * @param config is the request configuration snapshot to be used
+   * @param deadlineNanos is the deadline for fetching the secure strings, or 0 if there is none
+   * @return any updated URL, or the original if no change was made
+   * @throws IOException if there is a problem, including due to an attestation failure
+   */
+  private URL substituteURL(URL url, String urlString, final ApproovRequestConfig config, long deadlineNanos)
+      throws IOException {
+    // find the secure string keys needed for the substitutions and fetch them all together
+    final Set<String> keys = new LinkedHashSet<>();
+    config.urlSubstituter.substitute(urlString, new ApproovURLSubstituter.Lookup() {
+      @Override
+      public String lookup(String name, String key, boolean isPathTemplate) {
+        keys.add(key);
+        return null;
+      }
+    });
+    if (keys.isEmpty())
+      return url;
+    final Map<String, ApproovFetchResult> secureStrings = fetchSecureStringsCached(keys, deadlineNanos);
+
+    // perform all of the substitutions in a single pass over the URL, replacing the existing
+    // values with the fetched secure strings
+    String newURLString = config.urlSubstituter.substitute(urlString, new ApproovURLSubstituter.Lookup() {
+      @Override
+      public String lookup(String name, String key, boolean isPathTemplate) throws IOException {
+        String description = isPathTemplate ? "path template " : "query parameter ";
+        ApproovFetchResult approovResults = secureStrings.get(key);
+        if (approovResults == null) {
+          // the fetch did not complete in time, which is treated in the same way as a network failure
+          if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+            ApproovLog.d(TAG, "substituting " + description + name + ", timed out");
+          if (!config.proceedOnNetworkFail)
+            throw new IOException("Approov " + description + "substitution for " + name + ": timed out");
+          return null;
+        }
+        if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+          ApproovLog.d(TAG, "substituting " + description + name + ", " + approovResults.getStatus().toString());
+        if (approovResults.getStatus() == ApproovFetchStatus.SUCCESS)
+          // we have a successful lookup so provide the secret value
+          return approovResults.getSecureString();
+        else if (approovResults.getStatus() == ApproovFetchStatus.REJECTED)
+          // if the request is rejected then we provide an exception with the information
+          throw new IOException("Approov " + description + "substitution for " + name + ": " +
+              approovResults.getStatus().toString() + ": " + approovResults.getARC() +
+              " " + approovResults.getRejectionReasons());
+        else if ((approovResults.getStatus() == ApproovFetchStatus.NO_NETWORK) ||
+                 (approovResults.getStatus() == ApproovFetchStatus.POOR_NETWORK) ||
+                 (approovResults.getStatus() == ApproovFetchStatus.MITM_DETECTED)) {
+          // we are unable to get the secure string due to network conditions so the request can
+          // be retried by the user later - unless this is overridden
+          if (!config.proceedOnNetworkFail)
+            throw new IOException("Approov " + description + "substitution for " + name + ": " +
+                approovResults.getStatus().toString());
+        }
+        else if (approovResults.getStatus() != ApproovFetchStatus.UNKNOWN_KEY)
+          // we have failed to get a secure string with a more serious permanent error
+          throw new IOException("Approov " + description + "substitution for " + name + ": " +
+              approovResults.getStatus().toString());
+        return null;
+      }
+    });
+
+    // return any new URL or just the old one if no changes were made
+    if (newURLString != urlString)
+      return new URL(newURLString);
+    return url;
+  }
+
+  /**
+   * Handles a dynamic configuration update reported by an SDK fetch. This logs the update and calls
+   * fetchConfig to clear the update state. Any cached tokens are discarded as they were issued under the
+   * previous configuration, as are any cached secure strings, and the pins are reloaded for subsequent
+   * connections. Any idle connections of the shared OkHttpClient are closed.
+   */
+  void configChanged() {
+    sdk.fetchConfig();
+    tokenCache.invalidate();
+    secureStringCache.invalidate();
+    pinningVerifier.invalidatePins();
+
+    // idle pooled connections are closed so that new connections are checked against any updated pins
+    OkHttpClient client = okHttpClient;
+    if (client != null)
+      client.connectionPool().evictAll();
+    ApproovLog.d(TAG, "dynamic configuration update received");
+  }
+
+  /**
+   * Directly sets the data hash to be included in subsequently fetched Approov tokens. This waits for any token
+   * fetches in progress for a binding header value to complete, so that their tokens are not affected.
+   *
+   * @param data is the data to be hashed and set in the token
+   */
+  void setDataHashInToken(String data) {
+    dataHashGate.set(data);
+  }
+
+  /**
+   * Gets the secure strings for a number of substitutions, using the secure string cache so that no SDK call
+   * is needed in the steady state. Any secure strings that are not cached are fetched concurrently.
+   *
+   * @param keys is the collection of secure string keys to be looked up
+   * @param deadlineNanos is the deadline for the lookups, or 0 if there is none
+   * @return map of the keys to the results of their lookups, which omits any that did not complete in time
+   * @throws IOException if the lookups were interrupted
+   */
+  private Map<String, ApproovFetchResult> fetchSecureStringsCached(Collection<String> keys, long deadlineNanos)
+      throws IOException {
+    try {
+      return secureStringCache.getAll(keys, getRemainingMillis(deadlineNanos, SUBSTITUTION_TIMEOUT_MILLIS));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Approov secure string fetch interrupted");
+    }
+  }
+
+  /**
+   * Gets the deadline for fetching what is needed to protect a request. This is the earlier of the connect
+   * timeout of the request and the fetch timeout, if either are set.
+   *
+   * @param startNanos is the time at which the protection of the request started
+   * @param connectTimeoutMillis is the connect timeout of the request in milliseconds, or 0 if there is none
+   * @return the deadline in nanoseconds, or 0 if there is none
+   */
+  private long getDeadlineNanos(long startNanos, int connectTimeoutMillis) {
+    long timeoutMillis = fetchTimeoutMillis;
+    if ((connectTimeoutMillis > 0) && ((timeoutMillis <= 0) || (connectTimeoutMillis < timeoutMillis)))
+      timeoutMillis = connectTimeoutMillis;
+    if (timeoutMillis <= 0)
+      return 0;
+    long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    return (deadlineNanos == 0) ? 1 : deadlineNanos;
+  }
+
+  /**
+   * Gets the time remaining until a deadline, which is at least 1 millisecond so that it can be used as a timeout.
+   *
+   * @param deadlineNanos is the deadline, or 0 if there is none
+   * @param defaultMillis is the timeout to be used if there is no deadline
+   * @return the remaining time in milliseconds
+   */
+  private static long getRemainingMillis(long deadlineNanos, long defaultMillis) {
+    if (deadlineNanos == 0)
+      return defaultMillis;
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+  }
+
+  /**
+   * Creates the executor for fetches that a request may stop waiting for, which uses daemon threads so that it
+   * never prevents the process from exiting. Threads are only created for fetches that are in progress together.
+   *
+   * @return the executor
+   */
+  private static ExecutorService createFetchExecutor() {
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ApproovFetch");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Fetches a number of secure strings from the SDK concurrently, providing all of the results with a single
+   * callback. As for a single fetch of a secure string for the app, the results are not cached.
+   *
+   * @param keys is the collection of secure string keys to be looked up, ignoring any duplicates
+   * @param callback is the callback for the results
+   */
+  void fetchSecureStrings(Collection<String> keys, final SecureStringsCallback callback) {
+    final Set<String> uniqueKeys = new LinkedHashSet<>(keys);
+    if (uniqueKeys.isEmpty()) {
+      callback.fetched(Collections.<String, ApproovFetchResult>emptyMap());
+      return;
+    }
+    final Map<String, ApproovFetchResult> fetched = new ConcurrentHashMap<>();
+    final AtomicInteger remaining = new AtomicInteger(uniqueKeys.size());
+    for (final String key: uniqueKeys) {
+      sdk.fetchSecureString(key, null, new ApproovSdk.FetchCallback() {
+        @Override
+        public void fetched(ApproovFetchResult result) {
+          if (result.isConfigChanged())
+            configChanged();
+          fetched.put(key, result);
+          if (remaining.decrementAndGet() == 0) {
+            Map<String, ApproovFetchResult> results = new LinkedHashMap<>();
+            for (String uniqueKey: uniqueKeys)
+              results.put(uniqueKey, fetched.get(uniqueKey));
+            callback.fetched(results);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Loader for the secure string cache that fetches secure strings from the SDK. Only successful
+   * lookups and those for keys that are not defined are cached, and network failures allow any
+   * stale value to continue to be used while it is refreshed.
+   */
+  private final class SecureStringLoader implements ApproovSecureStringCache.Loader<ApproovFetchResult> {
+    @Override
+    public ApproovFetchResult load(String key) {
+      ApproovFetchResult approovResults = sdk.fetchSecureStringAndWait(key, null);
+      if (approovResults.isConfigChanged())
+        configChanged();
+      return approovResults;
+    }
+
+    @Override
+    public void loadAsync(String key, final ApproovSecureStringCache.LoadCallback<ApproovFetchResult> callback) {
+      sdk.fetchSecureString(key, null, new ApproovSdk.FetchCallback() {
+        @Override
+        public void fetched(ApproovFetchResult approovResults) {
+          if (approovResults.isConfigChanged())
+            configChanged();
+          callback.loaded(approovResults);
+        }
+      });
+    }
+
+    @Override
+    public boolean isCacheable(ApproovFetchResult approovResults) {
+      return (approovResults.getStatus() == ApproovFetchStatus.SUCCESS) ||
+             (approovResults.getStatus() == ApproovFetchStatus.UNKNOWN_KEY);
+    }
+
+    @Override
+    public boolean isTransientFailure(ApproovFetchResult approovResults) {
+      return (approovResults.getStatus() == ApproovFetchStatus.NO_NETWORK) ||
+             (approovResults.getStatus() == ApproovFetchStatus.POOR_NETWORK) ||
+             (approovResults.getStatus() == ApproovFetchStatus.MITM_DETECTED);
+    }
+  }
+
+  /**
+   * Fetches an Approov token for a host, updating the data hash based on any token binding header value. The
+   * data hash is global in the SDK so the fetch holds the data hash gate, which allows concurrent fetches for
+   * the same binding header value but not for different ones. Fetches without a binding header value also hold
+   * the gate so that the data hash cannot change during them. Any token obtained is added to the token cache,
+   * unless it has no binding header value but may include the data hash set for one.
+   *
+   * @param host is the host for which the token is required
+   * @param bindingValue is the binding header value for the request, or null if there is none
+   * @param bindingKey is the binding key for the binding header value, or null if there is none
+   * @return ApproovFetchResult the result of the token fetch
+   */
+  private ApproovFetchResult fetchTokenAndWait(String host, String bindingValue, String bindingKey) {
+    long cacheGeneration = tokenCache.getGeneration();
+    ApproovFetchResult approovResults;
+    boolean shareable = true;
+    try {
+      if (bindingValue != null)
+        dataHashGate.acquire(bindingValue);
+      else
+        shareable = dataHashGate.acquireUnbound();
+      approovResults = sdk.fetchApproovTokenAndWait(host);
+    }
+    catch (RuntimeException e) {
+      // the SDK failed rather than the network, so this is not an outage but must not leave a half open
+      // circuit breaker waiting for the result of its probe
+      circuitBreaker.recordNoResult();
+      throw e;
+    }
+    finally {
+      dataHashGate.release();
+    }
+    if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+      ApproovLog.d(TAG, "token for " + host + ": " + approovResults.getLoggableToken());
+
+    // handle any configuration update, after which only the token just fetched may be cached
+    if (approovResults.isConfigChanged()) {
+      configChanged();
+      cacheGeneration = tokenCache.getGeneration();
+    }
+
+    // only failures due to network conditions count towards opening the circuit breaker, since any other
+    // result shows that the Approov service can be reached
+    if ((approovResults.getStatus() == ApproovFetchStatus.NO_NETWORK) ||
+        (approovResults.getStatus() == ApproovFetchStatus.POOR_NETWORK) ||
+        (approovResults.getStatus() == ApproovFetchStatus.MITM_DETECTED))
+      circuitBreaker.recordFailure();
+    else
+      circuitBreaker.recordSuccess();
+    // a token without a binding header value is not cached if it may include data set for a binding header
+    // value, as it would then be used by other requests
+    if (approovResults.getStatus() == ApproovFetchStatus.SUCCESS) {
+      if (shareable)
+        tokenCache.put(host, bindingKey, approovResults.getToken(), cacheGeneration);
+    }
+    else
+      tokenCache.putStatus(host, approovResults.getStatus(), cacheGeneration);
+    return approovResults;
+  }
+
+  /**
+   * Fetches a new token for a host, without any binding header value, so that it replaces the cached token
+   * before it expires. Any fetch of the same token already in progress for a request is shared. No refresh is
+   * made while the circuit breaker is not closed, as it would be likely to fail.
+   *
+   * @param host is the host whose token is refreshed
+   * @return ApproovFetchResult of the fetch, or null if the thread was interrupted or the refresh was skipped
+   */
+  ApproovFetchResult refreshToken(final String host) {
+    if (!circuitBreaker.isClosed())
+      return null;
+    try {
+      return tokenFetches.execute(host, new ApproovSingleFlight.Fetch<ApproovFetchResult>() {
+        @Override
+        public ApproovFetchResult fetch() {
+          return fetchTokenAndWait(host, null, null);
+        }
+      }, 0);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (TimeoutException e) {
+      // this cannot occur when waiting indefinitely
+      return null;
+    }
+  }
+
+  /**
+   * Gets the secure string for a key, using the secure string cache so that a later substitution of the same
+   * key does not need to fetch it. Any fetch of the same key already in progress is shared.
+   *
+   * @param key is the secure string key
+   * @return ApproovFetchResult of the lookup, or null if it was interrupted or timed out
+   */
+  ApproovFetchResult fetchSecureStringCached(String key) {
+    try {
+      return secureStringCache.get(key, SUBSTITUTION_TIMEOUT_MILLIS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (TimeoutException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds Approov to the given connection. The Approov token is added in a header and this
+   * also overrides the HostnameVerifier with something that pins the connections. If a
+   * binding header has been specified then its hash will be set if it is present. This function
+   * may also substitute header values to hold secure string secrets. If it is not
+   * currently possible to fetch an Approov token due to networking issues then
+   * IOException is thrown and a user initiated retry of the operation should
+   * be allowed. IOException is thrown if header substitution is being attempted and
+   * the app fails attestation. Other IOExceptions represent a more permanent error condition.
+   *
+   * @param connection is the HttpsUrlConnection to which Approov is being added
+   * @throws IOException if it is not possible to obtain an Approov token or secure strings
+   */
+  void addApproov(final HttpsURLConnection connection) throws IOException {
+    ProtectedRequest request = new ProtectedRequest() {
+      @Override
+      public URL getURL() {
+        return connection.getURL();
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return connection.getRequestProperty(name);
+      }
+
+      @Override
+      public void addHeader(String name, String value) {
+        connection.addRequestProperty(name, value);
+      }
+
+      @Override
+      public void setHeader(String name, String value) {
+        connection.setRequestProperty(name, value);
+      }
+
+      @Override
+      public void pin(HostnameVerifier verifier) {
+        connection.setHostnameVerifier(verifier);
+      }
+
+      @Override
+      public int getConnectTimeout() {
+        return connection.getConnectTimeout();
+      }
+    };
+    addApproov(request);
+
+    // the request headers are sent before the body is written to the connection so the body cannot be signed
+    signRequest(request, connection.getRequestMethod(), null);
+  }
+
+  /**
+   * Checks whether protected requests are currently being signed, so that the digest of any request body only
+   * needs to be computed if it will be used.
+   *
+   * @return true if requests are signed, false otherwise
+   */
+  boolean isSigningRequests() {
+    return requestConfig.signatureHeader != null;
+  }
+
+  /**
+   * Adds a signature of a request to which Approov has been added, if request signing is enabled. The signature
+   * is obtained from the SDK for the canonical form of the request, which covers the method, URL, Approov token,
+   * the values of the signed headers and the digest of the body. Requests without an Approov token are not
+   * signed, since the SDK only has a signing key once a token has been fetched.
+   *
+   * @param request is the request to be signed
+   * @param method is the HTTP method of the request
+   * @param bodyDigest is the SHA256 digest of the request body, or null if it is not available
+   */
+  void signRequest(ProtectedRequest request, String method, ByteString bodyDigest) {
+    ApproovRequestConfig config = requestConfig;
+    if ((config.signatureHeader == null) || (request.getHeader(config.tokenHeader) == null))
+      return;
+    String host = request.getURL().getHost();
+    long startNanos = System.nanoTime();
+    String outcome = "failed";
+    try {
+      String signature = sdk.getMessageSignature(getCanonicalRequest(request, method, bodyDigest, config));
+      if (signature == null) {
+        outcome = "unavailable";
+        return;
+      }
+      request.setHeader(config.signatureHeader, signature);
+      outcome = (bodyDigest == null) ? "unsignedBody" : "signed";
+    }
+    finally {
+      metrics.record(ApproovMetrics.Stage.REQUEST_SIGNING, host, outcome, startNanos);
+    }
+  }
+
+  /**
+   * Gets the canonical form of a request that is signed. This has a line for each of the method, URL, the Approov
+   * token header and each of the signed headers, as a lower case name and value separated by a colon, followed by
+   * the base64 encoded body digest. UNSIGNED_BODY is used in place of the body digest if it is not available.
+   *
+   * @param request is the request being signed
+   * @param method is the HTTP method of the request
+   * @param bodyDigest is the SHA256 digest of the request body, or null if it is not available
+   * @param config is the configuration snapshot for the request
+   * @return String the canonical request
+   */
+  static String getCanonicalRequest(ProtectedRequest request, String method, ByteString bodyDigest,
+                                    ApproovRequestConfig config) {
+    StringBuilder canonical = new StringBuilder();
+    canonical.append(method).append('\n').append(request.getURL().toString()).append('\n');
+    appendHeader(canonical, request, config.tokenHeader);
+    for (String header: config.signedHeaders)
+      appendHeader(canonical, request, header);
+    canonical.append((bodyDigest == null) ? UNSIGNED_BODY : bodyDigest.base64());
+    return canonical.toString();
+  }
+
+  /**
+   * Appends a header line to the canonical form of a request.
+   *
+   * @param canonical is the canonical request being built
+   * @param request is the request being signed
+   * @param header is the name of the header, whose value is empty if it is not present
+   */
+  private static void appendHeader(StringBuilder canonical, ProtectedRequest request, String header) {
+    String value = request.getHeader(header);
+    canonical.append(header.toLowerCase(Locale.ROOT)).append(':').append((value == null) ? "" : value).append('\n');
+  }
+
+  /**
+   * Adds Approov to the given request, in the same way as for a connection.
+   *
+   * @param request is the request to which Approov is being added
+   * @throws IOException if it is not possible to obtain an Approov token or secure strings
+   */
+  void addApproov(ProtectedRequest request) throws IOException {
+    // just return if Approov has not been initialized
+    String url = request.getURL().toString();
+    if (!awaitEnabled(request.getURL().getHost())) {
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+        ApproovLog.d(TAG, "uninitialized forwarded: " + url);
+      return;
+    }
+
+    // requests to localhost are just forwarded
+    final String host = request.getURL().getHost();
+    if (host.equals("localhost")) {
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+        ApproovLog.d(TAG, "localhost forwarded: " + url);
+      return;
+    }
+
+    // take a snapshot of the configuration to be used for the whole of this request, along with the deadline
+    // for the fetches needed to protect it
+    ApproovRequestConfig config = requestConfig;
+    long deadlineNanos = getDeadlineNanos(System.nanoTime(), request.getConnectTimeout());
+
+    // ensure the connection is pinned - this is done even if the URL is excluded in case
+    // the same domain is used for an Approov protected request and the same connection is live
+    request.pin(pinningVerifier);
+
+    // check if the URL matches one of the exclusion regexs and just return if so
+    long startNanos = System.nanoTime();
+    boolean excluded = config.exclusionMatcher.matches(url);
+    metrics.record(ApproovMetrics.Stage.EXCLUSION_CHECK, host, excluded ? "excluded" : "included", startNanos);
+    if (excluded) {
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+        ApproovLog.d(TAG, "excluded url: " + url);
+      return;
+    }
+
+    // request an Approov token for the domain, reusing any cached token for the same binding header value
+    final String bindingValue = (config.bindingHeader == null) ? null : request.getHeader(config.bindingHeader);
+    final String bindingKey = ApproovTokenCache.getBindingKey(bindingValue);
+    ApproovFetchStatus tokenStatus = null;
+    String token;
+    boolean timedOut = false;
+    boolean circuitOpen = false;
+    startNanos = System.nanoTime();
+    try {
+      ApproovFetchStatus unprotectedStatus = tokenCache.getUnprotectedStatus(host);
+      token = (unprotectedStatus == null) ? tokenCache.get(host, bindingKey) : null;
+      if (unprotectedStatus != null) {
+        // the host is known not to be protected so there is no need to ask the SDK again until the
+        // configuration changes
+        tokenStatus = unprotectedStatus;
+        if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+          ApproovLog.d(TAG, "cached " + unprotectedStatus.toString() + " for " + host);
+      }
+      else if (token != null) {
+        // we can reuse a token fetched for an earlier request that has not yet expired
+        tokenStatus = ApproovFetchStatus.SUCCESS;
+        if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+          ApproovLog.d(TAG, "cached token for " + host);
+      }
+      else if (!circuitBreaker.allowRequest()) {
+        // the Approov service cannot currently be reached so the request does not wait for a fetch
+        circuitOpen = true;
+        token = null;
+      }
+      else {
+        // concurrent requests for the same host and binding value share a single token fetch
+        String fetchKey = (bindingKey == null) ? host : host + '\n' + bindingKey;
+        ApproovFetchResult approovResults;
+        try {
+          approovResults = tokenFetches.execute(fetchKey, new ApproovSingleFlight.Fetch<ApproovFetchResult>() {
+            @Override
+            public ApproovFetchResult fetch() {
+              return fetchTokenAndWait(host, bindingValue, bindingKey);
+            }
+          }, getRemainingMillis(deadlineNanos, 0));
+          tokenStatus = approovResults.getStatus();
+          token = approovResults.getToken();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Approov token fetch for " + host + " interrupted");
+        }
+        catch (TimeoutException e) {
+          // the deadline for the request has passed, but the fetch continues so that its result is cached
+          timedOut = true;
+          token = null;
+        }
+      }
+    }
+    finally {
+      metrics.record(ApproovMetrics.Stage.TOKEN_FETCH, host,
+          (tokenStatus != null) ? tokenStatus.toString() :
+          (timedOut ? "timeout" : (circuitOpen ? "circuitOpen" : "failed")), startNanos);
+    }
+
+    // while the circuit breaker is open the request fails fast in the same way as for a network failure
+    if (circuitOpen) {
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+        ApproovLog.d(TAG, "token fetch for " + host + " skipped as circuit open");
+      if (!config.proceedOnNetworkFail)
+        throw new IOException("Approov token fetch for " + host + ": circuit open");
+      return;
+    }
+
+    // a token fetch that did not complete in time is treated in the same way as a network failure, except that
+    // the request can also be retried with a longer timeout
+    if (timedOut) {
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+        ApproovLog.d(TAG, "token fetch for " + host + " timed out");
+      if (!config.proceedOnNetworkFail)
+        throw new SocketTimeoutException("Approov token fetch for " + host + " timed out");
+      return;
+    }
+    metrics.recordTokenStatus(host, tokenStatus);
+
+    // check the status of Approov token fetch
+    if (tokenStatus == ApproovFetchStatus.SUCCESS) {
+      // we successfully obtained a token so add it to the header for the request, and keep the token for
+      // the host fresh in the background for subsequent requests
+      request.addHeader(config.tokenHeader, config.tokenPrefix + token);
+      if (bindingValue == null)
+        tokenRefresher.touch(host);
+    }
+    else if ((tokenStatus == ApproovFetchStatus.NO_NETWORK) ||
+             (tokenStatus == ApproovFetchStatus.POOR_NETWORK) ||
+             (tokenStatus == ApproovFetchStatus.MITM_DETECTED)) {
+      // we are unable to get an Approov token due to network conditions so the request can
+      // be retried by the user later - unless this is overridden
+      if (!config.proceedOnNetworkFail)
+          throw new IOException("Approov token fetch for " + host + ": " + tokenStatus.toString());
+    }
+    else if ((tokenStatus != ApproovFetchStatus.NO_APPROOV_SERVICE) &&
+             (tokenStatus != ApproovFetchStatus.UNKNOWN_URL) &&
+             (tokenStatus != ApproovFetchStatus.UNPROTECTED_URL))
+      // we have failed to get an Approov token with a more serious permanent error
+      throw new IOException("Approov token fetch for " + host + ": " + tokenStatus.toString());
+
+    // we only continue additional processing if we had a valid status from Approov, to prevent additional delays
+    // by trying to fetch from Approov again and this also protects against header substitutions in domains not
+    // protected by Approov and therefore potential subject to a MitM
+    if ((tokenStatus == ApproovFetchStatus.SUCCESS) ||
+        (tokenStatus == ApproovFetchStatus.UNPROTECTED_URL)) {
+      // we now deal with any header substitutions, which may require further fetches but these
+      // should be using cached results - any that are not cached are fetched together
+      startNanos = System.nanoTime();
+      String outcome = "failed";
+      try {
+        substituteHeaders(request, config, deadlineNanos);
+        outcome = "completed";
+      }
+      finally {
+        metrics.record(ApproovMetrics.Stage.HEADER_SUBSTITUTION, host, outcome, startNanos);
+      }
+    }
+  }
+
+  /**
+   * Substitutes the values of any substitution headers present on a request with the secure strings
+   * they name.
+   *
+   * @param request is the request whose headers are substituted
+   * @param config is the request configuration snapshot to be used
+   * @param deadlineNanos is the deadline for fetching the secure strings, or 0 if there is none
+   * @throws IOException if a secure string could not be obtained
+   */
+  private void substituteHeaders(ProtectedRequest request, ApproovRequestConfig config, long deadlineNanos)
+      throws IOException {
+    Map<String, String> headerKeys = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry: config.substitutionHeaders.entrySet()) {
+      String header = entry.getKey();
+      String prefix = entry.getValue();
+      String value = request.getHeader(header);
+      if ((value != null) && value.startsWith(prefix) && (value.length() > prefix.length()))
+        headerKeys.put(header, value.substring(prefix.length()));
+    }
+    Map<String, ApproovFetchResult> secureStrings = fetchSecureStringsCached(headerKeys.values(), deadlineNanos);
+    for (Map.Entry<String, String> entry: headerKeys.entrySet()) {
+      String header = entry.getKey();
+      String prefix = config.substitutionHeaders.get(header);
+      ApproovFetchResult approovResults = secureStrings.get(entry.getValue());
+      if (approovResults == null) {
+          // the fetch did not complete in time, which is treated in the same way as a network failure
+          if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+              ApproovLog.d(TAG, "substituting header " + header + ": timed out");
+          if (!config.proceedOnNetworkFail)
+              throw new IOException("Approov header substitution for " + header + ": timed out");
+          continue;
+      }
+      if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+          ApproovLog.d(TAG, "substituting header " + header + ": " + approovResults.getStatus().toString());
+      if (approovResults.getStatus() == ApproovFetchStatus.SUCCESS) {
+          // update the header with the actual secret
+          request.setHeader(header, prefix + approovResults.getSecureString());
+      }
+      else if (approovResults.getStatus() == ApproovFetchStatus.REJECTED)
+          // if the request is rejected then we provide the information about the rejection
+          throw new IOException("Approov header substitution for " + header + ": " +
+                  approovResults.getStatus().toString() + ": " + approovResults.getARC() +
+                  " " + approovResults.getRejectionReasons());
+      else if ((approovResults.getStatus() == ApproovFetchStatus.NO_NETWORK) ||
+               (approovResults.getStatus() == ApproovFetchStatus.POOR_NETWORK) ||
+               (approovResults.getStatus() == ApproovFetchStatus.MITM_DETECTED)) {
+          // we are unable to get the secure string due to network conditions so the request can
+          // be retried by the user later - unless this is overridden
+          if (!config.proceedOnNetworkFail)
+              throw new IOException("Approov header substitution for " + header + ": " +
+                  approovResults.getStatus().toString());
+      }
+      else if (approovResults.getStatus() != ApproovFetchStatus.UNKNOWN_KEY)
+          // we have failed to get a secure string with a more serious permanent error
+          throw new IOException("Approov header substitution for " + header + ": " +
+                  approovResults.getStatus().toString());
+    }
+  }
+}
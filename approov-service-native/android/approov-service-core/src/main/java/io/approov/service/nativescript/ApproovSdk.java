@@ -0,0 +1,94 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.List;
+import java.util.Map;
+
+// ApproovSdk is the facade through which the request processing core accesses the Approov SDK. On
+// Android this is implemented by calling the SDK directly, but keeping the core independent of the
+// SDK allows it to be built and measured on a plain JVM against an in-memory implementation.
+interface ApproovSdk {
+    /**
+     * Interface for receiving the result of an asynchronous fetch.
+     */
+    interface FetchCallback {
+        /**
+         * Provides the result of the fetch.
+         *
+         * @param result is the result of the fetch
+         */
+        void fetched(ApproovFetchResult result);
+    }
+
+    /**
+     * Fetches an Approov token for the domain of a URL, blocking until it is available.
+     *
+     * @param url is the URL or host for which the token is required
+     * @return ApproovFetchResult the result of the fetch
+     */
+    ApproovFetchResult fetchApproovTokenAndWait(String url);
+
+    /**
+     * Fetches a secure string, blocking until it is available.
+     *
+     * @param key is the secure string key to be looked up
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     * @return ApproovFetchResult the result of the fetch
+     */
+    ApproovFetchResult fetchSecureStringAndWait(String key, String newDef);
+
+    /**
+     * Fetches a secure string without blocking.
+     *
+     * @param key is the secure string key to be looked up
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     * @param callback is called with the result when it is available
+     */
+    void fetchSecureString(String key, String newDef, FetchCallback callback);
+
+    /**
+     * Sets the data hash to be included in subsequently fetched Approov tokens.
+     *
+     * @param data is the data to be hashed and set in the token
+     */
+    void setDataHashInToken(String data);
+
+    /**
+     * Gets the signature of a message, using the account specific message signing key that is transmitted
+     * to the SDK after a successful token fetch.
+     *
+     * @param message is the message to be signed
+     * @return the base64 encoded signature, or null if no token has been fetched yet
+     */
+    String getMessageSignature(String message);
+
+    /**
+     * Gets the current pins of the given type.
+     *
+     * @param pinType is the type of the pins, such as "public-key-sha256"
+     * @return map of hosts to their pins, or null if there are none
+     */
+    Map<String, List<String>> getPins(String pinType);
+
+    /**
+     * Fetches the current configuration, which clears any pending configuration update.
+     */
+    void fetchConfig();
+}
@@ -0,0 +1,467 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ApproovSecureStringCache holds the results of secure string lookups in memory, keyed by the secure
+// string key, so that requests needing a substitution do not have to block on the SDK each time. A
+// cached result is fresh for a TTL, after which it is still returned for a further stale period while
+// a refresh is performed on a background thread. Only results that the loader considers cacheable are
+// held, and concurrent misses for the same key share a single load. Multiple misses needed together are
+// loaded concurrently with an overall deadline, while still sharing any loads in progress for their keys.
+// If a refresh fails transiently the stale result continues to be used, but any other failure removes it
+// so the next request sees the failure. Any loads that were started before the cache, or the key being
+// loaded, was invalidated are not able to add their result afterwards.
+final class ApproovSecureStringCache<V> {
+    /**
+     * Interface for loading the value for a key and classifying the result.
+     */
+    interface Loader<V> {
+        /**
+         * Loads the value for a key, which may block.
+         *
+         * @param key is the secure string key to be loaded
+         * @return the loaded result
+         */
+        V load(String key);
+
+        /**
+         * Starts loading the value for a key without blocking.
+         *
+         * @param key is the secure string key to be loaded
+         * @param callback is called with the loaded result when it is available
+         */
+        void loadAsync(String key, LoadCallback<V> callback);
+
+        /**
+         * Determines whether a loaded result may be cached.
+         *
+         * @param value is the loaded result
+         * @return true if the result may be cached
+         */
+        boolean isCacheable(V value);
+
+        /**
+         * Determines whether a loaded result is a transient failure, in which case any stale cached
+         * result continues to be used.
+         *
+         * @param value is the loaded result
+         * @return true if the result is a transient failure
+         */
+        boolean isTransientFailure(V value);
+    }
+
+    /**
+     * Interface for receiving the result of an asynchronous load.
+     */
+    interface LoadCallback<V> {
+        /**
+         * Provides the loaded result.
+         *
+         * @param value is the loaded result
+         */
+        void loaded(V value);
+    }
+
+    // default number of seconds for which a cached result is fresh
+    static final long DEFAULT_TTL_SECONDS = 300;
+
+    // default number of seconds after becoming stale for which a cached result may still be used while it is refreshed
+    static final long DEFAULT_STALE_SECONDS = 3600;
+
+    // default maximum number of keys to be cached
+    static final int DEFAULT_CAPACITY = 64;
+
+    // a cached result along with the times at which it becomes stale and expires
+    private static final class Entry<V> {
+        // the cached result
+        final V value;
+
+        // time in milliseconds since the epoch until which the result is fresh
+        final long freshUntilMillis;
+
+        // time in milliseconds since the epoch until which the result may be used while it is refreshed
+        final long staleUntilMillis;
+
+        // generation of the cache when the load for the result was started
+        final long generation;
+
+        // true while a background refresh of the result is in progress
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(V value, long freshUntilMillis, long staleUntilMillis, long generation) {
+            this.value = value;
+            this.freshUntilMillis = freshUntilMillis;
+            this.staleUntilMillis = staleUntilMillis;
+            this.generation = generation;
+        }
+    }
+
+    // loader for the values
+    private final Loader<V> loader;
+
+    // executor used for background refreshes
+    private final Executor refreshExecutor;
+
+    // bounded map of keys to their cached results
+    private final ApproovLruCache<String, Entry<V>> entries;
+
+    // loads in progress, so that concurrent misses for the same key share a single load
+    private final ApproovSingleFlight<String, V> loads;
+
+    // generation of the cache, which is incremented each time it, or any key in it, is invalidated
+    private final AtomicLong generation = new AtomicLong();
+
+    // generation at which the whole cache was last invalidated
+    private volatile long invalidatedGeneration = 0;
+
+    // generations at which individual keys were last invalidated, if later than the whole cache
+    private final ConcurrentHashMap<String, Long> keyInvalidatedGenerations = new ConcurrentHashMap<>();
+
+    // maximum number of individual key invalidations that are held before the whole cache is invalidated instead
+    private final int keyInvalidationLimit;
+
+    // number of milliseconds for which a cached result is fresh
+    private volatile long ttlMillis = DEFAULT_TTL_SECONDS * 1000;
+
+    // number of milliseconds after becoming stale for which a cached result may still be used
+    private volatile long staleMillis = DEFAULT_STALE_SECONDS * 1000;
+
+    // count of lookups that were satisfied with a fresh result
+    private final AtomicLong hits = new AtomicLong();
+
+    // count of lookups that were satisfied with a stale result while it was refreshed
+    private final AtomicLong staleHits = new AtomicLong();
+
+    // count of lookups that required a blocking load
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a new ApproovSecureStringCache with the default capacity and a single background
+     * thread for refreshes.
+     *
+     * @param loader is the loader for the values
+     * @param loadExecutor is the executor on which loads with a timeout are performed, or null if none
+     */
+    ApproovSecureStringCache(Loader<V> loader, Executor loadExecutor) {
+        this(loader, DEFAULT_CAPACITY, createRefreshExecutor(), loadExecutor);
+    }
+
+    /**
+     * Construct a new ApproovSecureStringCache.
+     *
+     * @param loader is the loader for the values
+     * @param capacity is the maximum number of keys to be cached
+     * @param refreshExecutor is the executor used for background refreshes
+     * @param loadExecutor is the executor on which loads with a timeout are performed, or null if none
+     */
+    ApproovSecureStringCache(Loader<V> loader, int capacity, Executor refreshExecutor, Executor loadExecutor) {
+        this.loader = loader;
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new ApproovLruCache<>(capacity);
+        this.loads = new ApproovSingleFlight<>(loadExecutor);
+        this.keyInvalidationLimit = capacity;
+    }
+
+    /**
+     * Sets the time for which a cached result is fresh and the further time for which it may be used
+     * while it is refreshed in the background.
+     *
+     * @param ttlSeconds is the number of seconds for which a result is fresh
+     * @param staleSeconds is the number of seconds after that for which a stale result may be used
+     */
+    void setTTL(long ttlSeconds, long staleSeconds) {
+        ttlMillis = ttlSeconds * 1000;
+        staleMillis = staleSeconds * 1000;
+    }
+
+    /**
+     * Gets the result for a key, from the cache if possible. A stale result is returned immediately
+     * and a background refresh started for it. Otherwise the result is loaded, sharing any load
+     * already in progress for the key.
+     *
+     * @param key is the secure string key
+     * @param timeoutMillis is the maximum time to wait for the load, or 0 to wait indefinitely
+     * @return the result for the key
+     * @throws InterruptedException if the thread was interrupted while waiting for a load in progress
+     * @throws TimeoutException if a load in progress did not complete within the timeout
+     */
+    V get(final String key, long timeoutMillis) throws InterruptedException, TimeoutException {
+        V value = getCached(key);
+        if (value != null)
+            return value;
+        misses.incrementAndGet();
+        return loads.execute(key, new ApproovSingleFlight.Fetch<V>() {
+            @Override
+            public V fetch() {
+                long fetchGeneration = generation.get();
+                V value = loader.load(key);
+                if (loader.isCacheable(value))
+                    put(key, value, fetchGeneration);
+                return value;
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Gets the results for a number of keys, from the cache if possible. If there is more than one key
+     * that is not cached then they are all loaded concurrently and the results awaited together, so the
+     * time taken is that of the slowest load rather than the total. Any load already in progress for a
+     * key is shared rather than started again. A single uncached key is loaded as for get.
+     *
+     * @param keys is the collection of secure string keys
+     * @param timeoutMillis is the maximum time to wait for the loads, or 0 to wait indefinitely
+     * @return map of the keys to their results, which does not include any key whose load did not complete in time
+     * @throws InterruptedException if the thread was interrupted while waiting for the loads
+     */
+    Map<String, V> getAll(Collection<String> keys, long timeoutMillis) throws InterruptedException {
+        Map<String, V> results = new HashMap<>();
+        Set<String> pending = new HashSet<>();
+        for (String key: keys) {
+            V value = getCached(key);
+            if (value != null)
+                results.put(key, value);
+            else
+                pending.add(key);
+        }
+        if (pending.isEmpty())
+            return results;
+
+        // a single key can share any load already in progress
+        if (pending.size() == 1) {
+            String key = pending.iterator().next();
+            try {
+                results.put(key, get(key, timeoutMillis));
+            }
+            catch (TimeoutException e) {
+                // the key is left out of the results
+            }
+            return results;
+        }
+
+        // start or join the loads for all of the keys and wait for them to complete
+        misses.addAndGet(pending.size());
+        final CountDownLatch done = new CountDownLatch(pending.size());
+        final Map<String, V> loaded = new ConcurrentHashMap<>();
+        for (final String key: pending) {
+            loads.executeAsync(key, new ApproovSingleFlight.AsyncFetch<V>() {
+                @Override
+                public void start(final ApproovSingleFlight.Callback<V> completion) {
+                    final long fetchGeneration = generation.get();
+                    loader.loadAsync(key, new LoadCallback<V>() {
+                        @Override
+                        public void loaded(V value) {
+                            if (loader.isCacheable(value))
+                                put(key, value, fetchGeneration);
+                            completion.completed(value);
+                        }
+                    });
+                }
+            }, new ApproovSingleFlight.Callback<V>() {
+                @Override
+                public void completed(V value) {
+                    if (value != null)
+                        loaded.put(key, value);
+                    done.countDown();
+                }
+            });
+        }
+        if (timeoutMillis <= 0)
+            done.await();
+        else
+            done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        results.putAll(loaded);
+        return results;
+    }
+
+    /**
+     * Invalidates all of the cached results.
+     */
+    synchronized void invalidate() {
+        long invalidated = generation.incrementAndGet();
+        invalidatedGeneration = invalidated;
+        entries.clear();
+
+        // invalidations of individual keys are now covered by the invalidation of the whole cache
+        for (Map.Entry<String, Long> keyInvalidated: keyInvalidatedGenerations.entrySet()) {
+            if (keyInvalidated.getValue() <= invalidated)
+                keyInvalidatedGenerations.remove(keyInvalidated.getKey(), keyInvalidated.getValue());
+        }
+    }
+
+    /**
+     * Invalidates the cached result for a single key. Loads in progress for the key are also prevented
+     * from adding their result, but the results for other keys are unaffected. If more keys have been
+     * invalidated than the cache can hold then the whole cache is invalidated instead, so that the
+     * generations recorded for the individual keys can be discarded.
+     *
+     * @param key is the secure string key to be invalidated
+     */
+    void invalidate(String key) {
+        keyInvalidatedGenerations.put(key, generation.incrementAndGet());
+        entries.remove(key);
+        if (keyInvalidatedGenerations.size() > keyInvalidationLimit)
+            invalidate();
+    }
+
+    /**
+     * Gets the number of lookups that were satisfied with a fresh result.
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that were satisfied with a stale result while it was refreshed.
+     *
+     * @return the number of stale hits
+     */
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Gets the number of lookups that required a blocking load.
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the result for a key if it is cached. A stale result is returned and a background refresh
+     * started for it.
+     *
+     * @param key is the secure string key
+     * @return the cached result, or null if there is none
+     */
+    private V getCached(final String key) {
+        final Entry<V> entry = entries.get(key);
+        if ((entry == null) || !isCurrent(key, entry.generation))
+            return null;
+        long now = System.currentTimeMillis();
+        if (now < entry.freshUntilMillis) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        if (now < entry.staleUntilMillis) {
+            staleHits.incrementAndGet();
+            if (entry.refreshing.compareAndSet(false, true)) {
+                refreshExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key, entry);
+                    }
+                });
+            }
+            return entry.value;
+        }
+        return null;
+    }
+
+    /**
+     * Refreshes a stale result in the background.
+     *
+     * @param key is the secure string key
+     * @param stale is the stale entry being refreshed
+     */
+    private void refresh(String key, Entry<V> stale) {
+        try {
+            long fetchGeneration = generation.get();
+            V value = loader.load(key);
+            if (loader.isCacheable(value))
+                put(key, value, fetchGeneration);
+            else if (!loader.isTransientFailure(value) && (entries.get(key) == stale))
+                entries.remove(key);
+        }
+        catch (RuntimeException e) {
+            // the stale result continues to be used until it expires
+        }
+        finally {
+            stale.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Checks whether a result loaded for a key is still current, as neither the cache nor the key have
+     * been invalidated since the load was started.
+     *
+     * @param key is the secure string key
+     * @param fetchGeneration is the generation of the cache obtained before the load was started
+     * @return true if the result is current, false otherwise
+     */
+    private boolean isCurrent(String key, long fetchGeneration) {
+        if (fetchGeneration < invalidatedGeneration)
+            return false;
+        Long keyInvalidated = keyInvalidatedGenerations.get(key);
+        return (keyInvalidated == null) || (fetchGeneration >= keyInvalidated);
+    }
+
+    /**
+     * Adds a newly loaded result to the cache, unless the cache or the key has been invalidated since the
+     * load was started.
+     *
+     * @param key is the secure string key
+     * @param value is the loaded result
+     * @param fetchGeneration is the generation of the cache obtained before the load was started
+     */
+    private void put(String key, V value, long fetchGeneration) {
+        long now = System.currentTimeMillis();
+        long freshUntilMillis = now + ttlMillis;
+        entries.put(key, new Entry<>(value, freshUntilMillis, freshUntilMillis + staleMillis, fetchGeneration));
+
+        // if the cache was invalidated while the result was being added then make sure it is not left behind
+        if (!isCurrent(key, fetchGeneration))
+            entries.remove(key);
+    }
+
+    /**
+     * Creates the executor for background refreshes, which uses a single daemon thread so that it
+     * never prevents the process from exiting.
+     *
+     * @return the executor
+     */
+    private static ExecutorService createRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovSecureStringRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,267 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// ApproovSingleFlight collapses concurrent fetches for the same key into a single fetch. The first
+// caller for a key performs the fetch on its own thread and any other callers arriving while it is in
+// progress wait for, and share, its result. A waiter that is interrupted or stops waiting because of
+// a timeout does not affect the fetch or any of the other waiters. If an executor is provided then a
+// first caller with a timeout performs the fetch on the executor instead, so that it can also stop
+// waiting without abandoning the fetch for the others. Fetches may also be started or joined without
+// blocking, with the result provided to a callback. Results are not retained once the fetch has
+// completed, so any caching must be performed separately.
+final class ApproovSingleFlight<K, V> {
+    /**
+     * Interface for the fetch to be performed for a key.
+     */
+    interface Fetch<V> {
+        /**
+         * Performs the fetch, which may block.
+         *
+         * @return the result of the fetch
+         */
+        V fetch();
+    }
+
+    /**
+     * Interface for a fetch that completes asynchronously.
+     */
+    interface AsyncFetch<V> {
+        /**
+         * Starts the fetch without blocking.
+         *
+         * @param completion must be called exactly once with the result of the fetch
+         */
+        void start(Callback<V> completion);
+    }
+
+    /**
+     * Interface for receiving the result of a fetch.
+     */
+    interface Callback<V> {
+        /**
+         * Provides the result of the fetch.
+         *
+         * @param result is the result of the fetch, or null if it failed
+         */
+        void completed(V result);
+    }
+
+    // a fetch in progress for a key
+    private static final class Call<V> {
+        // latch released when the fetch has completed
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // result of the fetch, valid once done
+        V result;
+
+        // any exception thrown by the fetch, valid once done
+        RuntimeException failure;
+
+        // callbacks to be made when the fetch completes, or null once it has completed
+        private List<Callback<V>> callbacks = new ArrayList<>();
+
+        /**
+         * Adds a callback for the result of the fetch, which is made immediately if it has already completed.
+         *
+         * @param callback is the callback for the result
+         */
+        void addCallback(Callback<V> callback) {
+            synchronized (this) {
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            callback.completed((failure == null) ? result : null);
+        }
+
+        /**
+         * Completes the fetch, releasing any waiters and making any callbacks.
+         *
+         * @param result is the result of the fetch
+         * @param failure is any exception thrown by the fetch, or null if none
+         */
+        void complete(V result, RuntimeException failure) {
+            this.result = result;
+            this.failure = failure;
+            done.countDown();
+            List<Callback<V>> completed;
+            synchronized (this) {
+                completed = callbacks;
+                callbacks = null;
+            }
+            for (Callback<V> callback: completed)
+                callback.completed((failure == null) ? result : null);
+        }
+    }
+
+    // map of keys to the fetches currently in progress for them
+    private final ConcurrentHashMap<K, Call<V>> calls = new ConcurrentHashMap<>();
+
+    // executor on which fetches with a timeout are performed, or null if they are performed by the first caller
+    private final Executor executor;
+
+    /**
+     * Construct a new ApproovSingleFlight whose fetches are always performed by the first caller.
+     */
+    ApproovSingleFlight() {
+        this(null);
+    }
+
+    /**
+     * Construct a new ApproovSingleFlight.
+     *
+     * @param executor is the executor on which fetches with a timeout are performed, or null if none
+     */
+    ApproovSingleFlight(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Performs a fetch for the given key, or waits for the result of a fetch for the same key that is
+     * already in progress.
+     *
+     * @param key is the key for the fetch
+     * @param fetch is the fetch to be performed if there is none already in progress for the key
+     * @param timeoutMillis is the maximum time to wait for the fetch, or 0 to wait indefinitely
+     * @return the result of the fetch
+     * @throws InterruptedException if the thread was interrupted while waiting for the fetch in progress
+     * @throws TimeoutException if the fetch did not complete within the timeout
+     */
+    V execute(final K key, final Fetch<V> fetch, long timeoutMillis) throws InterruptedException, TimeoutException {
+        final Call<V> call = new Call<>();
+        Call<V> existing = calls.putIfAbsent(key, call);
+        if (existing != null)
+            return await(existing, timeoutMillis);
+
+        // we are the first caller for the key so perform the fetch, on the executor if we may need to stop
+        // waiting for it
+        if ((executor != null) && (timeoutMillis > 0)) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            perform(key, call, fetch);
+                        }
+                        catch (RuntimeException e) {
+                            // the failure is provided to all of the waiters
+                        }
+                    }
+                });
+                return await(call, timeoutMillis);
+            }
+            catch (RejectedExecutionException e) {
+                // the fetch is performed on this thread instead
+            }
+        }
+        return perform(key, call, fetch);
+    }
+
+    /**
+     * Starts a fetch for the given key without blocking, or joins a fetch for the same key that is
+     * already in progress. The callback is made when the fetch completes, which may be immediately.
+     *
+     * @param key is the key for the fetch
+     * @param fetch is the fetch to be started if there is none already in progress for the key
+     * @param callback is the callback for the result of the fetch
+     */
+    void executeAsync(final K key, AsyncFetch<V> fetch, Callback<V> callback) {
+        final Call<V> call = new Call<>();
+        Call<V> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            existing.addCallback(callback);
+            return;
+        }
+        call.addCallback(callback);
+        try {
+            fetch.start(new Callback<V>() {
+                @Override
+                public void completed(V result) {
+                    calls.remove(key, call);
+                    call.complete(result, null);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            calls.remove(key, call);
+            call.complete(null, e);
+        }
+    }
+
+    /**
+     * Performs a fetch and provides the result to any waiters.
+     *
+     * @param key is the key for the fetch
+     * @param call is the fetch in progress for the key
+     * @param fetch is the fetch to be performed
+     * @return the result of the fetch
+     */
+    private V perform(K key, Call<V> call, Fetch<V> fetch) {
+        V result;
+        try {
+            result = fetch.fetch();
+        }
+        catch (RuntimeException e) {
+            calls.remove(key, call);
+            call.complete(null, e);
+            throw e;
+        }
+        calls.remove(key, call);
+        call.complete(result, null);
+        return result;
+    }
+
+    /**
+     * Gets the number of fetches currently in progress.
+     *
+     * @return the number of keys with a fetch in progress
+     */
+    int getInFlightCount() {
+        return calls.size();
+    }
+
+    /**
+     * Waits for a fetch in progress to complete.
+     *
+     * @param call is the fetch in progress
+     * @param timeoutMillis is the maximum time to wait, or 0 to wait indefinitely
+     * @return the result of the fetch
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws TimeoutException if the fetch did not complete within the timeout
+     */
+    private V await(Call<V> call, long timeoutMillis) throws InterruptedException, TimeoutException {
+        if (timeoutMillis <= 0)
+            call.done.await();
+        else if (!call.done.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("timed out waiting for fetch in progress");
+        if (call.failure != null)
+            throw call.failure;
+        return call.result;
+    }
+}
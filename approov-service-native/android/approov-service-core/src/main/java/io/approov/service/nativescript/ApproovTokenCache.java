@@ -0,0 +1,310 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.ByteString;
+
+// ApproovTokenCache holds the most recent Approov token obtained for each host so that it can be reused
+// by subsequent requests, rather than asking the SDK again, until shortly before the token expires. The
+// expiry is read from the "exp" claim of the token itself. Tokens fetched with a binding header value are
+// cached separately for each host and binding key, which is a hash of the value, since a token is only
+// valid for requests carrying the same value. The number of these is bounded as there may be any number of
+// binding values over the lifetime of the app.
+// Any token fetches that were started before the cache was invalidated are not able to add their
+// result afterwards. Hosts for which no token is issued, because they are not protected by Approov, are
+// also remembered until the cache is invalidated by the next configuration change, so that repeated
+// requests to them do not ask the SDK again.
+final class ApproovTokenCache {
+    // default number of seconds before the expiry of a token at which it is no longer reused
+    static final long DEFAULT_MARGIN_SECONDS = 10;
+
+    // maximum number of hosts for which a fetch status without a token is remembered
+    static final int UNPROTECTED_CAPACITY = 256;
+
+    // maximum number of tokens fetched with a binding header value that are cached
+    static final int BOUND_CAPACITY = 256;
+
+    // a cached token along with the information needed to determine whether it can be reused
+    private static final class Entry {
+        // the Approov token itself
+        final String token;
+
+        // time in milliseconds since the epoch at which the token should no longer be reused
+        final long reuseUntilMillis;
+
+        // generation of the cache when the fetch for the token was started
+        final long generation;
+
+        Entry(String token, long reuseUntilMillis, long generation) {
+            this.token = token;
+            this.reuseUntilMillis = reuseUntilMillis;
+            this.generation = generation;
+        }
+    }
+
+    // the fetch status of a host for which no token is issued
+    private static final class Unprotected {
+        // the fetch status
+        final ApproovFetchStatus status;
+
+        // generation of the cache when the fetch for the status was started
+        final long generation;
+
+        Unprotected(ApproovFetchStatus status, long generation) {
+            this.status = status;
+            this.generation = generation;
+        }
+    }
+
+    // map of hosts to their most recently cached token fetched without a binding header value
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // bounded map of hosts and binding keys to their most recently cached token
+    private final ApproovLruCache<String, Entry> boundEntries = new ApproovLruCache<>(BOUND_CAPACITY);
+
+    // bounded map of hosts to their fetch status if no token is issued for them
+    private final ApproovLruCache<String, Unprotected> unprotected = new ApproovLruCache<>(UNPROTECTED_CAPACITY);
+
+    // generation of the cache, which is incremented each time it is invalidated
+    private final AtomicLong generation = new AtomicLong();
+
+    // number of milliseconds before the expiry of a token at which it is no longer reused
+    private volatile long marginMillis = DEFAULT_MARGIN_SECONDS * 1000;
+
+    // count of lookups that were satisfied from the cache
+    private final AtomicLong hits = new AtomicLong();
+
+    // count of lookups that required a token to be fetched
+    private final AtomicLong misses = new AtomicLong();
+
+    // count of lookups for hosts known not to be protected, each of which avoided a token fetch
+    private final AtomicLong unprotectedHits = new AtomicLong();
+
+    /**
+     * Sets the safety margin before the expiry of a token at which it is no longer reused.
+     *
+     * @param marginSeconds is the margin in seconds
+     */
+    void setMargin(long marginSeconds) {
+        marginMillis = marginSeconds * 1000;
+    }
+
+    /**
+     * Gets the current generation of the cache. This should be obtained before starting a token fetch
+     * and passed to put with the result, so that the result is discarded if the cache has been
+     * invalidated in the meantime.
+     *
+     * @return the current generation
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Gets the binding key for a binding header value, under which tokens fetched with the value are cached.
+     * This is the SHA256 hash of the value so that the values themselves, which are often credentials, are
+     * not retained.
+     *
+     * @param bindingValue is the binding header value, or null if there is none
+     * @return the binding key, or null if there is no binding header value
+     */
+    static String getBindingKey(String bindingValue) {
+        if (bindingValue == null)
+            return null;
+        return ByteString.encodeUtf8(bindingValue).sha256().base64();
+    }
+
+    /**
+     * Gets a cached token for the given host that can still be reused.
+     *
+     * @param host is the host for which the token is required
+     * @param bindingKey is the binding key for the request, or null if there is no binding header value
+     * @return the cached token, or null if there is no reusable token
+     */
+    String get(String host, String bindingKey) {
+        Entry entry = (bindingKey == null) ? entries.get(host) : boundEntries.get(host + '\n' + bindingKey);
+        if ((entry != null) && (entry.generation == generation.get()) &&
+                (System.currentTimeMillis() < entry.reuseUntilMillis)) {
+            hits.incrementAndGet();
+            return entry.token;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Gets the remembered fetch status for a host for which no token is issued. A status is only remembered
+     * if it cannot change without a configuration change, which are UNKNOWN_URL, UNPROTECTED_URL and
+     * NO_APPROOV_SERVICE.
+     *
+     * @param host is the host of the request
+     * @return the remembered fetch status, or null if there is none
+     */
+    ApproovFetchStatus getUnprotectedStatus(String host) {
+        Unprotected entry = unprotected.get(host);
+        if ((entry != null) && (entry.generation == generation.get())) {
+            unprotectedHits.incrementAndGet();
+            return entry.status;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the fetch status for a host if it shows that no token is issued for the host. The status
+     * is not added if the cache has been invalidated since the fetch was started.
+     *
+     * @param host is the host for which the fetch was made
+     * @param status is the status of the fetch
+     * @param fetchGeneration is the generation of the cache obtained before the fetch was started
+     */
+    void putStatus(String host, ApproovFetchStatus status, long fetchGeneration) {
+        if ((status != ApproovFetchStatus.UNKNOWN_URL) && (status != ApproovFetchStatus.UNPROTECTED_URL) &&
+                (status != ApproovFetchStatus.NO_APPROOV_SERVICE))
+            return;
+        unprotected.put(host, new Unprotected(status, fetchGeneration));
+
+        // if the cache was invalidated while the status was being added then make sure it is not left behind
+        if (fetchGeneration != generation.get())
+            unprotected.remove(host);
+    }
+
+    /**
+     * Gets the time until which the cached token for a host, fetched without a binding header value, can
+     * still be reused. This does not count as a lookup.
+     *
+     * @param host is the host whose token is being checked
+     * @return the time in milliseconds since the epoch, or 0 if there is no reusable token
+     */
+    long getReuseUntilMillis(String host) {
+        Entry entry = entries.get(host);
+        if ((entry != null) && (entry.generation == generation.get()) &&
+                (System.currentTimeMillis() < entry.reuseUntilMillis))
+            return entry.reuseUntilMillis;
+        return 0;
+    }
+
+    /**
+     * Adds a newly fetched token to the cache, replacing any previous token for the host and binding key.
+     * The token is not added if it does not have an expiry time or if the cache has been invalidated since
+     * the fetch was started.
+     *
+     * @param host is the host for which the token was fetched
+     * @param bindingKey is the binding key the token was fetched for, or null if there was no binding header value
+     * @param token is the fetched Approov token
+     * @param fetchGeneration is the generation of the cache obtained before the fetch was started
+     */
+    void put(String host, String bindingKey, String token, long fetchGeneration) {
+        long expiryMillis = getExpiryMillis(token);
+        if (expiryMillis <= 0)
+            return;
+        long reuseUntilMillis = expiryMillis - marginMillis;
+        if (reuseUntilMillis <= System.currentTimeMillis())
+            return;
+        Entry entry = new Entry(token, reuseUntilMillis, fetchGeneration);
+        if (bindingKey == null) {
+            entries.put(host, entry);
+
+            // if the cache was invalidated while the token was being added then make sure it is not left behind
+            if (fetchGeneration != generation.get())
+                entries.remove(host);
+        }
+        else {
+            String key = host + '\n' + bindingKey;
+            boundEntries.put(key, entry);
+            if (fetchGeneration != generation.get())
+                boundEntries.remove(key);
+        }
+    }
+
+    /**
+     * Invalidates all of the cached tokens.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+        boundEntries.clear();
+        unprotected.clear();
+    }
+
+    /**
+     * Gets the number of lookups that were satisfied from the cache.
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that required a token to be fetched.
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of lookups for hosts known not to be protected, each of which avoided a token fetch.
+     *
+     * @return the number of token fetches avoided
+     */
+    long getUnprotectedHits() {
+        return unprotectedHits.get();
+    }
+
+    /**
+     * Gets the expiry time of an Approov token from the "exp" claim in its payload.
+     *
+     * @param token is the JWT to be examined
+     * @return the expiry time in milliseconds since the epoch, or 0 if it could not be determined
+     */
+    static long getExpiryMillis(String token) {
+        // extract the payload part of the JWT
+        int payloadStart = token.indexOf('.');
+        if (payloadStart < 0)
+            return 0;
+        int payloadEnd = token.indexOf('.', payloadStart + 1);
+        if (payloadEnd < 0)
+            return 0;
+        ByteString payload = ByteString.decodeBase64(token.substring(payloadStart + 1, payloadEnd));
+        if (payload == null)
+            return 0;
+
+        // find the numeric value of the "exp" claim in the JSON - the claims are generated by the Approov
+        // cloud service so a full JSON parse is not required
+        String claims = payload.utf8();
+        int pos = claims.indexOf("\"exp\"");
+        if (pos < 0)
+            return 0;
+        pos += 5;
+        while ((pos < claims.length()) && (Character.isWhitespace(claims.charAt(pos)) || (claims.charAt(pos) == ':')))
+            pos++;
+        long expirySeconds = 0;
+        int digits = 0;
+        while ((pos < claims.length()) && (claims.charAt(pos) >= '0') && (claims.charAt(pos) <= '9') && (digits < 18)) {
+            expirySeconds = (expirySeconds * 10) + (claims.charAt(pos) - '0');
+            pos++;
+            digits++;
+        }
+        return expirySeconds * 1000;
+    }
+}
@@ -0,0 +1,307 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ApproovTokenRefresher refreshes the cached Approov tokens of recently used hosts in the background shortly
+// before they stop being reused, so that requests do not normally have to wait for a token fetch. A host is
+// tracked from its first successfully protected request and is dropped once it has not been used for the idle
+// period. Each refresh is brought forward by a random jitter so that the refreshes of different hosts are spread
+// out, and refreshes run on a small pool of daemon threads which caps the number in progress at once. Refreshing
+// is paused while the app is in the background. Only tokens fetched without a binding header value are
+// refreshed, since a bound token can only be fetched for the binding value of a particular request.
+final class ApproovTokenRefresher {
+    /**
+     * Interface for the refresh of the token for a host.
+     */
+    interface Refresh {
+        /**
+         * Fetches a new token for a host, adding it to the token cache. This may block.
+         *
+         * @param host is the host whose token is refreshed
+         */
+        void refresh(String host);
+    }
+
+    // default number of seconds before a cached token stops being reused at which it is refreshed
+    static final long DEFAULT_LEAD_SECONDS = 20;
+
+    // default maximum number of seconds by which each refresh is randomly brought forward
+    static final long DEFAULT_JITTER_SECONDS = 10;
+
+    // default number of seconds without a request after which a host is no longer refreshed
+    static final long DEFAULT_IDLE_SECONDS = 300;
+
+    // maximum number of refreshes that may be in progress at once
+    static final int MAX_CONCURRENT_REFRESHES = 2;
+
+    // logging tag
+    private static final String TAG = "ApproovService";
+
+    // a host whose token is being kept fresh
+    private static final class Host {
+        // time in milliseconds since the epoch of the most recent protected request to the host
+        volatile long lastUsedMillis;
+
+        // the scheduled or running refresh for the host, or null if there is none - this is only changed
+        // while holding the lock of the refresher
+        volatile ScheduledFuture<?> refresh;
+
+        Host(long lastUsedMillis) {
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    // cache holding the tokens to be refreshed
+    private final ApproovTokenCache tokenCache;
+
+    // refresh performed for each host
+    private final Refresh refresh;
+
+    // map of the tracked hosts
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    // source of the random jitter for each refresh
+    private final Random random = new Random();
+
+    // number of milliseconds before a cached token stops being reused at which it is refreshed, or 0 if disabled
+    private volatile long leadMillis = DEFAULT_LEAD_SECONDS * 1000;
+
+    // maximum number of milliseconds by which each refresh is randomly brought forward
+    private volatile long jitterMillis = DEFAULT_JITTER_SECONDS * 1000;
+
+    // number of milliseconds without a request after which a host is no longer refreshed
+    private volatile long idleMillis = DEFAULT_IDLE_SECONDS * 1000;
+
+    // executor running the refreshes, or null if it has not been created or refreshing is paused - guarded by this
+    private ScheduledThreadPoolExecutor executor = null;
+
+    // true if refreshing is paused because the app is in the background - guarded by this
+    private boolean paused = false;
+
+    // count of refreshes performed
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Construct a new ApproovTokenRefresher.
+     *
+     * @param tokenCache is the cache holding the tokens to be refreshed
+     * @param refresh is the refresh to be performed for each host
+     */
+    ApproovTokenRefresher(ApproovTokenCache tokenCache, Refresh refresh) {
+        this.tokenCache = tokenCache;
+        this.refresh = refresh;
+    }
+
+    /**
+     * Sets the timing of refreshes. A lead of 0 disables refreshing, in which case any hosts are dropped
+     * when their next refresh would have been made.
+     *
+     * @param leadSeconds is the number of seconds before a cached token stops being reused at which it is refreshed
+     * @param jitterSeconds is the maximum number of seconds by which each refresh is randomly brought forward
+     * @param idleSeconds is the number of seconds without a request after which a host is no longer refreshed
+     */
+    void setTiming(long leadSeconds, long jitterSeconds, long idleSeconds) {
+        leadMillis = leadSeconds * 1000;
+        jitterMillis = jitterSeconds * 1000;
+        idleMillis = idleSeconds * 1000;
+    }
+
+    /**
+     * Records that a request to a host has been protected with a token fetched without a binding header
+     * value, so that its token is refreshed before it expires. This is called for every such request so the
+     * common case of a host whose refresh is already scheduled does not take any lock.
+     *
+     * @param host is the host of the request
+     */
+    void touch(String host) {
+        if (leadMillis == 0)
+            return;
+        long now = System.currentTimeMillis();
+        Host tracked = hosts.get(host);
+        if (tracked != null) {
+            tracked.lastUsedMillis = now;
+            if (tracked.refresh != null)
+                return;
+        }
+        synchronized (this) {
+            tracked = hosts.get(host);
+            if (tracked == null) {
+                tracked = new Host(now);
+                hosts.put(host, tracked);
+            }
+            if (tracked.refresh == null)
+                schedule(host, tracked, false);
+        }
+    }
+
+    /**
+     * Pauses refreshing, cancelling any scheduled refreshes and stopping the refresh threads. This should be
+     * called when the app moves to the background. Any refresh already in progress is allowed to complete.
+     */
+    synchronized void pause() {
+        if (paused)
+            return;
+        paused = true;
+        for (Host tracked: hosts.values()) {
+            ScheduledFuture<?> scheduled = tracked.refresh;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                tracked.refresh = null;
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        ApproovLog.d(TAG, "token refresh paused");
+    }
+
+    /**
+     * Resumes refreshing after it was paused. This should be called when the app returns to the foreground.
+     * Any tracked host that has not gone idle but whose token expired while refreshing was paused is refreshed
+     * immediately, so that it is ready for the next request.
+     */
+    synchronized void resume() {
+        if (!paused)
+            return;
+        paused = false;
+        for (Map.Entry<String, Host> entry: hosts.entrySet()) {
+            if (entry.getValue().refresh == null)
+                schedule(entry.getKey(), entry.getValue(), true);
+        }
+        ApproovLog.d(TAG, "token refresh resumed");
+    }
+
+    /**
+     * Gets the number of refreshes that have been performed.
+     *
+     * @return the number of refreshes
+     */
+    long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Gets the number of hosts currently being kept fresh.
+     *
+     * @return the number of tracked hosts
+     */
+    int getHostCount() {
+        return hosts.size();
+    }
+
+    /**
+     * Schedules the next refresh for a host. This must be called while holding the lock.
+     *
+     * @param host is the host to be refreshed
+     * @param tracked is the tracking state of the host
+     * @param refreshExpired is true if the host should be refreshed immediately if it has no reusable token,
+     *        or false if it should be dropped until its next request
+     */
+    private void schedule(final String host, final Host tracked, boolean refreshExpired) {
+        if (paused || (leadMillis == 0))
+            return;
+        long delayMillis = 0;
+        long reuseUntilMillis = tokenCache.getReuseUntilMillis(host);
+        if (reuseUntilMillis != 0) {
+            // refresh ahead of the lead time with some jitter, but never earlier than halfway through the
+            // remaining lifetime so that short lived tokens are not refreshed continuously
+            long remainingMillis = reuseUntilMillis - System.currentTimeMillis();
+            long jitter = (long) (random.nextDouble() * jitterMillis);
+            delayMillis = remainingMillis - Math.min(leadMillis + jitter, remainingMillis / 2);
+        }
+        else if (!refreshExpired) {
+            hosts.remove(host, tracked);
+            return;
+        }
+        if (executor == null)
+            executor = createExecutor();
+        tracked.refresh = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshHost(host, tracked);
+            }
+        }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the token for a host, unless it has gone idle, and schedules its next refresh.
+     *
+     * @param host is the host to be refreshed
+     * @param tracked is the tracking state of the host
+     */
+    private void refreshHost(String host, Host tracked) {
+        synchronized (this) {
+            if (paused || (hosts.get(host) != tracked))
+                return;
+            if ((leadMillis == 0) || (System.currentTimeMillis() - tracked.lastUsedMillis >= idleMillis)) {
+                hosts.remove(host, tracked);
+                tracked.refresh = null;
+                if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                    ApproovLog.d(TAG, "token refresh stopped for idle " + host);
+                return;
+            }
+        }
+
+        // the refresh remains set while the fetch is in progress so that requests do not schedule another
+        try {
+            refresh.refresh(host);
+            refreshes.incrementAndGet();
+            if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                ApproovLog.d(TAG, "token refreshed for " + host);
+        }
+        catch (RuntimeException e) {
+            ApproovLog.e(TAG, "token refresh for " + host + " failed: " + e);
+        }
+        synchronized (this) {
+            tracked.refresh = null;
+            if (hosts.get(host) == tracked)
+                schedule(host, tracked, false);
+        }
+    }
+
+    /**
+     * Creates the executor for refreshes, which uses daemon threads so that it never prevents the process
+     * from exiting. Cancelled refreshes are removed from its queue immediately.
+     *
+     * @return the executor
+     */
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(MAX_CONCURRENT_REFRESHES,
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovTokenRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,139 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// ApproovTrace is a fixed size ring buffer of structured trace events for the stages of protected requests,
+// so that recent activity can be examined on demand without logging each request. Recording is lock free:
+// each event claims the next sequence number and is written to the slot for that number, replacing the
+// oldest event once the buffer is full. No strings are formatted until the trace is dumped.
+final class ApproovTrace {
+    // a single trace event
+    private static final class Event {
+        // sequence number of the event, used to order the events when dumped
+        final long sequence;
+
+        // time of the event in milliseconds since the epoch
+        final long timeMillis;
+
+        // the stage that completed
+        final ApproovMetrics.Stage stage;
+
+        // the host of the request, or null if not known
+        final String host;
+
+        // the outcome of the stage
+        final String outcome;
+
+        // the duration of the stage in nanoseconds
+        final long durationNanos;
+
+        Event(long sequence, long timeMillis, ApproovMetrics.Stage stage, String host, String outcome,
+              long durationNanos) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.stage = stage;
+            this.host = host;
+            this.outcome = outcome;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    // slots holding the most recent events, the number of which is a power of two
+    private final AtomicReferenceArray<Event> slots;
+
+    // mask to obtain the slot index from a sequence number
+    private final int mask;
+
+    // the next sequence number to be used
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * Construct a new ApproovTrace.
+     *
+     * @param capacity is the maximum number of events held, which is rounded up to a power of two
+     */
+    ApproovTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        if (size < capacity)
+            size <<= 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Gets the number of events that may be held.
+     *
+     * @return the capacity of the buffer
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Records an event, replacing the oldest event if the buffer is full.
+     *
+     * @param stage is the stage that has completed
+     * @param host is the host of the request, or null if not known
+     * @param outcome is the outcome of the stage
+     * @param durationNanos is the duration of the stage in nanoseconds
+     */
+    void record(ApproovMetrics.Stage stage, String host, String outcome, long durationNanos) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Event(sequence, System.currentTimeMillis(), stage, host, outcome,
+                durationNanos));
+    }
+
+    /**
+     * Gets the events held as a JSON array, oldest first. Each event is an object with the "time" in milliseconds
+     * since the epoch, the "stage", the "host", the "outcome" and the duration in "micros". Events recorded while
+     * the dump is in progress may or may not be included.
+     *
+     * @return String of the JSON array of events
+     */
+    String toJSON() {
+        // the events are read from the oldest slot onwards, skipping any that have been overwritten by newer
+        // events during the dump or that are still being written
+        long end = nextSequence.get();
+        long start = Math.max(0, end - slots.length());
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (long sequence = start; sequence < end; sequence++) {
+            Event event = slots.get((int) (sequence & mask));
+            if ((event == null) || (event.sequence != sequence))
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"time\":").append(event.timeMillis)
+                .append(",\"stage\":\"").append(event.stage.jsonName)
+                .append("\",\"host\":");
+            if (event.host == null)
+                json.append("null");
+            else
+                ApproovMetrics.appendString(json, event.host);
+            json.append(",\"outcome\":\"").append(event.outcome)
+                .append("\",\"micros\":").append(event.durationNanos / 1000)
+                .append('}');
+        }
+        return json.append(']').toString();
+    }
+}
@@ -17,8 +17,6 @@
 
 package io.approov.service.nativescript;
 
-import android.util.Log;
-
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
@@ -30,7 +28,9 @@ import javax.net.ssl.HttpsURLConnection;
 
 // ApproovURLStreamHandler provides a special URLStreamHandler for adding Approov protection to
 // requests. This becomes the default https handlerb but is able to delegate network functionality
-// to the original.
+// to the original. Connections are normally opened on the original by constructing a URL bound to it
+// and using the public openConnection, which avoids the cost of a reflective call for every request.
+// Reflection on the protected openConnection of the original is only used as a fallback.
 class ApproovURLStreamHandler extends URLStreamHandler {
     // logging tag
     private static final String TAG = "ApproovService";
@@ -38,32 +38,40 @@ class ApproovURLStreamHandler extends URLStreamHandler {
     // the original URLStreamHandler that we delegate to
     private URLStreamHandler delegate;
 
+    // the processor that adds Approov protection to requests
+    private final ApproovRequestProcessor processor;
+
     // delegate open connection method to be called, or null if it could not be found
     Method delegateOpenConnMethod;
 
+    // true if connections can be opened by binding URLs directly to the delegate
+    volatile boolean directDispatch = true;
+
     /**
      * Create a new ApproovURLStreamHandler wth the original https URLStreamHandler implementation
      * that should be delegated to.
      *
      * @param delegate is the original https URLSteamHandler
+     * @param processor is the processor that adds Approov protection to requests
      */
-    public ApproovURLStreamHandler(URLStreamHandler delegate) {
+    public ApproovURLStreamHandler(URLStreamHandler delegate, ApproovRequestProcessor processor) {
         // use reflection to find the method on the delegate that implements openConnection so we
         // can invoke it as required
         this.delegate = delegate;
+        this.processor = processor;
         delegateOpenConnMethod = null;
         try {
             delegateOpenConnMethod = delegate.getClass().getDeclaredMethod("openConnection", URL.class);
-            Log.d(TAG, "delegate openConnection method found in class");
+            ApproovLog.d(TAG, "delegate openConnection method found in class");
         }
         catch (NoSuchMethodException e) {
             // the method may actually be defined on the superclass so try that next
             try {
                 delegateOpenConnMethod = delegate.getClass().getSuperclass().getDeclaredMethod("openConnection", URL.class);
-                Log.d(TAG, "delegate openConnection method found in superclass");
+                ApproovLog.d(TAG, "delegate openConnection method found in superclass");
             }
             catch (NoSuchMethodException ee) {
-                Log.e(TAG, "delegate openConnection method not found: " + ee);
+                ApproovLog.e(TAG, "delegate openConnection method not found: " + ee);
             }
         }
 
@@ -79,38 +87,80 @@ class ApproovURLStreamHandler extends URLStreamHandler {
 
     @Override
     protected URLConnection openConnection(URL url) throws IOException {
-        // if we failed to find the delegate openConnection method then all requests fail
-        if (delegateOpenConnMethod == null)
-            throw new IOException("delegate openConnection method was not found");
-
         // we substitute any query parameters
-        URL substitutedURL = ApproovServiceNative.substituteQueryParams(url);
+        URL substitutedURL = processor.substituteQueryParams(url);
 
         // now we delegate to the original openConnection method and wrap the result in
         // an Approov protected connection
-        try {
-            URLConnection urlConn = (URLConnection)delegateOpenConnMethod.invoke(delegate, substitutedURL);
-            if (urlConn instanceof HttpsURLConnection) {
-                // if the result is an https connection then we wrap it with Approov protection
-                return new ApproovHttpsURLConnection(url, (HttpsURLConnection) urlConn);
+        URLConnection urlConn = openDelegateConnection(substitutedURL);
+        if (urlConn instanceof HttpsURLConnection) {
+            // if the result is an https connection then we wrap it with Approov protection
+            return new ApproovHttpsURLConnection(url, (HttpsURLConnection) urlConn, processor);
+        }
+        else
+            // return all other connection types unwrapped
+            return urlConn;
+    }
+
+    /**
+     * Opens a connection using the delegate. This constructs an equivalent URL that is bound to the
+     * delegate handler so that its openConnection can be called through the public API. If that is
+     * not permitted then the reflective call to the delegate openConnection method is used instead.
+     *
+     * @param url is the URL to be opened
+     * @return URLConnection the connection opened by the delegate
+     * @throws IOException if the connection could not be opened
+     */
+    private URLConnection openDelegateConnection(URL url) throws IOException {
+        if (directDispatch) {
+            try {
+                // the URL is rebuilt from its components, which is cheaper than parsing the whole of it again,
+                // unless it has user information which would otherwise be lost
+                URL delegateURL;
+                if (url.getUserInfo() == null) {
+                    String file = (url.getRef() == null) ? url.getFile() : url.getFile() + '#' + url.getRef();
+                    delegateURL = new URL(url.getProtocol(), url.getHost(), url.getPort(), file, delegate);
+                }
+                else
+                    delegateURL = new URL(null, url.toExternalForm(), delegate);
+                return delegateURL.openConnection();
             }
-            else
-                // return all other connection types unwrapped
-                return urlConn;
+            catch (SecurityException e) {
+                ApproovLog.e(TAG, "direct delegate openConnection not permitted, using reflection: " + e);
+                directDispatch = false;
+            }
+        }
+        return invokeDelegateOpenConnection(url);
+    }
+
+    /**
+     * Opens a connection by calling the protected openConnection method of the delegate using
+     * reflection.
+     *
+     * @param url is the URL to be opened
+     * @return URLConnection the connection opened by the delegate
+     * @throws IOException if the connection could not be opened
+     */
+    private URLConnection invokeDelegateOpenConnection(URL url) throws IOException {
+        // if we failed to find the delegate openConnection method then all requests fail
+        if (delegateOpenConnMethod == null)
+            throw new IOException("delegate openConnection method was not found");
+        try {
+            return (URLConnection)delegateOpenConnMethod.invoke(delegate, url);
         }
         catch (IllegalAccessException e) {
-            Log.e(TAG, "openConnection method illegal access: " + e);
+            ApproovLog.e(TAG, "openConnection method illegal access: " + e);
             throw new IOException("openConnection method illegal access");
         }
         catch (InvocationTargetException e) {
             if (e.getCause() instanceof IOException) {
                 // handle the delegated openConnection throwing an IOException and rethrow it
-                Log.e(TAG, "openConnection throws IOException: " + e.getCause());
+                ApproovLog.e(TAG, "openConnection throws IOException: " + e.getCause());
                 throw (IOException) e.getCause();
             }
             else {
                 // we have an unexpected exception from the invocation
-                Log.e(TAG, "openConnection unexpected invocation exception: " + e);
+                ApproovLog.e(TAG, "openConnection unexpected invocation exception: " + e);
                 throw new IOException("openConnection unexpected invocation exception");
             }
         }
@@ -0,0 +1,244 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.nativescript;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// ApproovURLSubstituter performs secure string substitutions on a URL in a single pass. Query parameters
+// whose key has been registered for substitution have their value replaced by the secure string it
+// names. This follows the same rules as the regular expression "[\?&]key=([^&;]+)" that was previously
+// applied for each key: the parameter may follow any "?" or "&" in the URL, its value runs up to the
+// next "&" or ";" and only the first occurrence of each key is substituted. Optionally, path segments
+// may also contain templates of the form "{approov:key}" (or with the braces percent encoded) that are
+// replaced by the percent encoded secure string with the given key. The URL is only rebuilt if a
+// substitution is actually made.
+final class ApproovURLSubstituter {
+    /**
+     * Interface for looking up the replacement for a substitution.
+     */
+    interface Lookup {
+        /**
+         * Looks up the secure string value to be substituted.
+         *
+         * @param name is the query parameter key name, or the secure string key for a path template
+         * @param key is the secure string key to be looked up
+         * @param isPathTemplate is true if the substitution is for a path template, false for a query parameter
+         * @return the value to be substituted, or null if no substitution should be made
+         * @throws IOException if the substitution cannot be made and the request should fail
+         */
+        String lookup(String name, String key, boolean isPathTemplate) throws IOException;
+    }
+
+    // opening of a path template
+    private static final String TEMPLATE_START = "{approov:";
+
+    // opening of a path template with a percent encoded brace
+    private static final String ENCODED_TEMPLATE_START = "%7Bapproov:";
+
+    // characters that may appear unencoded in a path segment
+    private static final String PATH_SEGMENT_CHARS = "-._~!$&'()*+,;=:@";
+
+    // hex digits for percent encoding
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // UTF-8 character set for percent encoding
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // unmodifiable set of query parameter key names registered for substitution
+    final Set<String> queryKeys;
+
+    // true if path templates should be substituted
+    final boolean pathTemplates;
+
+    /**
+     * Construct an ApproovURLSubstituter.
+     *
+     * @param queryKeys is the set of query parameter key names registered for substitution
+     * @param pathTemplates is true if path templates should be substituted
+     */
+    ApproovURLSubstituter(Set<String> queryKeys, boolean pathTemplates) {
+        this.queryKeys = Collections.unmodifiableSet(new HashSet<>(queryKeys));
+        this.pathTemplates = pathTemplates;
+    }
+
+    /**
+     * Determines whether any substitution could be made by this substituter.
+     *
+     * @return true if there are registered query parameter keys or path templates are enabled
+     */
+    boolean isActive() {
+        return pathTemplates || !queryKeys.isEmpty();
+    }
+
+    /**
+     * Performs all of the substitutions on a URL.
+     *
+     * @param url is the URL string to be substituted
+     * @param lookup is used to obtain the replacement values
+     * @return the substituted URL string, or the same instance if no substitutions were made
+     * @throws IOException if any lookup fails
+     */
+    String substitute(String url, Lookup lookup) throws IOException {
+        StringBuilder out = null;
+        int copied = 0;
+
+        // find the extent of the path, which runs from the end of the authority to the start of any query
+        int queryStart = url.indexOf('?');
+        int pathEnd = (queryStart < 0) ? url.length() : queryStart;
+        int pathStart = 0;
+        int schemeEnd = url.indexOf("://");
+        if ((schemeEnd >= 0) && (schemeEnd < pathEnd)) {
+            pathStart = url.indexOf('/', schemeEnd + 3);
+            if ((pathStart < 0) || (pathStart > pathEnd))
+                pathStart = pathEnd;
+        }
+
+        // substitute any path templates
+        if (pathTemplates) {
+            int pos = pathStart;
+            while (pos < pathEnd) {
+                int templateStart = url.indexOf(TEMPLATE_START, pos);
+                int keyStart = templateStart + TEMPLATE_START.length();
+                String templateEnd = "}";
+                int encodedStart = indexOfIgnoreCase(url, ENCODED_TEMPLATE_START, pos, pathEnd);
+                if ((encodedStart >= 0) && ((templateStart < 0) || (encodedStart < templateStart))) {
+                    templateStart = encodedStart;
+                    keyStart = templateStart + ENCODED_TEMPLATE_START.length();
+                    templateEnd = "%7D";
+                }
+                if ((templateStart < 0) || (templateStart >= pathEnd))
+                    break;
+                int keyEnd = indexOfIgnoreCase(url, templateEnd, keyStart, pathEnd);
+                int slash = url.indexOf('/', keyStart);
+                if ((keyEnd <= keyStart) || ((slash >= 0) && (slash < keyEnd))) {
+                    // not a complete template within a single path segment
+                    pos = keyStart;
+                    continue;
+                }
+                String key = url.substring(keyStart, keyEnd);
+                String value = lookup.lookup(key, key, true);
+                int next = keyEnd + templateEnd.length();
+                if (value != null) {
+                    if (out == null)
+                        out = new StringBuilder(url.length() + value.length());
+                    out.append(url, copied, templateStart);
+                    encodePathSegment(value, out);
+                    copied = next;
+                }
+                pos = next;
+            }
+        }
+
+        // substitute any registered query parameters, which are only found after the "?" that starts the query
+        // so that the path, including anything already copied with substituted path templates, is never rescanned
+        if (!queryKeys.isEmpty() && (queryStart >= 0)) {
+            Set<String> substituted = null;
+            int pos = Math.max(queryStart, copied);
+            while (pos < url.length()) {
+                char c = url.charAt(pos);
+                if ((c != '?') && (c != '&')) {
+                    pos++;
+                    continue;
+                }
+
+                // find the end of the parameter name
+                int nameStart = pos + 1;
+                int nameEnd = nameStart;
+                while ((nameEnd < url.length()) && (url.charAt(nameEnd) != '=') && (url.charAt(nameEnd) != '&') &&
+                        (url.charAt(nameEnd) != '?'))
+                    nameEnd++;
+                if ((nameEnd >= url.length()) || (url.charAt(nameEnd) != '=')) {
+                    pos = nameEnd;
+                    continue;
+                }
+
+                // find the end of the value
+                int valueStart = nameEnd + 1;
+                int valueEnd = valueStart;
+                while ((valueEnd < url.length()) && (url.charAt(valueEnd) != '&') && (url.charAt(valueEnd) != ';'))
+                    valueEnd++;
+                String name = url.substring(nameStart, nameEnd);
+                if ((valueEnd > valueStart) && queryKeys.contains(name) && ((substituted == null) || !substituted.contains(name))) {
+                    if (substituted == null)
+                        substituted = new HashSet<>();
+                    substituted.add(name);
+                    String value = lookup.lookup(name, url.substring(valueStart, valueEnd), false);
+                    if (value != null) {
+                        if (out == null)
+                            out = new StringBuilder(url.length() + value.length());
+                        out.append(url, copied, valueStart).append(value);
+                        copied = valueEnd;
+                    }
+                    pos = valueEnd;
+                }
+                else
+                    pos = valueStart;
+            }
+        }
+
+        // only build a new URL string if something was substituted
+        if (out == null)
+            return url;
+        out.append(url, copied, url.length());
+        return out.toString();
+    }
+
+    /**
+     * Finds a string, ignoring case, within a region of another string.
+     *
+     * @param s is the string to be searched
+     * @param target is the string to be found
+     * @param from is the index at which to start searching
+     * @param to is the index at which the found string must end by
+     * @return the index of the found string, or -1 if it is not found
+     */
+    private static int indexOfIgnoreCase(String s, String target, int from, int to) {
+        for (int i = from; i + target.length() <= to; i++) {
+            if (s.regionMatches(true, i, target, 0, target.length()))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Percent encodes a value for use in a path segment.
+     *
+     * @param value is the value to be encoded
+     * @param out is the builder to receive the encoded value
+     */
+    private static void encodePathSegment(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) ||
+                    (PATH_SEGMENT_CHARS.indexOf(c) >= 0))
+                out.append(c);
+            else {
+                int end = i + 1;
+                if (Character.isHighSurrogate(c) && (end < value.length()))
+                    end++;
+                for (byte b: value.substring(i, end).getBytes(UTF8))
+                    out.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+                i = end - 1;
+            }
+        }
+    }
+}
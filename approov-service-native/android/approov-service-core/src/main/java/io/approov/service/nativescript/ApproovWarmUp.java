@@ -0,0 +1,208 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ApproovWarmUp fetches the Approov tokens for a set of API hosts and a set of secure strings in the background,
+// so that the first requests made after startup can use cached values rather than waiting for fetches. The
+// fetches go through the same caches, and share any fetches in progress, as those made for requests. They are
+// made concurrently on a bounded pool of daemon threads that exits once the warm up is complete. The status of
+// each item is reported in a single JSON object once all of the fetches have completed.
+final class ApproovWarmUp {
+    /**
+     * Interface for receiving the result of a warm up.
+     */
+    interface Callback {
+        /**
+         * Called once all of the fetches have completed.
+         *
+         * @param resultsJSON is a JSON object with a "tokens" object giving the fetch status for each host
+         *        and a "secureStrings" object giving the fetch status for each secure string key
+         */
+        void completed(String resultsJSON);
+    }
+
+    // maximum number of fetches made at once
+    static final int MAX_CONCURRENT_FETCHES = 4;
+
+    // status reported for an item whose fetch was interrupted, timed out or failed unexpectedly
+    private static final String FAILED = "FAILED";
+
+    // logging tag
+    private static final String TAG = "ApproovService";
+
+    // the processor whose caches are warmed
+    private final ApproovRequestProcessor processor;
+
+    // the hosts whose tokens are fetched
+    private final String[] hosts;
+
+    // the secure string keys that are fetched
+    private final String[] secureStringKeys;
+
+    // the callback for the results
+    private final Callback callback;
+
+    // fetch status for each host, in the same order as the hosts
+    private final String[] tokenStatuses;
+
+    // fetch status for each secure string key, in the same order as the keys
+    private final String[] secureStringStatuses;
+
+    // number of fetches that have not yet completed
+    private final AtomicInteger remaining;
+
+    /**
+     * Construct a new ApproovWarmUp.
+     *
+     * @param processor is the processor whose caches are warmed
+     * @param hosts is the list of hosts whose tokens are fetched, ignoring any duplicates
+     * @param secureStringKeys is the list of secure string keys that are fetched, ignoring any duplicates
+     * @param callback is the callback for the results
+     */
+    ApproovWarmUp(ApproovRequestProcessor processor, List<String> hosts, List<String> secureStringKeys, Callback callback) {
+        this.processor = processor;
+        this.hosts = new LinkedHashSet<>(hosts).toArray(new String[0]);
+        this.secureStringKeys = new LinkedHashSet<>(secureStringKeys).toArray(new String[0]);
+        this.callback = callback;
+        this.tokenStatuses = new String[this.hosts.length];
+        this.secureStringStatuses = new String[this.secureStringKeys.length];
+        this.remaining = new AtomicInteger(this.hosts.length + this.secureStringKeys.length);
+    }
+
+    /**
+     * Starts the fetches, calling the callback once they have all completed. The callback is made
+     * immediately if there is nothing to fetch.
+     */
+    void start() {
+        if (remaining.get() == 0) {
+            callback.completed(toJSON());
+            return;
+        }
+        ExecutorService executor = createExecutor(Math.min(MAX_CONCURRENT_FETCHES, remaining.get()));
+        for (int i = 0; i < hosts.length; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ApproovFetchResult result = null;
+                    try {
+                        result = processor.refreshToken(hosts[index]);
+
+                        // hosts that were warmed are kept fresh as they are expected to be used
+                        if ((result != null) && (result.getStatus() == ApproovFetchStatus.SUCCESS))
+                            processor.tokenRefresher.touch(hosts[index]);
+                    }
+                    finally {
+                        tokenStatuses[index] = (result == null) ? FAILED : result.getStatus().toString();
+                        itemCompleted();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < secureStringKeys.length; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ApproovFetchResult result = null;
+                    try {
+                        result = processor.fetchSecureStringCached(secureStringKeys[index]);
+                    }
+                    finally {
+                        secureStringStatuses[index] = (result == null) ? FAILED : result.getStatus().toString();
+                        itemCompleted();
+                    }
+                }
+            });
+        }
+
+        // the threads exit once all of the fetches have been run
+        executor.shutdown();
+    }
+
+    /**
+     * Records the completion of a fetch, calling the callback if it was the last one.
+     */
+    private void itemCompleted() {
+        if (remaining.decrementAndGet() == 0) {
+            String resultsJSON = toJSON();
+            if (ApproovLog.isLoggable(ApproovLog.DEBUG))
+                ApproovLog.d(TAG, "warm up completed: " + resultsJSON);
+            callback.completed(resultsJSON);
+        }
+    }
+
+    /**
+     * Gets the statuses of the fetches as JSON. This must only be called once all of the fetches have
+     * completed, since the completion of the last one makes all of the statuses visible.
+     *
+     * @return String of the JSON results
+     */
+    private String toJSON() {
+        StringBuilder json = new StringBuilder("{\"tokens\":");
+        appendStatuses(json, hosts, tokenStatuses);
+        json.append(",\"secureStrings\":");
+        appendStatuses(json, secureStringKeys, secureStringStatuses);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Appends a JSON object mapping each item to its status.
+     *
+     * @param json is the builder to append to
+     * @param items is the array of items
+     * @param statuses is the array of the status of each item
+     */
+    private static void appendStatuses(StringBuilder json, String[] items, String[] statuses) {
+        json.append('{');
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0)
+                json.append(',');
+            ApproovMetrics.appendString(json, items[i]);
+            json.append(':');
+            ApproovMetrics.appendString(json, statuses[i]);
+        }
+        json.append('}');
+    }
+
+    /**
+     * Creates the executor for the fetches, which uses daemon threads so that it never prevents the
+     * process from exiting.
+     *
+     * @param threads is the number of threads
+     * @return the executor
+     */
+    private static ExecutorService createExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovWarmUp");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
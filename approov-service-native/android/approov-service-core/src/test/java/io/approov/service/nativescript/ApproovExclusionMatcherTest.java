@@ -0,0 +1,109 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovExclusionMatcher.
+ */
+public class ApproovExclusionMatcherTest {
+    private static final String[] REGEXES = {
+        "^https://cdn\\.example\\.com/",
+        "^https://static\\.",
+        "example\\.org/assets",
+        "cdn\\x2Eexample",
+        "cdn\\x{2E}example",
+        "cdn\\u002Eexample",
+        "foo\\0101bar",
+        "img\\cJtext",
+        "\\p{Lu}PPER/path",
+        "\\P{L}images/",
+        "\\N{FULL STOP}png",
+        "^https://(www|api)\\.example\\.net",
+        "/v[0-9]+/health",
+        "(a)bc\\1def",
+        "[\\x5D]tail",
+        "\\.jpg$",
+        "metrics?collect",
+        "(?i)UPPER",
+        "x{2}yz"
+    };
+
+    private static final String[] URLS = {
+        "https://cdn.example.com/app.js",
+        "https://static.example.com/logo.png",
+        "https://example.org/assets/x",
+        "https://foo.bar/fooAbar",
+        "https://foo.bar/img\ntext",
+        "https://foo.bar/UPPER/path",
+        "https://foo.bar/.images/",
+        "https://foo.bar/x.png",
+        "https://api.example.net/users",
+        "https://www.example.net/",
+        "https://api.example.com/v12/health",
+        "https://api.example.com/abcadef",
+        "https://api.example.com/]tail",
+        "https://api.example.com/photo.jpg",
+        "https://api.example.com/metricollect",
+        "https://api.example.com/upper",
+        "https://api.example.com/xxyz",
+        "https://api.example.com/nothing"
+    };
+
+    @Test
+    public void matchesAsFind() {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String regex: REGEXES)
+            patterns.add(Pattern.compile(regex));
+        for (Pattern pattern: patterns) {
+            ApproovExclusionMatcher matcher = new ApproovExclusionMatcher(Collections.singletonList(pattern));
+            for (String url: URLS)
+                assertEquals(pattern.pattern() + " " + url, pattern.matcher(url).find(), matcher.matches(url));
+        }
+        ApproovExclusionMatcher matcher = new ApproovExclusionMatcher(patterns);
+        for (String url: URLS) {
+            boolean expected = false;
+            for (Pattern pattern: patterns)
+                expected |= pattern.matcher(url).find();
+            assertEquals(url, expected, matcher.matches(url));
+        }
+    }
+
+    @Test
+    public void escapeSequencesAreNotLiteral() {
+        assertEquals("example", ApproovExclusionMatcher.analyze("cdn\\x2Eexample").required);
+        assertEquals("example", ApproovExclusionMatcher.analyze("cdn\\u002Eexample").required);
+        assertEquals("foo", ApproovExclusionMatcher.analyze("foo\\0101bar").required);
+        assertEquals("text", ApproovExclusionMatcher.analyze("img\\cJtext").required);
+        assertEquals("https://cdn.example.com/", ApproovExclusionMatcher.analyze("^https://cdn\\.example\\.com/").prefix);
+    }
+
+    @Test
+    public void emptyMatcher() {
+        assertFalse(new ApproovExclusionMatcher(Collections.<Pattern>emptyList()).matches("https://api.example.com/"));
+    }
+}
@@ -0,0 +1,165 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovInterceptor, making requests with the shared OkHttpClient to a local TLS server.
+ */
+public class ApproovInterceptorTest {
+    private ApproovFakeSdk sdk;
+    private ApproovRequestProcessor processor;
+    private MockWebServer server;
+    private OkHttpClient client;
+    private String baseURL;
+
+    @Before
+    public void setUp() throws IOException {
+        HeldCertificate serverCertificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("127.0.0.1")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(serverCertificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(serverCertificate.certificate())
+                .build();
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start(InetAddress.getByName("127.0.0.1"), 0);
+        baseURL = "https://127.0.0.1:" + server.getPort();
+
+        sdk = new ApproovFakeSdk();
+        sdk.secureStrings.put("query-key", "query-secret");
+        sdk.secureStrings.put("header-key", "header-secret");
+        processor = new ApproovRequestProcessor(sdk, new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.enabled = true;
+
+        // the shared client is only changed to trust the test server
+        client = processor.getOkHttpClient().newBuilder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    /**
+     * Makes a request, returning the request received by the server.
+     */
+    private RecordedRequest request(Request request) throws Exception {
+        server.enqueue(new MockResponse().setBody("ok"));
+        Response response = client.newCall(request).execute();
+        try {
+            assertEquals(200, response.code());
+            assertEquals("ok", response.body().string());
+        }
+        finally {
+            response.close();
+        }
+        return server.takeRequest();
+    }
+
+    @Test
+    public void sharedClientIsPinned() {
+        assertSame(processor.getOkHttpClient(), processor.getOkHttpClient());
+        assertSame(processor.pinningVerifier, processor.getOkHttpClient().hostnameVerifier());
+    }
+
+    @Test
+    public void addsTokenAndSubstitutions() throws Exception {
+        processor.requestConfig = processor.requestConfig
+                .withSubstitutionHeader("Api-Key", "")
+                .withSubstitutionQueryParam("key", true);
+        RecordedRequest recorded = request(new Request.Builder()
+                .url(baseURL + "/v1/items?key=query-key")
+                .header("Api-Key", "header-key")
+                .build());
+        assertNotNull(recorded.getHeader("Approov-Token"));
+        assertEquals("header-secret", recorded.getHeader("Api-Key"));
+        assertEquals("/v1/items?key=query-secret", recorded.getPath());
+    }
+
+    @Test
+    public void excludedURLHasNoToken() throws Exception {
+        String regex = "/public/";
+        processor.requestConfig = processor.requestConfig.withExclusionURLRegex(regex, Pattern.compile(regex));
+        RecordedRequest recorded = request(new Request.Builder().url(baseURL + "/public/items").build());
+        assertNull(recorded.getHeader("Approov-Token"));
+        assertEquals(0, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void unmatchedPinsAreRejected() {
+        String pin = ByteString.encodeUtf8("not the server key").sha256().base64();
+        Map<String, List<String>> pins = Collections.singletonMap("127.0.0.1", Collections.singletonList(pin));
+        sdk.pins = pins;
+        try {
+            client.newCall(new Request.Builder().url(baseURL + "/v1/items").build()).execute().close();
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // the connection is rejected by the pinning verifier
+        }
+    }
+
+    @Test
+    public void signsBodyDigest() throws Exception {
+        processor.requestConfig = processor.requestConfig
+                .withRequestSigning("Approov-Signature", Collections.singletonList("Content-Type"));
+        byte[] body = new byte[256 * 1024];
+        for (int i = 0; i < body.length; i++)
+            body[i] = (byte) i;
+        RecordedRequest recorded = request(new Request.Builder()
+                .url(baseURL + "/v1/upload")
+                .header("Content-Type", "application/octet-stream")
+                .post(RequestBody.create(body, null))
+                .build());
+        String canonical = "POST\n" + baseURL + "/v1/upload\n" +
+                "approov-token:" + recorded.getHeader("Approov-Token") + "\n" +
+                "content-type:application/octet-stream\n" + ByteString.of(body).sha256().base64();
+        assertEquals(ApproovFakeSdk.signature(canonical), recorded.getHeader("Approov-Signature"));
+        assertEquals(body.length, recorded.getBodySize());
+    }
+}
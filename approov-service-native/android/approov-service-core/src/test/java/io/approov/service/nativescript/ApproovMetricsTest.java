@@ -0,0 +1,77 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovMetrics.
+ */
+public class ApproovMetricsTest {
+    @Test
+    public void bucketBoundaries() {
+        assertEquals(0, ApproovMetrics.bucket(0));
+        assertEquals(0, ApproovMetrics.bucket(999));
+        assertEquals(1, ApproovMetrics.bucket(1000));
+        assertEquals(2, ApproovMetrics.bucket(2000));
+        assertEquals(2, ApproovMetrics.bucket(3999));
+        assertEquals(3, ApproovMetrics.bucket(4000));
+        assertEquals(ApproovMetrics.BUCKETS - 1, ApproovMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        long[] buckets = new long[ApproovMetrics.BUCKETS];
+        assertEquals(0, ApproovMetrics.percentile(buckets, 0, 50));
+        buckets[3] = 90;
+        buckets[10] = 10;
+        assertEquals(8, ApproovMetrics.percentile(buckets, 100, 50));
+        assertEquals(8, ApproovMetrics.percentile(buckets, 100, 90));
+        assertEquals(1024, ApproovMetrics.percentile(buckets, 100, 99));
+    }
+
+    @Test
+    public void snapshot() {
+        ApproovMetrics metrics = new ApproovMetrics();
+        metrics.record(ApproovMetrics.Stage.TOKEN_FETCH, "api.example.com", "SUCCESS", System.nanoTime());
+        metrics.recordTokenStatus("api.example.com", ApproovFetchStatus.SUCCESS);
+        metrics.recordTokenStatus("api.example.com", ApproovFetchStatus.SUCCESS);
+        metrics.recordTokenStatus("api.example.com", ApproovFetchStatus.NO_NETWORK);
+        metrics.recordTokenStatus("a\"b", ApproovFetchStatus.SUCCESS);
+        String json = metrics.toJSON();
+        assertTrue(json.startsWith("{\"stages\":{\"exclusionCheck\":{\"count\":0,"));
+        assertTrue(json.contains("\"tokenFetch\":{\"count\":1,"));
+        assertTrue(json.contains("\"tokenStatus\":{\"SUCCESS\":3,\"NO_NETWORK\":1}"));
+        assertTrue(json.contains("\"api.example.com\":{\"SUCCESS\":2,\"NO_NETWORK\":1}"));
+        assertTrue(json.contains("\"a\\\"b\":{\"SUCCESS\":1}"));
+    }
+
+    @Test
+    public void hostsAreLimited() {
+        ApproovMetrics metrics = new ApproovMetrics();
+        for (int i = 0; i < ApproovMetrics.MAX_HOSTS + 10; i++)
+            metrics.recordTokenStatus("host" + i, ApproovFetchStatus.SUCCESS);
+        String json = metrics.toJSON();
+        assertTrue(json.contains("\"host0\":"));
+        assertFalse(json.contains("\"host" + (ApproovMetrics.MAX_HOSTS + 5) + "\":"));
+        assertTrue(json.contains("\"" + ApproovMetrics.OTHER_HOSTS + "\":{\"SUCCESS\":10}"));
+    }
+}
@@ -0,0 +1,99 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovPinningVerifier.
+ */
+public class ApproovPinningVerifierTest {
+    private static final String HOST = "bench.example.com";
+
+    private ApproovFakeSdk sdk;
+    private ApproovPinningVerifier verifier;
+    private X509Certificate cert;
+
+    @Before
+    public void setUp() throws Exception {
+        cert = FakeSSLSession.testCertificate();
+        sdk = new ApproovFakeSdk();
+        sdk.pins = pins(ApproovPinningVerifier.getSpkiDigest(cert).base64());
+        verifier = new ApproovPinningVerifier(null, sdk, new ApproovMetrics());
+    }
+
+    private static Map<String, List<String>> pins(String pin) {
+        Map<String, List<String>> pins = new HashMap<>();
+        pins.put(HOST, Collections.singletonList(pin));
+        return pins;
+    }
+
+    @Test
+    public void resumedSessionIsAccepted() {
+        FakeSSLSession session = new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 }, cert);
+        assertTrue(verifier.verify(HOST, session));
+        assertTrue(verifier.verify(HOST, session));
+        assertEquals(1, session.peerCertificateRequests.get());
+
+        // a different session is verified in full, even with the same identifier
+        FakeSSLSession other = new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 }, cert);
+        assertTrue(verifier.verify(HOST, other));
+        assertEquals(1, other.peerCertificateRequests.get());
+    }
+
+    @Test
+    public void verifiedSessionIsOnlyAcceptedForItsHost() {
+        FakeSSLSession session = new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 }, cert);
+        assertTrue(verifier.verify(HOST, session));
+        assertTrue(verifier.verify("unpinned.example.com", session));
+        assertEquals(2, session.peerCertificateRequests.get());
+    }
+
+    @Test
+    public void reusedSessionIdMustPresentSameChain() {
+        assertTrue(verifier.verify(HOST, new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 }, cert)));
+        assertFalse(verifier.verify(HOST, new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 })));
+    }
+
+    @Test
+    public void verifiedSessionsAreDiscardedWhenPinsChange() {
+        FakeSSLSession session = new FakeSSLSession(HOST, new byte[] { 1, 2, 3, 4 }, cert);
+        assertTrue(verifier.verify(HOST, session));
+        sdk.pins = pins(ApproovPinningVerifier.getSpkiDigest(cert).sha256().base64());
+        verifier.invalidatePins();
+        assertFalse(verifier.verify(HOST, session));
+    }
+
+    @Test
+    public void sessionsWithoutIdAreVerified() {
+        assertTrue(verifier.verify(HOST, new FakeSSLSession(HOST, new byte[0], cert)));
+        sdk.pins = pins(ApproovPinningVerifier.getSpkiDigest(cert).sha256().base64());
+        verifier.invalidatePins();
+        assertFalse(verifier.verify(HOST, new FakeSSLSession(HOST, new byte[0], cert)));
+    }
+}
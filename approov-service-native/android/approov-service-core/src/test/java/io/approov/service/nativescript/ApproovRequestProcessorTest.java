@@ -0,0 +1,640 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovRequestProcessor, running against the in memory ApproovFakeSdk.
+ */
+public class ApproovRequestProcessorTest {
+    /**
+     * Creates an initialized processor using the default token header.
+     *
+     * @param sdk is the fake SDK to be used
+     * @return ApproovRequestProcessor the new processor
+     */
+    private static ApproovRequestProcessor processor(ApproovFakeSdk sdk) {
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.enabled = true;
+        return processor;
+    }
+
+    /**
+     * Checks whether a token added to a connection includes the data hash for a binding header value.
+     *
+     * @param connection is the connection to which the token was added
+     * @param bindingValue is the binding header value
+     * @return true if the token includes the data hash, false otherwise
+     */
+    private static boolean isBound(FakeHttpsURLConnection connection, String bindingValue) {
+        String token = connection.getRequestProperty("Approov-Token");
+        String payload = ByteString.decodeBase64(token.split("\\.")[1]).utf8();
+        return payload.contains("\"pay\":\"" + ByteString.encodeUtf8(bindingValue).sha256().base64() + "\"");
+    }
+
+    @Test
+    public void addsCachedToken() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk);
+        for (int i = 0; i < 3; i++) {
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+            processor.addApproov(connection);
+            assertNotNull(connection.getRequestProperty("Approov-Token"));
+            assertSame(processor.pinningVerifier, connection.getHostnameVerifier());
+        }
+        assertEquals(1, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void uninitializedIsForwarded() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.enabled = false;
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals(0, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void excludedURLHasNoToken() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk);
+        String regex = "^https://api\\.example\\.com/public/.*";
+        processor.requestConfig = processor.requestConfig.withExclusionURLRegex(regex, Pattern.compile(regex));
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/public/x"));
+        processor.addApproov(connection);
+        assertNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals(0, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void substitutesHeaders() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.secureStrings.put("api-key", "secret");
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.requestConfig = processor.requestConfig.withSubstitutionHeader("Api-Key", "Bearer ");
+        for (int i = 0; i < 2; i++) {
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+            connection.setRequestProperty("Api-Key", "Bearer api-key");
+            processor.addApproov(connection);
+            assertEquals("Bearer secret", connection.getRequestProperty("Api-Key"));
+        }
+        assertEquals(1, sdk.secureStringFetches.get());
+    }
+
+    @Test
+    public void substitutesQueryParams() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.secureStrings.put("api-key", "secret");
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.requestConfig = processor.requestConfig.withSubstitutionQueryParam("key", true);
+        URL url = processor.substituteQueryParams(new URL("https://api.example.com/v1?key=api-key&other=1"));
+        assertEquals("https://api.example.com/v1?key=secret&other=1", url.toString());
+        URL unchanged = new URL("https://api.example.com/v1?other=1");
+        assertSame(unchanged, processor.substituteQueryParams(unchanged));
+    }
+
+    @Test
+    public void rejectedTokenFetchFails() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.REJECTED;
+        ApproovRequestProcessor processor = processor(sdk);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        try {
+            processor.addApproov(connection);
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("REJECTED"));
+        }
+    }
+
+    @Test
+    public void networkFailureCanProceed() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.NO_NETWORK;
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.requestConfig = processor.requestConfig.withProceedOnNetworkFail(true);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNull(connection.getRequestProperty("Approov-Token"));
+    }
+
+    @Test
+    public void requestWaitsForInitialization() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.beginInitialization();
+        Thread initializer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processor.endInitialization(true);
+            }
+        });
+        initializer.start();
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertTrue(processor.metrics.toJSON().contains("\"initializationWait\":{\"count\":1,"));
+        initializer.join();
+    }
+
+    @Test
+    public void failedInitializationIsForwarded() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.beginInitialization();
+        processor.endInitialization(false);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNull(connection.getRequestProperty("Approov-Token"));
+    }
+
+    @Test
+    public void initializationWaitTimesOut() {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.initializationWaitMillis = 50;
+        processor.beginInitialization();
+        try {
+            processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("initialization"));
+        }
+        assertEquals(0, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void unprotectedHostIsRemembered() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.UNKNOWN_URL;
+        ApproovRequestProcessor processor = processor(sdk);
+        for (int i = 0; i < 3; i++) {
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://cdn.example.com/image"));
+            processor.addApproov(connection);
+            assertNull(connection.getRequestProperty("Approov-Token"));
+        }
+        assertEquals(1, sdk.tokenFetches.get());
+        assertEquals(2, processor.tokenCache.getUnprotectedHits());
+
+        // the host is classified again after a configuration change
+        processor.configChanged();
+        processor.addApproov(new FakeHttpsURLConnection(new URL("https://cdn.example.com/image")));
+        assertEquals(2, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void networkFailureIsNotRemembered() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.NO_NETWORK;
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.requestConfig = processor.requestConfig.withProceedOnNetworkFail(true);
+        processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+        processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+        assertEquals(2, sdk.tokenFetches.get());
+        assertEquals(0, processor.tokenCache.getUnprotectedHits());
+    }
+
+    @Test
+    public void fetchesSecureStringsTogether() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.secureStrings.put("key-1", "secret-1");
+        sdk.secureStrings.put("key-2", "secret-2");
+        ApproovRequestProcessor processor = processor(sdk);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Map<String, ApproovFetchResult>> fetched = new AtomicReference<>();
+        processor.fetchSecureStrings(Arrays.asList("key-2", "missing", "key-1", "key-2"),
+                new ApproovRequestProcessor.SecureStringsCallback() {
+            @Override
+            public void fetched(Map<String, ApproovFetchResult> results) {
+                fetched.set(results);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Map<String, ApproovFetchResult> results = fetched.get();
+        assertEquals(Arrays.asList("key-2", "missing", "key-1"), new ArrayList<>(results.keySet()));
+        assertEquals("secret-2", results.get("key-2").getSecureString());
+        assertEquals(ApproovFetchStatus.UNKNOWN_KEY, results.get("missing").getStatus());
+        assertEquals("secret-1", results.get("key-1").getSecureString());
+        assertEquals(3, sdk.secureStringFetches.get());
+    }
+
+    @Test
+    public void additionsMatchSeparateChanges() throws IOException {
+        String regex = "^https://cdn\\.example\\.com/";
+        ApproovRequestConfig base = new ApproovRequestConfig("Approov-Token", "");
+        ApproovRequestConfig separate = base.withSubstitutionHeader("Api-Key", "Bearer ")
+                .withSubstitutionQueryParam("key", true)
+                .withExclusionURLRegex(regex, Pattern.compile(regex));
+        ApproovRequestConfig combined = base.withAdditions(Collections.singletonMap("Api-Key", "Bearer "),
+                Collections.singletonList("key"), Collections.singletonMap(regex, Pattern.compile(regex)));
+        assertEquals(separate.substitutionHeaders, combined.substitutionHeaders);
+        assertEquals(separate.urlSubstituter.queryKeys, combined.urlSubstituter.queryKeys);
+        assertEquals(separate.exclusionURLRegexs.keySet(), combined.exclusionURLRegexs.keySet());
+        assertTrue(combined.exclusionMatcher.matches("https://cdn.example.com/logo.png"));
+        assertFalse(combined.exclusionMatcher.matches("https://api.example.com/v1"));
+    }
+
+    @Test
+    public void bindingValuesAreCachedSeparately() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withBindingHeader("Authorization"), null);
+        processor.enabled = true;
+        for (int i = 0; i < 6; i++) {
+            String bindingValue = ((i % 2) == 0) ? "Bearer user-a" : "Bearer user-b";
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+            connection.setRequestProperty("Authorization", bindingValue);
+            processor.addApproov(connection);
+            assertTrue(isBound(connection, bindingValue));
+        }
+        assertEquals(2, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void concurrentBindingValuesGetTheirOwnTokens() throws Exception {
+        final ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(20);
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withBindingHeader("Authorization"), null);
+        processor.enabled = true;
+        final List<FakeHttpsURLConnection> connections = Collections.synchronizedList(new ArrayList<FakeHttpsURLConnection>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int n = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(
+                                new URL("https://api" + n + ".example.com/v1"));
+                        connection.setRequestProperty("Authorization", "Bearer user-" + (n % 2));
+                        processor.addApproov(connection);
+                        connections.add(connection);
+                    }
+                    catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+        assertNull(failure.get());
+        assertEquals(8, connections.size());
+        for (FakeHttpsURLConnection connection: connections)
+            assertTrue(isBound(connection, connection.getRequestProperty("Authorization")));
+        assertEquals(0, sdk.dataHashChanges.get());
+    }
+
+    @Test
+    public void unboundTokenIsNotCachedWithBindingDataHash() throws Exception {
+        final ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withBindingHeader("Authorization"), null);
+        processor.enabled = true;
+        Thread bound = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+                    connection.setRequestProperty("Authorization", "Bearer user-0");
+                    processor.addApproov(connection);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        bound.start();
+        Thread.sleep(20);
+        processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+        bound.join();
+
+        // the unbound token may include the data hash of the bound request so it is not shared
+        assertNotNull(processor.tokenCache.get("api.example.com", ApproovTokenCache.getBindingKey("Bearer user-0")));
+        assertNull(processor.tokenCache.get("api.example.com", null));
+    }
+
+    @Test
+    public void unboundTokenIsCachedAfterBoundFetch() throws Exception {
+        final ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withBindingHeader("Authorization"), null);
+        processor.enabled = true;
+        Thread bound = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+                    connection.setRequestProperty("Authorization", "Bearer user-0");
+                    processor.addApproov(connection);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        bound.start();
+        Thread.sleep(20);
+        processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+        bound.join();
+        assertNull(processor.tokenCache.get("api.example.com", null));
+
+        // once the bound fetch has completed the data hash is reset so the next unbound token is shared
+        long fetches = sdk.tokenFetches.get();
+        List<FakeHttpsURLConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+            processor.addApproov(connection);
+            connections.add(connection);
+        }
+        assertEquals(fetches + 1, sdk.tokenFetches.get());
+        assertNotNull(processor.tokenCache.get("api.example.com", null));
+        for (FakeHttpsURLConnection connection: connections)
+            assertFalse(isBound(connection, "Bearer user-0"));
+    }
+
+    @Test
+    public void unboundTokenUsesDataHashSetByApp() throws Exception {
+        final ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withBindingHeader("Authorization"), null);
+        processor.enabled = true;
+        processor.setDataHashInToken("app data");
+        Thread bound = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+                    connection.setRequestProperty("Authorization", "Bearer user-0");
+                    processor.addApproov(connection);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        bound.start();
+        Thread.sleep(20);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        bound.join();
+
+        // the unbound fetch waited for the bound one and then restored the data set by the app
+        assertTrue(isBound(connection, "app data"));
+        assertNotNull(processor.tokenCache.get("api.example.com", null));
+        assertEquals(0, sdk.dataHashChanges.get());
+    }
+
+    @Test
+    public void signsConnectionWithoutBody() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk, new ApproovRequestConfig("Approov-Token", "")
+                .withRequestSigning("Approov-Signature", Arrays.asList("Content-Type", "Missing")), null);
+        processor.enabled = true;
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        processor.addApproov(connection);
+        String canonical = "POST\nhttps://api.example.com/v1\n" +
+                "approov-token:" + connection.getRequestProperty("Approov-Token") + "\n" +
+                "content-type:application/json\nmissing:\n" + ApproovRequestProcessor.UNSIGNED_BODY;
+        assertEquals(ApproovFakeSdk.signature(canonical), connection.getRequestProperty("Approov-Signature"));
+    }
+
+    @Test
+    public void unsignedUnlessEnabled() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertNull(connection.getRequestProperty("Approov-Signature"));
+    }
+
+    @Test
+    public void tokenFetchStopsAtConnectTimeout() throws IOException {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.SECONDS.toNanos(2);
+        ApproovRequestProcessor processor = processor(sdk);
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        connection.setConnectTimeout(100);
+        long startNanos = System.nanoTime();
+        try {
+            processor.addApproov(connection);
+            fail("expected SocketTimeoutException");
+        }
+        catch (SocketTimeoutException e) {
+            // the request is not held for the whole of the token fetch
+        }
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void timedOutTokenFetchCanProceed() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(300);
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withProceedOnNetworkFail(true), null);
+        processor.enabled = true;
+        processor.fetchTimeoutMillis = 50;
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNull(connection.getRequestProperty("Approov-Token"));
+
+        // the abandoned fetch still completes and its token is used by a later request
+        Thread.sleep(500);
+        connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals(1, sdk.tokenFetches.get());
+    }
+
+    @Test
+    public void circuitBreakerFailsFastWhileOpen() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.NO_NETWORK;
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.circuitBreaker.setTiming(3, 10000, 100);
+        for (int i = 0; i < 4; i++) {
+            try {
+                processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+                fail("expected IOException");
+            }
+            catch (IOException e) {
+                // the request cannot be protected
+            }
+        }
+
+        // the breaker opened after the third failure so the fourth request did not wait for a fetch
+        assertEquals(3, sdk.tokenFetches.get());
+        assertEquals(ApproovCircuitBreaker.State.OPEN, processor.circuitBreaker.getState());
+        assertNull(processor.refreshToken("api.example.com"));
+
+        // a probe that still fails reopens the breaker
+        Thread.sleep(150);
+        try {
+            processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // the probe could not reach the service
+        }
+        assertEquals(4, sdk.tokenFetches.get());
+        assertEquals(ApproovCircuitBreaker.State.OPEN, processor.circuitBreaker.getState());
+
+        // a probe that succeeds closes the breaker
+        Thread.sleep(150);
+        sdk.status = ApproovFetchStatus.SUCCESS;
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals(ApproovCircuitBreaker.State.CLOSED, processor.circuitBreaker.getState());
+        assertTrue(processor.circuitBreaker.toJSON().contains("\"opens\":2,\"rejections\":1"));
+    }
+
+    @Test
+    public void circuitBreakerAllowsAnotherProbeWhenProbeThrows() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.NO_NETWORK;
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.circuitBreaker.setTiming(1, 10000, 100);
+        try {
+            processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // the request cannot be protected
+        }
+        assertEquals(ApproovCircuitBreaker.State.OPEN, processor.circuitBreaker.getState());
+
+        // the probe fails with an exception rather than a status, which is not counted as an outage
+        Thread.sleep(150);
+        sdk.tokenFetchFailure = new IllegalStateException("SDK not initialized");
+        try {
+            processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // the failure of the fetch is passed on
+        }
+        assertEquals(ApproovCircuitBreaker.State.HALF_OPEN, processor.circuitBreaker.getState());
+        assertTrue(processor.circuitBreaker.toJSON().contains("\"opens\":1,"));
+
+        // the next request is allowed through immediately as another probe, which can close it
+        sdk.tokenFetchFailure = null;
+        sdk.status = ApproovFetchStatus.SUCCESS;
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals(ApproovCircuitBreaker.State.CLOSED, processor.circuitBreaker.getState());
+    }
+
+    @Test
+    public void sdkExceptionsDoNotOpenCircuitBreaker() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.tokenFetchFailure = new IllegalStateException("SDK not initialized");
+        ApproovRequestProcessor processor = processor(sdk);
+        processor.circuitBreaker.setTiming(1, 10000, 100);
+        for (int i = 0; i < 3; i++) {
+            try {
+                processor.addApproov(new FakeHttpsURLConnection(new URL("https://api.example.com/v1")));
+                fail("expected IllegalStateException");
+            }
+            catch (IllegalStateException e) {
+                // the failure of the fetch is passed on
+            }
+        }
+        assertEquals(3, sdk.tokenFetches.get());
+        assertEquals(ApproovCircuitBreaker.State.CLOSED, processor.circuitBreaker.getState());
+    }
+
+    @Test
+    public void circuitBreakerAllowsAnotherProbeIfResultIsLost() throws Exception {
+        ApproovCircuitBreaker breaker = new ApproovCircuitBreaker();
+        breaker.setTiming(1, 10000, 100);
+        breaker.recordFailure();
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        assertEquals(ApproovCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // the result of the probe is never recorded, so another is allowed after a further cool down
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(ApproovCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void circuitBreakerOpenCanProceed() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.status = ApproovFetchStatus.POOR_NETWORK;
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "").withProceedOnNetworkFail(true), null);
+        processor.enabled = true;
+        processor.circuitBreaker.setTiming(1, 10000, 10000);
+        for (int i = 0; i < 3; i++) {
+            FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+            processor.addApproov(connection);
+            assertNull(connection.getRequestProperty("Approov-Token"));
+        }
+        assertEquals(1, sdk.tokenFetches.get());
+    }
+}
@@ -0,0 +1,323 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovSecureStringCache.
+ */
+public class ApproovSecureStringCacheTest {
+    // result of a load that failed due to network conditions
+    private static final String TRANSIENT = "transient";
+
+    // executor that runs background refreshes immediately on the calling thread
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // loader returning the current value for each key after a delay, counting the loads for each key
+    private static final class CountingLoader implements ApproovSecureStringCache.Loader<String> {
+        final Map<String, String> values = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+        volatile long latencyMillis = 0;
+
+        int loads(String key) {
+            AtomicInteger count = loads.get(key);
+            return (count == null) ? 0 : count.get();
+        }
+
+        @Override
+        public String load(String key) {
+            AtomicInteger count = new AtomicInteger();
+            AtomicInteger existing = loads.putIfAbsent(key, count);
+            ((existing == null) ? count : existing).incrementAndGet();
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return values.get(key);
+        }
+
+        @Override
+        public void loadAsync(final String key, final ApproovSecureStringCache.LoadCallback<String> callback) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    callback.loaded(load(key));
+                }
+            }).start();
+        }
+
+        @Override
+        public boolean isCacheable(String value) {
+            return (value != null) && !value.equals(TRANSIENT);
+        }
+
+        @Override
+        public boolean isTransientFailure(String value) {
+            return TRANSIENT.equals(value);
+        }
+    }
+
+    /**
+     * Calls getAll for the same keys from a number of threads at once.
+     *
+     * @param cache is the cache to be used
+     * @param threadCount is the number of threads
+     * @param keys is the keys to be looked up by each thread
+     * @return list of the results from each thread
+     * @throws Exception if any of the lookups failed
+     */
+    private static List<Map<String, String>> getAllConcurrently(final ApproovSecureStringCache<String> cache,
+            int threadCount, final List<String> keys) throws Exception {
+        final List<Map<String, String>> results = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Map<String, String> result = cache.getAll(keys, 5000);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        return results;
+    }
+
+    @Test
+    public void concurrentGetAllSharesLoads() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.latencyMillis = 100;
+        loader.values.put("api", "api-value");
+        loader.values.put("partner", "partner-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        List<Map<String, String>> results = getAllConcurrently(cache, 8, Arrays.asList("api", "partner"));
+        assertEquals(8, results.size());
+        for (Map<String, String> result: results) {
+            assertEquals("api-value", result.get("api"));
+            assertEquals("partner-value", result.get("partner"));
+        }
+        assertEquals(1, loader.loads("api"));
+        assertEquals(1, loader.loads("partner"));
+    }
+
+    @Test
+    public void getAllJoinsBlockingLoad() throws Exception {
+        final CountingLoader loader = new CountingLoader();
+        loader.latencyMillis = 100;
+        loader.values.put("api", "api-value");
+        loader.values.put("partner", "partner-value");
+        final ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        Thread single = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("api", 0);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        single.start();
+        Thread.sleep(20);
+        Map<String, String> result = cache.getAll(Arrays.asList("api", "partner"), 5000);
+        single.join();
+        assertEquals("api-value", result.get("api"));
+        assertEquals("partner-value", result.get("partner"));
+        assertEquals(1, loader.loads("api"));
+    }
+
+    @Test
+    public void getAllStopsAtDeadline() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.latencyMillis = 500;
+        loader.values.put("api", "api-value");
+        loader.values.put("partner", "partner-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        long startMillis = System.currentTimeMillis();
+        assertTrue(cache.getAll(Arrays.asList("api", "partner"), 50).isEmpty());
+        assertTrue(System.currentTimeMillis() - startMillis < 400);
+    }
+
+    @Test
+    public void freshResultIsCached() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "api-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        for (int i = 0; i < 3; i++)
+            assertEquals("api-value", cache.get("api", 0));
+        assertEquals(1, loader.loads("api"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void staleResultIsUsedWhileRefreshed() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "old-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        cache.setTTL(0, 3600);
+        assertEquals("old-value", cache.get("api", 0));
+
+        // the stale result is returned and the refresh replaces it for the next lookup
+        loader.values.put("api", "new-value");
+        assertEquals("old-value", cache.get("api", 0));
+        assertEquals(1, cache.getStaleHits());
+        assertEquals(2, loader.loads("api"));
+        assertEquals("new-value", cache.get("api", 0));
+    }
+
+    @Test
+    public void staleResultSurvivesTransientRefreshFailure() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "api-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        cache.setTTL(0, 3600);
+        cache.get("api", 0);
+        loader.values.put("api", TRANSIENT);
+        assertEquals("api-value", cache.get("api", 0));
+        assertEquals("api-value", cache.get("api", 0));
+    }
+
+    @Test
+    public void expiredResultIsLoadedAgain() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "old-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        cache.setTTL(0, 0);
+        assertEquals("old-value", cache.get("api", 0));
+        loader.values.put("api", "new-value");
+        assertEquals("new-value", cache.get("api", 0));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void concurrentMissesShareLoad() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.latencyMillis = 100;
+        loader.values.put("api", "api-value");
+        List<Map<String, String>> results = getAllConcurrently(
+                new ApproovSecureStringCache<>(loader, 16, DIRECT, null), 8, Arrays.asList("api"));
+        for (Map<String, String> result: results)
+            assertEquals("api-value", result.get("api"));
+        assertEquals(1, loader.loads("api"));
+    }
+
+    @Test
+    public void invalidatingKeyKeepsOtherKeys() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "api-value");
+        loader.values.put("partner", "partner-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        cache.get("api", 0);
+        cache.get("partner", 0);
+        cache.invalidate("api");
+        cache.get("api", 0);
+        cache.get("partner", 0);
+        assertEquals(2, loader.loads("api"));
+        assertEquals(1, loader.loads("partner"));
+
+        // invalidating everything reloads every key
+        cache.invalidate();
+        cache.get("api", 0);
+        cache.get("partner", 0);
+        assertEquals(3, loader.loads("api"));
+        assertEquals(2, loader.loads("partner"));
+    }
+
+    @Test
+    public void invalidatingMoreKeysThanCapacityInvalidatesEverything() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.values.put("api", "api-value");
+        ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 2, DIRECT, null);
+        cache.get("api", 0);
+        cache.invalidate("a");
+        cache.invalidate("b");
+        cache.get("api", 0);
+        assertEquals(1, loader.loads("api"));
+
+        // the invalidations of individual keys are no longer held once they exceed the capacity
+        cache.invalidate("c");
+        cache.get("api", 0);
+        assertEquals(2, loader.loads("api"));
+    }
+
+    @Test
+    public void loadInProgressForInvalidatedKeyIsNotCached() throws Exception {
+        final CountingLoader loader = new CountingLoader();
+        loader.latencyMillis = 100;
+        loader.values.put("api", "old-value");
+        loader.values.put("partner", "partner-value");
+        final ApproovSecureStringCache<String> cache = new ApproovSecureStringCache<>(loader, 16, DIRECT, null);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.getAll(Arrays.asList("api", "partner"), 0);
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(20);
+        cache.invalidate("api");
+        loader.values.put("api", "new-value");
+        thread.join();
+        loader.latencyMillis = 0;
+        assertEquals("new-value", cache.get("api", 0));
+        assertEquals("partner-value", cache.get("partner", 0));
+        assertEquals(1, loader.loads("partner"));
+    }
+}
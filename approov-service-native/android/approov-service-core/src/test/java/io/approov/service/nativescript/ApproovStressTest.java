@@ -0,0 +1,347 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent load and stress harness for the request processing core. Many threads make real HTTPS requests
+ * through ApproovHttpsURLConnection at once, against a local TLS MockWebServer that only accepts requests
+ * carrying an Approov token and the substituted secrets. The ApproovFakeSdk adds latency to every fetch, and
+ * network outages and dynamic configuration updates are injected throughout the run.
+ *
+ * The harness reports the latency of each stage of a request along with the time the threads spent off CPU in
+ * each stage, which includes any time blocked on locks, waiting for shared fetches or performing I/O. It fails
+ * if the run does not complete, which indicates a deadlock, or if any request fails other than due to an
+ * injected outage.
+ *
+ * This is excluded from the normal unit tests. Run it with "./gradlew :approov-service-core:stressTest",
+ * adding any of the "approov.stress.*" system properties below with -D to change the load.
+ */
+public class ApproovStressTest {
+    // number of client threads making requests at the same time
+    private static final int THREADS = Integer.getInteger("approov.stress.threads", 200);
+
+    // number of requests made by each client thread
+    private static final int REQUESTS_PER_THREAD = Integer.getInteger("approov.stress.requests", 25);
+
+    // number of milliseconds taken by each fetch from the fake SDK
+    private static final long SDK_LATENCY_MILLIS = Long.getLong("approov.stress.sdkLatencyMillis", 20);
+
+    // number of milliseconds between the starts of each simulated network outage
+    private static final long OUTAGE_INTERVAL_MILLIS = Long.getLong("approov.stress.outageIntervalMillis", 1000);
+
+    // number of milliseconds for which each simulated network outage lasts
+    private static final long OUTAGE_MILLIS = Long.getLong("approov.stress.outageMillis", 100);
+
+    // number of milliseconds between simulated dynamic configuration updates
+    private static final long CONFIG_CHANGE_INTERVAL_MILLIS = Long.getLong("approov.stress.configChangeIntervalMillis", 700);
+
+    // number of seconds allowed for the whole run, after which it is assumed to be deadlocked
+    private static final long DEADLINE_SECONDS = Long.getLong("approov.stress.deadlineSeconds", 300);
+
+    // prefix of the names of the client threads
+    private static final String THREAD_PREFIX = "ApproovStress-";
+
+    // secure strings substituted in the query and a header of every request
+    private static final String QUERY_SECRET = "query-secret";
+    private static final String HEADER_SECRET = "header-secret";
+
+    /**
+     * Latency and off CPU time of one stage of each request, indexed by request number. The arrays are written
+     * by the client threads without synchronization as each request has its own index, and are only read once
+     * all the client threads have finished.
+     */
+    private static final class Stage {
+        final String name;
+        final long[] wallNanos;
+        final long[] offCpuNanos;
+
+        Stage(String name, int requests) {
+            this.name = name;
+            wallNanos = new long[requests];
+            offCpuNanos = new long[requests];
+            Arrays.fill(wallNanos, -1);
+        }
+
+        void record(int request, long startNanos, long startCpuNanos, long endNanos, long endCpuNanos) {
+            wallNanos[request] = endNanos - startNanos;
+            offCpuNanos[request] = Math.max(0, (endNanos - startNanos) - (endCpuNanos - startCpuNanos));
+        }
+
+        /**
+         * Prints a summary of the stage for the requests that completed it.
+         */
+        void report() {
+            long[] wall = completed(wallNanos, wallNanos);
+            long[] offCpu = completed(offCpuNanos, wallNanos);
+            long totalOffCpu = 0;
+            for (long nanos: offCpu)
+                totalOffCpu += nanos;
+            Arrays.sort(wall);
+            Arrays.sort(offCpu);
+            System.out.printf("%-10s %8d %10.2f %10.2f %10.2f %12.2f %12.2f %14.2f%n", name, wall.length,
+                    millis(percentile(wall, 50)), millis(percentile(wall, 99)), millis(percentile(wall, 100)),
+                    millis(percentile(offCpu, 50)), millis(percentile(offCpu, 99)), totalOffCpu / 1e9);
+        }
+
+        private static long[] completed(long[] values, long[] wall) {
+            int count = 0;
+            long[] result = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (wall[i] >= 0)
+                    result[count++] = values[i];
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0)
+                return 0;
+            int index = (int) Math.ceil((percent / 100.0) * sorted.length) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        // start a local TLS server that checks each request has been protected
+        HeldCertificate serverCertificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("127.0.0.1")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(serverCertificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(serverCertificate.certificate())
+                .build();
+        final SSLSocketFactory clientSocketFactory = clientCertificates.sslSocketFactory();
+        MockWebServer server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                boolean protectedRequest = (request.getHeader("Approov-Token") != null) &&
+                        HEADER_SECRET.equals(request.getHeader("Api-Key")) &&
+                        request.getPath().contains("api_key=" + QUERY_SECRET);
+                return new MockResponse().setResponseCode(protectedRequest ? 200 : 401).setBody("{}");
+            }
+        });
+        server.start(InetAddress.getByName("127.0.0.1"), 0);
+        final String baseURL = "https://127.0.0.1:" + server.getPort();
+
+        // the URL and header initially hold the names of the secure strings that are substituted
+        final ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(SDK_LATENCY_MILLIS);
+        sdk.secureStrings.put("query-key", QUERY_SECRET);
+        sdk.secureStrings.put("header-key", HEADER_SECRET);
+        final ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", "")
+                        .withSubstitutionHeader("Api-Key", "")
+                        .withSubstitutionQueryParam("api_key", true),
+                null);
+        processor.enabled = true;
+
+        // inject network outages and configuration updates throughout the run
+        final AtomicInteger outages = new AtomicInteger();
+        final AtomicInteger configChanges = new AtomicInteger();
+        ScheduledExecutorService chaos = Executors.newSingleThreadScheduledExecutor();
+        chaos.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                outages.incrementAndGet();
+                sdk.status = ApproovFetchStatus.NO_NETWORK;
+                try {
+                    Thread.sleep(OUTAGE_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sdk.status = ApproovFetchStatus.SUCCESS;
+            }
+        }, OUTAGE_INTERVAL_MILLIS, OUTAGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        chaos.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                // alternate between updates reported by an SDK fetch and those observed elsewhere, since cached
+                // tokens and secure strings mean that fetches are rare
+                if ((configChanges.incrementAndGet() % 2) == 0)
+                    sdk.configChangePending.set(true);
+                else
+                    processor.configChanged();
+            }
+        }, CONFIG_CHANGE_INTERVAL_MILLIS, CONFIG_CHANGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        // run all the client threads, releasing them at the same time so that they all connect together
+        final int requests = THREADS * REQUESTS_PER_THREAD;
+        final Stage open = new Stage("open", requests);
+        final Stage connect = new Stage("connect", requests);
+        final Stage response = new Stage("response", requests);
+        final AtomicLong successes = new AtomicLong();
+        final AtomicLong outageFailures = new AtomicLong();
+        final AtomicLong unexpectedFailures = new AtomicLong();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_PREFIX + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int t = 0; t < THREADS; t++) {
+            final int firstRequest = t * REQUESTS_PER_THREAD;
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int request = firstRequest; request < firstRequest + REQUESTS_PER_THREAD; request++) {
+                        try {
+                            // open the connection, substituting the query parameter
+                            long startNanos = System.nanoTime();
+                            long startCpuNanos = threadBean.getCurrentThreadCpuTime();
+                            URL url = new URL(baseURL + "/v1/items?api_key=query-key&request=" + request);
+                            URL substitutedURL = processor.substituteQueryParams(url);
+                            HttpsURLConnection delegate = (HttpsURLConnection) substitutedURL.openConnection();
+                            delegate.setSSLSocketFactory(clientSocketFactory);
+                            delegate.setConnectTimeout(10000);
+                            delegate.setReadTimeout(10000);
+                            ApproovHttpsURLConnection connection = new ApproovHttpsURLConnection(url, delegate, processor);
+                            connection.setRequestProperty("Api-Key", "header-key");
+                            long openNanos = System.nanoTime();
+                            long openCpuNanos = threadBean.getCurrentThreadCpuTime();
+                            open.record(request, startNanos, startCpuNanos, openNanos, openCpuNanos);
+
+                            // connect, which adds Approov to the request and performs the TLS handshake
+                            connection.connect();
+                            long connectNanos = System.nanoTime();
+                            long connectCpuNanos = threadBean.getCurrentThreadCpuTime();
+                            connect.record(request, openNanos, openCpuNanos, connectNanos, connectCpuNanos);
+
+                            // read the whole response
+                            int code = connection.getResponseCode();
+                            InputStream in = (code == 200) ? connection.getInputStream() : connection.getErrorStream();
+                            if (in != null) {
+                                byte[] buffer = new byte[1024];
+                                while (in.read(buffer) >= 0);
+                                in.close();
+                            }
+                            response.record(request, connectNanos, connectCpuNanos, System.nanoTime(),
+                                    threadBean.getCurrentThreadCpuTime());
+                            if (code == 200)
+                                successes.incrementAndGet();
+                            else {
+                                unexpectedFailures.incrementAndGet();
+                                System.out.println("request " + request + " rejected by server: " + code);
+                            }
+                        }
+                        catch (IOException e) {
+                            // failures are only expected if the SDK reported a network outage
+                            if ((e.getMessage() != null) && e.getMessage().contains(ApproovFetchStatus.NO_NETWORK.toString()))
+                                outageFailures.incrementAndGet();
+                            else {
+                                unexpectedFailures.incrementAndGet();
+                                System.out.println("request " + request + " failed: " + e);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        long runStartNanos = System.nanoTime();
+        startLatch.countDown();
+        clients.shutdown();
+        boolean completed = clients.awaitTermination(DEADLINE_SECONDS, TimeUnit.SECONDS);
+        long runNanos = System.nanoTime() - runStartNanos;
+        chaos.shutdownNow();
+
+        // report any threads that are stuck before failing
+        if (!completed) {
+            long[] deadlocked = threadBean.findDeadlockedThreads();
+            System.out.println("run did not complete, deadlocked threads: " +
+                    ((deadlocked == null) ? 0 : deadlocked.length));
+            for (ThreadInfo info: threadBean.dumpAllThreads(true, true)) {
+                if (info.getThreadName().startsWith(THREAD_PREFIX))
+                    System.out.print(info);
+            }
+            clients.shutdownNow();
+            server.shutdown();
+            fail("stress run did not complete within " + DEADLINE_SECONDS + " seconds");
+        }
+        server.shutdown();
+
+        // report the results
+        System.out.printf("%d threads x %d requests in %.2f s: %.1f requests/s%n", THREADS, REQUESTS_PER_THREAD,
+                runNanos / 1e9, successes.get() / (runNanos / 1e9));
+        System.out.printf("succeeded %d, failed during outages %d, failed unexpectedly %d%n",
+                successes.get(), outageFailures.get(), unexpectedFailures.get());
+        System.out.printf("outages %d, configuration updates %d, token fetches %d, secure string fetches %d%n",
+                outages.get(), configChanges.get(), sdk.tokenFetches.get(), sdk.secureStringFetches.get());
+        System.out.printf("%-10s %8s %10s %10s %10s %12s %12s %14s%n", "stage", "count", "p50 ms", "p99 ms",
+                "max ms", "offcpu p50", "offcpu p99", "offcpu total s");
+        open.report();
+        connect.report();
+        response.report();
+        System.out.println("metrics " + processor.metrics.toJSON());
+
+        assertEquals(0, unexpectedFailures.get());
+        assertTrue(successes.get() > 0);
+        assertEquals(requests, successes.get() + outageFailures.get());
+    }
+}
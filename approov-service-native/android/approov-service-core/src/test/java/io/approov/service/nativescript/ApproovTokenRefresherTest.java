@@ -0,0 +1,125 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovTokenRefresher, refreshing short lived tokens from the ApproovFakeSdk.
+ */
+public class ApproovTokenRefresherTest {
+    /**
+     * Creates an initialized processor issuing tokens that can be reused for no more than 3 seconds, which
+     * are refreshed 1 second before they stop being reused.
+     *
+     * @param sdk is the fake SDK to be used
+     * @param idleSeconds is the number of seconds after which a host is no longer refreshed
+     * @return ApproovRequestProcessor the new processor
+     */
+    private static ApproovRequestProcessor processor(ApproovFakeSdk sdk, long idleSeconds) {
+        sdk.tokenLifetimeSeconds = 3;
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.enabled = true;
+        processor.tokenCache.setMargin(0);
+        processor.tokenRefresher.setTiming(1, 0, idleSeconds);
+        return processor;
+    }
+
+    /**
+     * Makes a protected request to a host.
+     *
+     * @param processor is the processor adding Approov to the request
+     */
+    private static void request(ApproovRequestProcessor processor) throws IOException {
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://api.example.com/v1"));
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+    }
+
+    /**
+     * Waits for the SDK to have made at least a given number of token fetches.
+     *
+     * @param sdk is the fake SDK
+     * @param fetches is the number of fetches to wait for
+     * @return true if the fetches were made within 5 seconds, false otherwise
+     */
+    private static boolean awaitTokenFetches(ApproovFakeSdk sdk, long fetches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sdk.tokenFetches.get() < fetches) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    @Test
+    public void refreshesBeforeExpiry() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk, 300);
+        request(processor);
+        assertEquals(1, processor.tokenRefresher.getHostCount());
+        assertTrue(awaitTokenFetches(sdk, 3));
+        assertTrue(processor.tokenRefresher.getRefreshes() >= 2);
+
+        // the refreshed token is still reusable so a request does not need to fetch one
+        long misses = processor.tokenCache.getMisses();
+        request(processor);
+        assertEquals(misses, processor.tokenCache.getMisses());
+    }
+
+    @Test
+    public void idleHostIsDropped() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk, 0);
+        request(processor);
+        Thread.sleep(3500);
+        assertEquals(1, sdk.tokenFetches.get());
+        assertEquals(0, processor.tokenRefresher.getHostCount());
+    }
+
+    @Test
+    public void pausedUntilResumed() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk, 300);
+        processor.tokenRefresher.pause();
+        request(processor);
+        Thread.sleep(3500);
+        assertEquals(1, sdk.tokenFetches.get());
+
+        // the token expired while paused so it is refreshed as soon as refreshing is resumed
+        processor.tokenRefresher.resume();
+        assertTrue(awaitTokenFetches(sdk, 2));
+    }
+
+    @Test
+    public void disabledDoesNotTrack() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        ApproovRequestProcessor processor = processor(sdk, 300);
+        processor.tokenRefresher.setTiming(0, 0, 300);
+        request(processor);
+        assertEquals(0, processor.tokenRefresher.getHostCount());
+    }
+}
@@ -0,0 +1,75 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovTrace.
+ */
+public class ApproovTraceTest {
+    @Test
+    public void capacityIsPowerOfTwo() {
+        assertEquals(1, new ApproovTrace(0).capacity());
+        assertEquals(8, new ApproovTrace(8).capacity());
+        assertEquals(16, new ApproovTrace(9).capacity());
+    }
+
+    @Test
+    public void emptyTrace() {
+        assertEquals("[]", new ApproovTrace(4).toJSON());
+    }
+
+    @Test
+    public void eventsInOrder() {
+        ApproovTrace trace = new ApproovTrace(4);
+        trace.record(ApproovMetrics.Stage.TOKEN_FETCH, "api.example.com", "SUCCESS", 5000);
+        trace.record(ApproovMetrics.Stage.PIN_VERIFICATION, null, "accepted", 999);
+        String json = trace.toJSON();
+        int first = json.indexOf("\"stage\":\"tokenFetch\",\"host\":\"api.example.com\",\"outcome\":\"SUCCESS\",\"micros\":5}");
+        int second = json.indexOf("\"stage\":\"pinVerification\",\"host\":null,\"outcome\":\"accepted\",\"micros\":0}");
+        assertTrue(first > 0);
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void oldestEventsReplaced() {
+        ApproovTrace trace = new ApproovTrace(4);
+        for (int i = 0; i < 10; i++)
+            trace.record(ApproovMetrics.Stage.EXCLUSION_CHECK, "host" + i, "included", 0);
+        String json = trace.toJSON();
+        assertFalse(json.contains("\"host5\""));
+        for (int i = 6; i < 10; i++)
+            assertTrue(json.contains("\"host" + i + "\""));
+        assertTrue(json.indexOf("\"host6\"") < json.indexOf("\"host9\""));
+    }
+
+    @Test
+    public void metricsRecordToTrace() {
+        ApproovMetrics metrics = new ApproovMetrics();
+        metrics.record(ApproovMetrics.Stage.HEADER_SUBSTITUTION, "api.example.com", "completed", System.nanoTime());
+        metrics.trace = new ApproovTrace(4);
+        metrics.record(ApproovMetrics.Stage.QUERY_SUBSTITUTION, "api.example.com", "unchanged", System.nanoTime());
+        String json = metrics.trace.toJSON();
+        assertFalse(json.contains("headerSubstitution"));
+        assertTrue(json.contains("\"stage\":\"querySubstitution\""));
+    }
+}
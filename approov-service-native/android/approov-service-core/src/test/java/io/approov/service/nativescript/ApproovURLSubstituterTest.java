@@ -0,0 +1,132 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovURLSubstituter, using the per key regular expression that was previously
+ * used for query parameter substitution as the reference behaviour.
+ */
+public class ApproovURLSubstituterTest {
+    // lookup that maps each secure string key to a distinct value, except for unknown keys
+    private static final ApproovURLSubstituter.Lookup LOOKUP = new ApproovURLSubstituter.Lookup() {
+        @Override
+        public String lookup(String name, String key, boolean isPathTemplate) {
+            if (key.equals("unknown"))
+                return null;
+            return "secret-" + key;
+        }
+    };
+
+    /**
+     * Performs query parameter substitution with the original regular expression for each key.
+     */
+    private static String reference(String url, List<String> keys) throws IOException {
+        for (String key: keys) {
+            Matcher matcher = Pattern.compile("[\\?&]" + key + "=([^&;]+)").matcher(url);
+            if (matcher.find()) {
+                String value = LOOKUP.lookup(key, matcher.group(1), false);
+                if (value != null)
+                    url = new StringBuilder(url).replace(matcher.start(1), matcher.end(1), value).toString();
+            }
+        }
+        return url;
+    }
+
+    @Test
+    public void queryParams_matchReference() throws IOException {
+        List<String> keys = Arrays.asList("api_key", "token", "k");
+        ApproovURLSubstituter substituter = new ApproovURLSubstituter(new HashSet<>(keys), false);
+        String[] urls = {
+                "https://example.com/path",
+                "https://example.com/path?api_key=abc",
+                "https://example.com/path?a=1&api_key=abc&b=2",
+                "https://example.com/path?api_key=abc;x=1",
+                "https://example.com/path?api_key=&token=t1",
+                "https://example.com/path?api_key=abc&api_key=def",
+                "https://example.com/path?xapi_key=abc&k=v",
+                "https://example.com/path?token=t1&api_key=a1&k=v#frag",
+                "https://example.com/path?api_key=unknown&token=t2",
+                "https://example.com/path?api_key",
+                "https://example.com/path?=abc&k",
+        };
+        for (String url: urls)
+            assertEquals(url, reference(url, keys), substituter.substitute(url, LOOKUP));
+    }
+
+    @Test
+    public void queryParams_notInPath() throws IOException {
+        ApproovURLSubstituter substituter = new ApproovURLSubstituter(Collections.singleton("k"), false);
+        String url = "https://example.com/a&k=v/b?q=1";
+        assertSame(url, substituter.substitute(url, LOOKUP));
+        assertEquals("https://example.com/a&k=v/b?k=secret-v",
+                substituter.substitute("https://example.com/a&k=v/b?k=v", LOOKUP));
+    }
+
+    @Test
+    public void pathTemplatesWithQueryParams() throws IOException {
+        ApproovURLSubstituter substituter = new ApproovURLSubstituter(Collections.singleton("key"), true);
+        assertEquals("https://h.com/a&key=v/secret-s/x",
+                substituter.substitute("https://h.com/a&key=v/{approov:s}/x", LOOKUP));
+        assertEquals("https://h.com/a&key=v/secret-s/x?q=1&key=secret-v",
+                substituter.substitute("https://h.com/a&key=v/{approov:s}/x?q=1&key=v", LOOKUP));
+    }
+
+    @Test
+    public void noSubstitution_returnsSameInstance() throws IOException {
+        ApproovURLSubstituter substituter = new ApproovURLSubstituter(Collections.singleton("api_key"), true);
+        String url = "https://example.com/path?q=1&api_key=unknown";
+        assertSame(url, substituter.substitute(url, LOOKUP));
+    }
+
+    @Test
+    public void pathTemplates_onlyWhenEnabled() throws IOException {
+        String url = "https://example.com/v1/{approov:id}/items/%7bapproov:other%7D?q={approov:id}";
+        ApproovURLSubstituter disabled = new ApproovURLSubstituter(Collections.<String>emptySet(), false);
+        assertFalse(disabled.isActive());
+        assertSame(url, disabled.substitute(url, LOOKUP));
+        ApproovURLSubstituter enabled = new ApproovURLSubstituter(Collections.<String>emptySet(), true);
+        assertEquals("https://example.com/v1/secret-id/items/secret-other?q={approov:id}",
+                enabled.substitute(url, LOOKUP));
+    }
+
+    @Test
+    public void pathTemplates_encodeValue() throws IOException {
+        ApproovURLSubstituter substituter = new ApproovURLSubstituter(Collections.<String>emptySet(), true);
+        ApproovURLSubstituter.Lookup lookup = new ApproovURLSubstituter.Lookup() {
+            @Override
+            public String lookup(String name, String key, boolean isPathTemplate) {
+                return "a/b c?\u00e9";
+            }
+        };
+        assertEquals("https://example.com/x/a%2Fb%20c%3F%C3%A9/y",
+                substituter.substitute("https://example.com/x/{approov:k}/y", lookup));
+    }
+}
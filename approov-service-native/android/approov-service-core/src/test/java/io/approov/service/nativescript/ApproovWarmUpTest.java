@@ -0,0 +1,93 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ApproovWarmUp, warming the caches of a processor using the ApproovFakeSdk.
+ */
+public class ApproovWarmUpTest {
+    /**
+     * Runs a warm up and waits for its results.
+     *
+     * @param processor is the processor whose caches are warmed
+     * @param hosts is the list of hosts whose tokens are fetched
+     * @param keys is the list of secure string keys that are fetched
+     * @return String of the JSON results
+     */
+    private static String run(ApproovRequestProcessor processor, List<String> hosts, List<String> keys)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> results = new AtomicReference<>();
+        new ApproovWarmUp(processor, hosts, keys, new ApproovWarmUp.Callback() {
+            @Override
+            public void completed(String resultsJSON) {
+                results.set(resultsJSON);
+                done.countDown();
+            }
+        }).start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return results.get();
+    }
+
+    @Test
+    public void emptyManifestCompletesImmediately() throws Exception {
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(new ApproovFakeSdk(),
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        String results = run(processor, Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertEquals("{\"tokens\":{},\"secureStrings\":{}}", results);
+    }
+
+    @Test
+    public void warmsTokensAndSecureStrings() throws Exception {
+        ApproovFakeSdk sdk = new ApproovFakeSdk();
+        sdk.secureStrings.put("api-key", "secret");
+        sdk.latencyNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        ApproovRequestProcessor processor = new ApproovRequestProcessor(sdk,
+                new ApproovRequestConfig("Approov-Token", ""), null);
+        processor.enabled = true;
+        processor.requestConfig = processor.requestConfig.withSubstitutionHeader("Api-Key", "");
+        String results = run(processor, Arrays.asList("a.example.com", "b.example.com", "a.example.com"),
+                Arrays.asList("api-key", "missing-key"));
+        assertEquals("{\"tokens\":{\"a.example.com\":\"SUCCESS\",\"b.example.com\":\"SUCCESS\"}," +
+                "\"secureStrings\":{\"api-key\":\"SUCCESS\",\"missing-key\":\"UNKNOWN_KEY\"}}", results);
+        assertEquals(2, sdk.tokenFetches.get());
+        assertEquals(2, sdk.secureStringFetches.get());
+
+        // a request to a warmed host with a warmed substitution does not need any further fetches
+        FakeHttpsURLConnection connection = new FakeHttpsURLConnection(new URL("https://a.example.com/v1"));
+        connection.setRequestProperty("Api-Key", "api-key");
+        processor.addApproov(connection);
+        assertNotNull(connection.getRequestProperty("Approov-Token"));
+        assertEquals("secret", connection.getRequestProperty("Api-Key"));
+        assertEquals(2, sdk.tokenFetches.get());
+        assertEquals(2, sdk.secureStringFetches.get());
+    }
+}
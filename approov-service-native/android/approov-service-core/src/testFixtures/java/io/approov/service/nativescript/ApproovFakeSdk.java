@@ -0,0 +1,199 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import okio.ByteString;
+
+// ApproovFakeSdk is an in memory ApproovSdk for use in tests and benchmarks of the request processing core
+// on a plain JVM. It issues tokens with a real "exp" claim so that they can be cached, looks up secure strings
+// from a map and can simulate the latency, failure statuses and dynamic configuration updates of the real SDK.
+// The number of fetches of each kind is counted so that the effect of caching and coalescing can be observed.
+final class ApproovFakeSdk implements ApproovSdk {
+    // status to be returned for all fetches, or SUCCESS for normal operation
+    volatile ApproovFetchStatus status = ApproovFetchStatus.SUCCESS;
+
+    // exception to be thrown by token fetches, or null for normal operation
+    volatile RuntimeException tokenFetchFailure = null;
+
+    // number of nanoseconds each fetch takes, to simulate the round trip to the Approov cloud service
+    volatile long latencyNanos = 0;
+
+    // number of seconds for which issued tokens are valid
+    volatile long tokenLifetimeSeconds = 300;
+
+    // secure strings that can be fetched, keyed by their name
+    final Map<String, String> secureStrings = new ConcurrentHashMap<>();
+
+    // pins returned by the SDK, or null if there are none
+    volatile Map<String, List<String>> pins = null;
+
+    // count of the number of token fetches
+    final AtomicLong tokenFetches = new AtomicLong();
+
+    // count of the number of secure string fetches
+    final AtomicLong secureStringFetches = new AtomicLong();
+
+    // count of the number of times the pins have been obtained
+    final AtomicLong pinFetches = new AtomicLong();
+
+    // true if the next fetch should report a dynamic configuration update
+    final AtomicBoolean configChangePending = new AtomicBoolean();
+
+    // count of the number of times the configuration has been fetched
+    final AtomicLong configFetches = new AtomicLong();
+
+    // any data hash that was last set for inclusion in tokens
+    volatile String dataHash = null;
+
+    // count of the number of token fetches during which the data hash was changed
+    final AtomicLong dataHashChanges = new AtomicLong();
+
+    // executor for asynchronous secure string fetches
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ApproovFakeSdk");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a JWT style token with an "exp" claim, as would be issued by the Approov cloud service.
+     *
+     * @param host is the host for which the token is issued
+     * @param expirySeconds is the expiry time of the token in seconds since the epoch
+     * @return String the token
+     */
+    static String token(String host, long expirySeconds) {
+        return token(host, expirySeconds, null);
+    }
+
+    /**
+     * Creates a JWT style token with an "exp" claim and a "pay" claim holding any data hash.
+     *
+     * @param host is the host for which the token is issued
+     * @param expirySeconds is the expiry time of the token in seconds since the epoch
+     * @param data is the data set for inclusion in the token, or null if there is none
+     * @return String the token
+     */
+    static String token(String host, long expirySeconds, String data) {
+        String header = ByteString.encodeUtf8("{\"typ\":\"JWT\",\"alg\":\"ES256\"}").base64Url();
+        String pay = (data == null) ? "" : ",\"pay\":\"" + ByteString.encodeUtf8(data).sha256().base64() + "\"";
+        String payload = ByteString.encodeUtf8("{\"exp\":" + expirySeconds + ",\"aud\":\"" + host + "\"" + pay + "}")
+                .base64Url();
+        return header + "." + payload + ".c2lnbmF0dXJl";
+    }
+
+    /**
+     * Creates the signature of a message, as would be produced by the SDK with the message signing key.
+     *
+     * @param message is the message being signed
+     * @return String the base64 encoded signature
+     */
+    static String signature(String message) {
+        return ByteString.encodeUtf8("message-signing-key\n" + message).sha256().base64();
+    }
+
+    /**
+     * Waits for the simulated latency of a fetch.
+     */
+    private void simulateLatency() {
+        long nanos = latencyNanos;
+        if (nanos > 0)
+            LockSupport.parkNanos(nanos);
+    }
+
+    @Override
+    public ApproovFetchResult fetchApproovTokenAndWait(String url) {
+        tokenFetches.incrementAndGet();
+        RuntimeException failure = tokenFetchFailure;
+        if (failure != null)
+            throw failure;
+        String data = dataHash;
+        simulateLatency();
+        if (data != dataHash)
+            dataHashChanges.incrementAndGet();
+        boolean configChanged = configChangePending.getAndSet(false);
+        ApproovFetchStatus fetchStatus = status;
+        if (fetchStatus != ApproovFetchStatus.SUCCESS)
+            return new ApproovFetchResult(fetchStatus, null, null, null, null, configChanged, null);
+        String token = token(url, (System.currentTimeMillis() / 1000) + tokenLifetimeSeconds, data);
+        return new ApproovFetchResult(fetchStatus, token, null, null, null, configChanged, token);
+    }
+
+    @Override
+    public ApproovFetchResult fetchSecureStringAndWait(String key, String newDef) {
+        secureStringFetches.incrementAndGet();
+        simulateLatency();
+        boolean configChanged = configChangePending.getAndSet(false);
+        ApproovFetchStatus fetchStatus = status;
+        if (fetchStatus != ApproovFetchStatus.SUCCESS)
+            return new ApproovFetchResult(fetchStatus, null, null, null, null, configChanged, null);
+        if (newDef != null)
+            secureStrings.put(key, newDef);
+        String value = secureStrings.get(key);
+        if (value == null)
+            return new ApproovFetchResult(ApproovFetchStatus.UNKNOWN_KEY, null, null, null, null, configChanged, null);
+        return new ApproovFetchResult(fetchStatus, null, value, null, null, configChanged, null);
+    }
+
+    @Override
+    public void fetchSecureString(final String key, final String newDef, final FetchCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.fetched(fetchSecureStringAndWait(key, newDef));
+            }
+        });
+    }
+
+    @Override
+    public void setDataHashInToken(String data) {
+        dataHash = data;
+    }
+
+    @Override
+    public String getMessageSignature(String message) {
+        if (tokenFetches.get() == 0)
+            return null;
+        return signature(message);
+    }
+
+    @Override
+    public Map<String, List<String>> getPins(String pinType) {
+        pinFetches.incrementAndGet();
+        return pins;
+    }
+
+    @Override
+    public void fetchConfig() {
+        configFetches.incrementAndGet();
+    }
+}
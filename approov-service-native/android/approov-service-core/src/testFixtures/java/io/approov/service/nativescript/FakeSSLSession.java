@@ -0,0 +1,193 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+// FakeSSLSession is an established SSLSession that presents a fixed peer certificate chain, so that pinning can
+// be verified without performing a TLS handshake.
+final class FakeSSLSession implements SSLSession {
+    // self signed certificate for "bench.example.com" that may be used as the peer certificate
+    static final String TEST_CERTIFICATE_PEM =
+            "-----BEGIN CERTIFICATE-----\n" +
+            "MIIBjjCCATWgAwIBAgIUFFw4vh7w+kfXenJ46wW6ttxxRTQwCgYIKoZIzj0EAwIw\n" +
+            "HDEaMBgGA1UEAwwRYmVuY2guZXhhbXBsZS5jb20wIBcNMjYxMDE2MTkzOTE1WhgP\n" +
+            "MjEyNjA5MjIxOTM5MTVaMBwxGjAYBgNVBAMMEWJlbmNoLmV4YW1wbGUuY29tMFkw\n" +
+            "EwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEoNldBntK9iQaOb7Eh3CANQCy8xJDcit8\n" +
+            "njEeSIWPf3sz1T6osabv9masNjFi8kAduHfdyj/fzXb3oVCAhwT7QKNTMFEwHQYD\n" +
+            "VR0OBBYEFAvLRgE90gDwCZbhA9CWuaKOkQ7vMB8GA1UdIwQYMBaAFAvLRgE90gDw\n" +
+            "CZbhA9CWuaKOkQ7vMA8GA1UdEwEB/wQFMAMBAf8wCgYIKoZIzj0EAwIDRwAwRAIg\n" +
+            "RCwW9F91X1GVewpACW8DAm/fWCpwy7AJbpiPkB3AkOgCIC0nNAT9Y8su/tthvkCq\n" +
+            "dYOT5fyUqzmcYMZroyvXh/5H\n" +
+            "-----END CERTIFICATE-----\n";
+
+    // the peer host of the session
+    private final String peerHost;
+
+    // the peer certificate chain
+    private final Certificate[] peerCertificates;
+
+    // the session identifier
+    private final byte[] id;
+
+    // time at which the session was created
+    private final long creationTime = System.currentTimeMillis();
+
+    // number of times the peer certificate chain has been requested
+    final AtomicInteger peerCertificateRequests = new AtomicInteger();
+
+    /**
+     * Construct a new FakeSSLSession.
+     *
+     * @param peerHost is the host of the peer
+     * @param id is the session identifier
+     * @param peerCertificates is the certificate chain presented by the peer
+     */
+    FakeSSLSession(String peerHost, byte[] id, Certificate... peerCertificates) {
+        this.peerHost = peerHost;
+        this.id = id.clone();
+        this.peerCertificates = peerCertificates.clone();
+    }
+
+    /**
+     * Parses the test certificate.
+     *
+     * @return X509Certificate the test certificate
+     * @throws CertificateException if the certificate could not be parsed
+     */
+    static X509Certificate testCertificate() throws CertificateException {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(TEST_CERTIFICATE_PEM.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Override
+    public byte[] getId() {
+        return id.clone();
+    }
+
+    @Override
+    public SSLSessionContext getSessionContext() {
+        return null;
+    }
+
+    @Override
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        return creationTime;
+    }
+
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+
+    @Override
+    public void putValue(String name, Object value) {
+    }
+
+    @Override
+    public Object getValue(String name) {
+        return null;
+    }
+
+    @Override
+    public void removeValue(String name) {
+    }
+
+    @Override
+    public String[] getValueNames() {
+        return new String[0];
+    }
+
+    @Override
+    public Certificate[] getPeerCertificates() {
+        peerCertificateRequests.incrementAndGet();
+        return peerCertificates.clone();
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public javax.security.cert.X509Certificate[] getPeerCertificateChain() throws SSLPeerUnverifiedException {
+        throw new SSLPeerUnverifiedException("legacy certificate chain not supported");
+    }
+
+    @Override
+    public Principal getPeerPrincipal() {
+        return ((X509Certificate) peerCertificates[0]).getSubjectX500Principal();
+    }
+
+    @Override
+    public Principal getLocalPrincipal() {
+        return null;
+    }
+
+    @Override
+    public String getCipherSuite() {
+        return "TLS_AES_128_GCM_SHA256";
+    }
+
+    @Override
+    public String getProtocol() {
+        return "TLSv1.3";
+    }
+
+    @Override
+    public String getPeerHost() {
+        return peerHost;
+    }
+
+    @Override
+    public int getPeerPort() {
+        return 443;
+    }
+
+    @Override
+    public int getPacketBufferSize() {
+        return 16709;
+    }
+
+    @Override
+    public int getApplicationBufferSize() {
+        return 16384;
+    }
+}
@@ -0,0 +1,87 @@
+//
+// MIT License
+//
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+
+package io.approov.service.nativescript;
+
+import com.criticalblue.approovsdk.Approov;
+
+import java.util.List;
+import java.util.Map;
+
+// ApproovAndroidSdk implements the ApproovSdk facade used by the request processing core by calling
+// the Approov SDK directly and converting its results.
+final class ApproovAndroidSdk implements ApproovSdk {
+    @Override
+    public ApproovFetchResult fetchApproovTokenAndWait(String url) {
+        return convert(Approov.fetchApproovTokenAndWait(url));
+    }
+
+    @Override
+    public ApproovFetchResult fetchSecureStringAndWait(String key, String newDef) {
+        return convert(Approov.fetchSecureStringAndWait(key, newDef));
+    }
+
+    @Override
+    public void fetchSecureString(String key, String newDef, final FetchCallback callback) {
+        Approov.fetchSecureString(new Approov.TokenFetchCallback() {
+            @Override
+            public void approovCallback(Approov.TokenFetchResult result) {
+                callback.fetched(convert(result));
+            }
+        }, key, newDef);
+    }
+
+    @Override
+    public void setDataHashInToken(String data) {
+        Approov.setDataHashInToken(data);
+    }
+
+    @Override
+    public String getMessageSignature(String message) {
+        return Approov.getMessageSignature(message);
+    }
+
+    @Override
+    public Map<String, List<String>> getPins(String pinType) {
+        return Approov.getPins(pinType);
+    }
+
+    @Override
+    public void fetchConfig() {
+        Approov.fetchConfig();
+    }
+
+    /**
+     * Converts the result of an SDK fetch.
+     *
+     * @param result is the result of the SDK fetch
+     * @return ApproovFetchResult the converted result
+     */
+    static ApproovFetchResult convert(Approov.TokenFetchResult result) {
+        ApproovFetchStatus status;
+        try {
+            status = ApproovFetchStatus.valueOf(result.getStatus().name());
+        }
+        catch (IllegalArgumentException e) {
+            // a status added in a later SDK is treated as an internal error
+            status = ApproovFetchStatus.INTERNAL_ERROR;
+        }
+        return new ApproovFetchResult(status, result.getToken(), result.getSecureString(), result.getARC(),
+                result.getRejectionReasons(), result.isConfigChanged(), result.getLoggableToken());
+    }
+}
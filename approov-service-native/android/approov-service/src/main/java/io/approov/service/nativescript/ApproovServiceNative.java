@@ -17,7 +17,12 @@
 
 package io.approov.service.nativescript;
 
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.criticalblue.approovsdk.Approov;
@@ -25,16 +30,24 @@ import com.criticalblue.approovsdk.Approov;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.net.URL;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import okhttp3.OkHttpClient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 // ApproovServiceNative provides a mediation layer to the Approov SDK itself
 public class ApproovServiceNative {
   /**
@@ -61,35 +74,33 @@ public class ApproovServiceNative {
   private static final String APPROOV_TOKEN_PREFIX = "";
 
   // flag indicating whether the Approov SDK has been initialized - if not then no Approov functionality is enabled
-  private static boolean isInitialized = false;
-
-  // hostname verifier that checks against the current Approov pins
-  private static ApproovPinningVerifier pinningHostnameVerifier = null;
-
-  // true if the interceptor should proceed on network failures and not add an Approov token
-  private static boolean proceedOnNetworkFail = false;
+  private static volatile boolean isInitialized = false;
 
   // any initial configuration used in order to detect a difference for any subsequent initialization attempt
   private static String initialConfig = null;
 
-  // header to be used to send Approov tokens
-  private static String approovTokenHeader = APPROOV_TOKEN_HEADER;
-
-  // any prefix String to be added before the transmitted Approov token
-  private static String approovTokenPrefix = APPROOV_TOKEN_PREFIX;
-
-  // any header to be used for binding in Approov tokens or null if not set
-  private static String bindingHeader = null;
-
-  // map of headers that should have their values substituted for secure strings, mapped to their
-  // required prefixes
-  private static Map<String, String> substitutionHeaders = new HashMap<>();
+  // processor that adds Approov protection to requests, accessing the SDK directly - its request configuration
+  // is replaced (while holding the class lock) whenever a setting is changed
+  private static final ApproovRequestProcessor processor = new ApproovRequestProcessor(new ApproovAndroidSdk(),
+      new ApproovRequestConfig(APPROOV_TOKEN_HEADER, APPROOV_TOKEN_PREFIX), HttpsURLConnection.getDefaultHostnameVerifier());
+
+  static {
+    // the request processing core logs through android.util.Log
+    ApproovLog.setSink(new ApproovLog.Sink() {
+      @Override
+      public void d(String tag, String message) {
+        Log.d(tag, message);
+      }
 
-  // set of query parameters that may be substituted, specified by the key name, mapped to their regex patterns
-  private static Map<String, Pattern> substitutionQueryParams = new HashMap<>();
+      @Override
+      public void e(String tag, String message) {
+        Log.e(tag, message);
+      }
+    });
+  }
 
-  // set of URL regexs that should be excluded from any Approov protection, mapped to the compiled Pattern
-  private static Map<String, Pattern> exclusionURLRegexs = new HashMap<>();
+  // the data most recently set using setDataHashInToken, or null if none has been set
+  private static String lastDataHashInToken = null;
 
   /**
    * This hooks the Https protocol handling to allow Approov to be added to networking
@@ -159,12 +170,66 @@ public class ApproovServiceNative {
       return false;
     }
 
+    // the handler may already be hooked by an earlier initialization attempt that failed to initialize the SDK
+    if (httpsHandler instanceof ApproovURLStreamHandler) {
+      Log.d(TAG, "class URL https protocol handler already updated");
+      return true;
+    }
+
     // now we overwrite the map entry with our own handler that delegates to the original
-    handlers.put("https", new ApproovURLStreamHandler(httpsHandler));
+    handlers.put("https", new ApproovURLStreamHandler(httpsHandler, processor));
     Log.d(TAG, "class URL https protocol handler updated and delegating to " + httpsHandler.getClass());
     return true;
   }
 
+  // AppVisibilityCallbacks pauses background token refreshes while the app is not visible. The app is taken to be
+  // in the background once its UI is hidden and to return to the foreground when any activity is started, which
+  // does not depend on seeing the start of activities that were already running before initialization.
+  private static final class AppVisibilityCallbacks implements Application.ActivityLifecycleCallbacks, ComponentCallbacks2 {
+    @Override
+    public void onTrimMemory(int level) {
+      if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        processor.tokenRefresher.pause();
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+      processor.tokenRefresher.resume();
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+  }
+
   /**
    * Dont't allow external construction of the class as it is used as a static singleton only.
    */
@@ -179,41 +244,127 @@ public class ApproovServiceNative {
    * @param config is the initial configuration to be used, or empty string for no initialization
    * @return ApproovResult the result of the initialization
    */
-  public static ApproovResult initialize(Context context, String config) {
-    if (isInitialized) {
+  public static synchronized ApproovResult initialize(Context context, String config) {
+    if (isInitialized || (initialConfig != null)) {
         // if the SDK is previously initialized then the config must be the same
         Log.d(TAG, "reinitialized");
         if (!config.equals(initialConfig))
           return new ApproovResult("attempt to reinitialize with a different config", false);
     }
     else {
-      try {
-        // initialize the Approov SDK - note that for some versions of the SDK this may block briefly on the
-        // first launch after install and this may therefore block Javascript execution briefly but we don't do this
-        // asynchronously because we want to ensure that the initialization is completed before any potentially
-        // protected API requests are run
-        if (config.length() != 0)
-          Approov.initialize(context, config, "auto", null);
-        Approov.setUserProperty("approov-nativescript");
-        pinningHostnameVerifier = new ApproovPinningVerifier(HttpsURLConnection.getDefaultHostnameVerifier());
-        isInitialized = true;
-        Log.d(TAG, "initialized");
-
-        // now we setup the hooking of the networking library
-        if (!hookHttpsProtocolHandler())
-          return new ApproovResult("hooking Https protocol handling failed", false);
-      } catch (IllegalArgumentException e) {
-        Log.e(TAG, "initialization failed IllegalArgument: " + e.getMessage());;
-        return new ApproovResult("initialization failed IllegalArgument: "+ e.getMessage(), false);
-      } catch (IllegalStateException e) {
-        Log.e(TAG, "initialization failed IllegalState: " + e.getMessage());;
-        return new ApproovResult("initialization failed IllegalState: "+ e.getMessage(), false);
-      }
+      // initialize the Approov SDK - note that for some versions of the SDK this may block briefly on the
+      // first launch after install and this may therefore block Javascript execution briefly, so initializeAsync
+      // should be used if this is not acceptable
+      ApproovResult result = initializeSDK(context, config);
+      if (result.errorType != null)
+        return result;
+      processor.enabled = true;
+
+      // now we setup the hooking of the networking library
+      if (!hookHttpsProtocolHandler())
+        return new ApproovResult("hooking Https protocol handling failed", false);
       initialConfig = config;
     }
     return new ApproovResult(null);
   }
 
+  /**
+   * Initializes the Approov SDK in the background so that app startup is not delayed by it. The networking
+   * library is hooked immediately and any protected requests made before the initialization has completed wait
+   * for it, for up to 10 seconds, before being made with Approov protection. A request whose wait times out
+   * fails with an IOException. If the initialization fails then subsequent requests are made without Approov
+   * protection, as if initialize had failed. The callback is made on a background thread once the
+   * initialization has completed, with a JSON object giving the duration of each startup phase in microseconds:
+   * "hookMicros" for hooking the networking library, "sdkInitializeMicros" for initializing the SDK and
+   * "totalMicros" for the whole initialization. This will generate an error if a second attempt is made at
+   * initialization with a different config.
+   *
+   * @param context the Application context
+   * @param config is the initial configuration to be used, or empty string for no initialization
+   * @param callback is an instance of ResultCallback to provide the callback
+   */
+  public static synchronized void initializeAsync(final Context context, final String config, final ResultCallback callback) {
+    if (isInitialized || (initialConfig != null)) {
+      // if the SDK is previously initialized, or being initialized, then the config must be the same
+      Log.d(TAG, "reinitialized");
+      if (!config.equals(initialConfig))
+        callback.result(new ApproovResult("attempt to reinitialize with a different config", false));
+      else
+        callback.result(new ApproovResult(null));
+      return;
+    }
+
+    // requests wait for the initialization from the point at which the networking library is hooked
+    final long startNanos = System.nanoTime();
+    processor.beginInitialization();
+    if (!hookHttpsProtocolHandler()) {
+      processor.endInitialization(false);
+      callback.result(new ApproovResult("hooking Https protocol handling failed", false));
+      return;
+    }
+    final long hookedNanos = System.nanoTime();
+    initialConfig = config;
+
+    // the SDK is initialized on a separate thread
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long sdkStartNanos = System.nanoTime();
+        ApproovResult result = initializeSDK(context, config);
+        long endNanos = System.nanoTime();
+        processor.endInitialization(result.errorType == null);
+        if (result.errorType != null) {
+          // allow the initialization to be attempted again
+          synchronized (ApproovServiceNative.class) {
+            initialConfig = null;
+          }
+          callback.result(result);
+          return;
+        }
+        String timings = "{\"hookMicros\":" + ((hookedNanos - startNanos) / 1000) +
+            ",\"sdkInitializeMicros\":" + ((endNanos - sdkStartNanos) / 1000) +
+            ",\"totalMicros\":" + ((endNanos - startNanos) / 1000) + "}";
+        Log.d(TAG, "initializeAsync completed: " + timings);
+        callback.result(new ApproovResult(timings));
+      }
+    }, "ApproovInitialize");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Initializes the Approov SDK itself, marking it as initialized and registering for app visibility changes
+   * if successful. This may block briefly on the first launch after install.
+   *
+   * @param context the Application context
+   * @param config is the initial configuration to be used, or empty string for no initialization
+   * @return ApproovResult the result of the initialization
+   */
+  private static ApproovResult initializeSDK(Context context, String config) {
+    try {
+      if (config.length() != 0)
+        Approov.initialize(context, config, "auto", null);
+      Approov.setUserProperty("approov-nativescript");
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "initialization failed IllegalArgument: " + e.getMessage());
+      return new ApproovResult("initialization failed IllegalArgument: "+ e.getMessage(), false);
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "initialization failed IllegalState: " + e.getMessage());
+      return new ApproovResult("initialization failed IllegalState: "+ e.getMessage(), false);
+    }
+    isInitialized = true;
+    Log.d(TAG, "initialized");
+
+    // background token refreshes are paused while the app is not visible
+    Context appContext = context.getApplicationContext();
+    if (appContext instanceof Application) {
+      AppVisibilityCallbacks callbacks = new AppVisibilityCallbacks();
+      ((Application) appContext).registerActivityLifecycleCallbacks(callbacks);
+      appContext.registerComponentCallbacks(callbacks);
+    }
+    return new ApproovResult(null);
+  }
+
   /**
    * Indicates that requests should proceed anyway if it is not possible to obtain an Approov token
    * due to a networking failure. If this is called then the backend API can receive calls without the
@@ -223,7 +374,7 @@ public class ApproovServiceNative {
    */
   public static synchronized void setProceedOnNetworkFail() {
     Log.d(TAG, "setProceedOnNetworkFail");
-    proceedOnNetworkFail = true;
+    processor.requestConfig = processor.requestConfig.withProceedOnNetworkFail(true);
   }
 
   /**
@@ -240,6 +391,7 @@ public class ApproovServiceNative {
   public static ApproovResult setDevKey(String devKey) {
     try {
       Approov.setDevKey(devKey);
+      processor.tokenCache.invalidate();
       Log.d(TAG, "setDevKey");
     }
     catch (IllegalStateException e) {
@@ -261,8 +413,7 @@ public class ApproovServiceNative {
    */
   public static synchronized void setTokenHeader(String header, String prefix) {
     Log.d(TAG, "setTokenHeader " + header + ", " + prefix);
-    approovTokenHeader = header;
-    approovTokenPrefix = prefix;
+    processor.requestConfig = processor.requestConfig.withTokenHeader(header, prefix);
   }
 
   /**
@@ -275,7 +426,36 @@ public class ApproovServiceNative {
    */
   public static synchronized void setBindingHeader(String header) {
       Log.d(TAG, "setBindingHeader " + header);
-      bindingHeader = header;
+      processor.requestConfig = processor.requestConfig.withBindingHeader(header);
+  }
+
+  /**
+   * Enables or disables the signing of protected requests. When enabled, a signature of each request with an
+   * Approov token is added in the given header. This signs the method, URL, Approov token, the values of the
+   * signed headers and the SHA256 digest of the body, using the same message signing key as getMessageSignature.
+   * Bodies of requests made with the shared OkHttpClient are streamed through the digest, so they do not need to
+   * be buffered or passed to the app for signing. Requests made with HttpsURLConnection send their headers before
+   * the body is written, so their bodies are not signed.
+   *
+   * @param header is the header in which request signatures are sent, or null to disable signing
+   * @param signedHeaders is a JSON array of the names of the headers whose values are signed
+   * @return ApproovResult to indicate any errors
+   */
+  public static synchronized ApproovResult setRequestSigning(String header, String signedHeaders) {
+    try {
+      List<String> headers = new ArrayList<>();
+      if (signedHeaders != null) {
+        JSONArray headersJSON = new JSONArray(signedHeaders);
+        for (int i = 0; i < headersJSON.length(); i++)
+          headers.add(headersJSON.getString(i));
+      }
+      processor.requestConfig = processor.requestConfig.withRequestSigning(header, headers);
+      Log.d(TAG, "setRequestSigning " + header);
+    }
+    catch (JSONException e) {
+      return new ApproovResult("Invalid signed headers: " + e.getMessage(), false);
+    }
+    return new ApproovResult(null);
   }
 
   /**
@@ -291,11 +471,11 @@ public class ApproovServiceNative {
   public static synchronized void addSubstitutionHeader(String header, String requiredPrefix) {
     if (requiredPrefix == null) {
         Log.d(TAG, "addSubstitutionHeader " + header);
-        substitutionHeaders.put(header, "");
+        processor.requestConfig = processor.requestConfig.withSubstitutionHeader(header, "");
     }
     else {
         Log.d(TAG, "addSubstitutionHeader " + header + ", " + requiredPrefix);
-        substitutionHeaders.put(header, requiredPrefix);
+        processor.requestConfig = processor.requestConfig.withSubstitutionHeader(header, requiredPrefix);
     }
   }
 
@@ -306,16 +486,7 @@ public class ApproovServiceNative {
    */
   public static synchronized void removeSubstitutionHeader(String header) {
     Log.d(TAG, "removeSubstitutionHeader " + header);
-    substitutionHeaders.remove(header);
-  }
-
-  /**
-   * Gets all of the substitution headers that are currently setup in a new map.
-   * 
-   * @return Map<String, String> of the substitution headers mapped to their required prefix
-   */
-  private static synchronized Map<String, String> getSubstitutionHeaders() {
-    return new HashMap<>(substitutionHeaders);
+    processor.requestConfig = processor.requestConfig.withSubstitutionHeader(header, null);
   }
 
   /**
@@ -327,14 +498,8 @@ public class ApproovServiceNative {
    * @param key is the query parameter key name to be added for substitution
    */
   public static synchronized void addSubstitutionQueryParam(String key) {
-    try {
-      Pattern pattern = Pattern.compile("[\\?&]"+key+"=([^&;]+)");
-      substitutionQueryParams.put(key, pattern);
-      Log.d(TAG, "addSubstitutionQueryParam " + key);
-    }
-    catch (PatternSyntaxException e) {
-      Log.e(TAG, "addSubstitutionQueryParam " + key + " error: " + e.getMessage());
-    }
+    processor.requestConfig = processor.requestConfig.withSubstitutionQueryParam(key, true);
+    Log.d(TAG, "addSubstitutionQueryParam " + key);
   }
 
   /**
@@ -344,16 +509,20 @@ public class ApproovServiceNative {
    */
   public static synchronized void removeSubstitutionQueryParam(String key) {
     Log.d(TAG, "removeSubstitutionQueryParam " + key);
-    substitutionQueryParams.remove(key);
+    processor.requestConfig = processor.requestConfig.withSubstitutionQueryParam(key, false);
   }
 
   /**
-   * Gets all of the substitution query parameters that are currently setup in a new map.
-   * 
-   * @return Map<String, Pattern> of the substitution query parameters mapped to their regex patterns
+   * Sets whether path templates should be subject to secure strings substitution. If enabled then
+   * any path segment of a URL containing "{approov:key}" (or with the braces percent encoded) has
+   * the template replaced with the percent encoded secure string value for the key. This is disabled
+   * by default.
+   *
+   * @param enabled is true if path templates should be substituted
    */
-  private static synchronized Map<String, Pattern> getSubstitutionQueryParams() {
-    return new HashMap<>(substitutionQueryParams);
+  public static synchronized void setPathTemplateSubstitution(boolean enabled) {
+    Log.d(TAG, "setPathTemplateSubstitution " + enabled);
+    processor.requestConfig = processor.requestConfig.withPathTemplates(enabled);
   }
 
   /**
@@ -373,7 +542,7 @@ public class ApproovServiceNative {
   public static synchronized void addExclusionURLRegex(String urlRegex) {
     try {
       Pattern pattern = Pattern.compile(urlRegex);
-      exclusionURLRegexs.put(urlRegex, pattern);
+      processor.requestConfig = processor.requestConfig.withExclusionURLRegex(urlRegex, pattern);
       Log.d(TAG, "addExclusionURLRegex " + urlRegex);
     }
     catch (PatternSyntaxException e) {
@@ -388,16 +557,72 @@ public class ApproovServiceNative {
    */
   public static synchronized void removeExclusionURLRegex(String urlRegex) {
     Log.d(TAG, "removeExclusionURLRegex " + urlRegex);
-    exclusionURLRegexs.remove(urlRegex);
+    processor.requestConfig = processor.requestConfig.withExclusionURLRegex(urlRegex, null);
   }
 
   /**
-   * Gets all of the exclusion URL regexs that are currently setup in a new map.
-   * 
-   * @return Map<String, Pattern> of the exclusion URL regexs mapped to their regex patterns
+   * Applies a number of settings in a single call, so that an app does not need to make a call across the
+   * Javascript bridge for each one. The config is a JSON object in which each of the following is optional:
+   * "tokenHeader" and "tokenPrefix" strings as for setTokenHeader, a "bindingHeader" string as for
+   * setBindingHeader, a "proceedOnNetworkFail" boolean that calls setProceedOnNetworkFail if true, a
+   * "substitutionHeaders" object mapping each header to be added to its required prefix as for
+   * addSubstitutionHeader, a "substitutionQueryParams" array of the query parameter key names to be added as
+   * for addSubstitutionQueryParam, a "pathTemplateSubstitution" boolean as for setPathTemplateSubstitution and an
+   * "exclusionURLRegexs" array of the regular expressions to be added as for addExclusionURLRegex. All of the
+   * settings are applied together as a single update to the request configuration, and none of them are
+   * applied if the config is invalid or any of the regular expressions cannot be compiled.
+   *
+   * @param config is the JSON object of the settings to be applied
+   * @return ApproovResult to indicate any errors
    */
-  private static synchronized Map<String, Pattern> getExclusionURLRegexs() {
-    return new HashMap<>(exclusionURLRegexs);
+  public static synchronized ApproovResult configure(String config) {
+    ApproovRequestConfig updated = processor.requestConfig;
+    Map<String, String> headers = new HashMap<>();
+    List<String> queryKeys = new ArrayList<>();
+    Map<String, Pattern> exclusions = new HashMap<>();
+    try {
+      JSONObject configJSON = new JSONObject(config);
+      if (configJSON.has("tokenHeader"))
+        updated = updated.withTokenHeader(configJSON.getString("tokenHeader"), configJSON.optString("tokenPrefix", ""));
+      if (configJSON.has("bindingHeader"))
+        updated = updated.withBindingHeader(configJSON.getString("bindingHeader"));
+      if (configJSON.optBoolean("proceedOnNetworkFail", false))
+        updated = updated.withProceedOnNetworkFail(true);
+      if (configJSON.has("pathTemplateSubstitution"))
+        updated = updated.withPathTemplates(configJSON.getBoolean("pathTemplateSubstitution"));
+      JSONObject headersJSON = configJSON.optJSONObject("substitutionHeaders");
+      if (headersJSON != null) {
+        Iterator<String> names = headersJSON.keys();
+        while (names.hasNext()) {
+          String header = names.next();
+          headers.put(header, headersJSON.getString(header));
+        }
+      }
+      JSONArray queryKeysJSON = configJSON.optJSONArray("substitutionQueryParams");
+      if (queryKeysJSON != null) {
+        for (int i = 0; i < queryKeysJSON.length(); i++)
+          queryKeys.add(queryKeysJSON.getString(i));
+      }
+      JSONArray exclusionsJSON = configJSON.optJSONArray("exclusionURLRegexs");
+      if (exclusionsJSON != null) {
+        for (int i = 0; i < exclusionsJSON.length(); i++) {
+          String urlRegex = exclusionsJSON.getString(i);
+          exclusions.put(urlRegex, Pattern.compile(urlRegex));
+        }
+      }
+    }
+    catch (JSONException e) {
+      Log.e(TAG, "configure invalid config: " + e.getMessage());
+      return new ApproovResult("configure invalid config: " + e.getMessage(), false);
+    }
+    catch (PatternSyntaxException e) {
+      Log.e(TAG, "configure exclusion URL regex error: " + e.getMessage());
+      return new ApproovResult("configure exclusion URL regex error: " + e.getMessage(), false);
+    }
+    processor.requestConfig = updated.withAdditions(headers, queryKeys, exclusions);
+    Log.d(TAG, "configure " + headers.size() + " substitution headers, " + queryKeys.size() +
+        " substitution query params, " + exclusions.size() + " exclusion URL regexs");
+    return new ApproovResult(null);
   }
 
   /**
@@ -435,6 +660,8 @@ public class ApproovServiceNative {
 
     @Override
     public void approovCallback(Approov.TokenFetchResult result) {
+      if (result.isConfigChanged())
+        processor.configChanged();
       if (result.getStatus() == Approov.TokenFetchStatus.UNKNOWN_URL)
         Log.d(TAG, "prefetch: SUCCESS");
       else
@@ -492,6 +719,8 @@ public class ApproovServiceNative {
 
     @Override
     public void approovCallback(Approov.TokenFetchResult result) {
+      if (result.isConfigChanged())
+        processor.configChanged();
       if (result.getStatus() == Approov.TokenFetchStatus.UNKNOWN_KEY)
         Log.d(TAG, "precheck: SUCCESS");
       else
@@ -516,6 +745,53 @@ public class ApproovServiceNative {
     }
   }
 
+  /**
+   * Warms up the caches used for requests at startup, so that the first protected requests do not have to wait
+   * for token or secure string fetches. The manifest is a JSON object with an optional "hosts" array of the API
+   * hosts whose tokens are fetched and an optional "secureStrings" array of the secure string keys used for
+   * header or query parameter substitutions. The registered substitution headers and query parameters only name
+   * where a key appears in a request, so the keys themselves must be listed. All of the items are fetched
+   * concurrently on a small background pool, and the callback is made once they have all completed with a JSON
+   * object giving a "tokens" object with the fetch status of each host and a "secureStrings" object with the
+   * fetch status of each key. An error is only provided if the manifest is invalid or the SDK is not initialized.
+   * The tokens of warmed hosts are kept fresh in the background in the same way as for hosts used by requests.
+   *
+   * @param manifest is the JSON manifest of the hosts and secure string keys to be fetched
+   * @param callback is an instance of ResultCallback to provide the callback
+   */
+  public static void warmUp(String manifest, final ResultCallback callback) {
+    if (!isInitialized) {
+      callback.result(new ApproovResult("warmUp: not initialized", false));
+      return;
+    }
+    List<String> hosts = new ArrayList<>();
+    List<String> secureStringKeys = new ArrayList<>();
+    try {
+      JSONObject manifestJSON = new JSONObject(manifest);
+      JSONArray hostsJSON = manifestJSON.optJSONArray("hosts");
+      if (hostsJSON != null) {
+        for (int i = 0; i < hostsJSON.length(); i++)
+          hosts.add(hostsJSON.getString(i));
+      }
+      JSONArray keysJSON = manifestJSON.optJSONArray("secureStrings");
+      if (keysJSON != null) {
+        for (int i = 0; i < keysJSON.length(); i++)
+          secureStringKeys.add(keysJSON.getString(i));
+      }
+    }
+    catch (JSONException e) {
+      callback.result(new ApproovResult("warmUp: invalid manifest: " + e.getMessage(), false));
+      return;
+    }
+    Log.d(TAG, "warmUp " + hosts.size() + " hosts, " + secureStringKeys.size() + " secure strings");
+    new ApproovWarmUp(processor, hosts, secureStringKeys, new ApproovWarmUp.Callback() {
+      @Override
+      public void completed(String resultsJSON) {
+        callback.result(new ApproovResult(resultsJSON));
+      }
+    }).start();
+  }
+
   /**
    * Gets the device ID used by Approov to identify the particular device that the SDK is running on. Note
    * that different Approov apps on the same device will return a different ID. Moreover, the ID may be
@@ -544,9 +820,16 @@ public class ApproovServiceNative {
    * @param data is the data to be hashed and set in the token
    * @return ApproovResult to indicate any errors
    */
-  public static ApproovResult setDataHashInToken(String data) {
+  public static synchronized ApproovResult setDataHashInToken(String data) {
+    if (data == null)
+      return new ApproovResult("IllegalArgument: data must not be null", false);
     try {
-      Approov.setDataHashInToken(data);
+      processor.setDataHashInToken(data);
+      if (!data.equals(lastDataHashInToken)) {
+        // any cached tokens hold the previous data hash
+        processor.tokenCache.invalidate();
+        lastDataHashInToken = data;
+      }
       Log.d(TAG, "setDataHashInToken");
     }
     catch (IllegalStateException e) {
@@ -558,6 +841,194 @@ public class ApproovServiceNative {
     return new ApproovResult(null);
   }
 
+  /**
+   * Sets the safety margin before the expiry of an Approov token at which it is no longer reused for
+   * requests to the same host. Tokens are otherwise reused from the cache without asking the SDK again.
+   * The default margin is 10 seconds.
+   *
+   * @param marginSeconds is the margin in seconds before the token expiry
+   */
+  public static void setTokenCacheMargin(long marginSeconds) {
+    Log.d(TAG, "setTokenCacheMargin " + marginSeconds);
+    processor.tokenCache.setMargin(marginSeconds);
+  }
+
+  /**
+   * Sets how the cached Approov tokens of recently used hosts are refreshed in the background, so that requests
+   * do not have to wait for a token fetch once a token expires. A token is refreshed leadSeconds before it would
+   * stop being reused, brought forward by a random jitter of up to jitterSeconds so that the refreshes of different
+   * hosts are spread out, and a host is no longer refreshed once no request has been made to it for idleSeconds.
+   * Refreshing is paused while the app is in the background. The defaults are 20, 10 and 300 seconds respectively,
+   * and a lead of 0 disables background refreshing.
+   *
+   * @param leadSeconds is the number of seconds before a token stops being reused at which it is refreshed
+   * @param jitterSeconds is the maximum number of seconds by which each refresh is randomly brought forward
+   * @param idleSeconds is the number of seconds without a request after which a host is no longer refreshed
+   */
+  public static void setTokenRefresh(long leadSeconds, long jitterSeconds, long idleSeconds) {
+    Log.d(TAG, "setTokenRefresh " + leadSeconds + ", " + jitterSeconds + ", " + idleSeconds);
+    processor.tokenRefresher.setTiming(leadSeconds, jitterSeconds, idleSeconds);
+  }
+
+  /**
+   * Sets the maximum time that a request may spend waiting for the Approov token and secure strings needed to
+   * protect it. Requests are also limited by their connect timeout, if that is shorter. If the limit is reached
+   * then the fetches continue in the background, so that their results are cached, but the request is treated
+   * as for a network failure. It fails with a SocketTimeoutException unless setProceedOnNetworkFail has been
+   * called, in which case it proceeds without the protection. The default of 0 leaves requests limited only by
+   * their connect timeout.
+   *
+   * @param timeoutMillis is the maximum time in milliseconds, or 0 for no limit other than the connect timeout
+   */
+  public static void setFetchTimeout(long timeoutMillis) {
+    Log.d(TAG, "setFetchTimeout " + timeoutMillis);
+    processor.fetchTimeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Sets when the circuit breaker for Approov token fetches opens and how long it stays open. Once threshold
+   * token fetches have failed due to network conditions within windowSeconds, requests needing a new token fail
+   * fast for coolDownSeconds without waiting for a fetch, in the same way as for a network failure. A single
+   * request is then allowed to fetch a token as a probe, which closes the breaker if it reaches the Approov
+   * service. The defaults are 5 failures within 30 seconds and a cool down of 30 seconds.
+   *
+   * @param threshold is the number of network failures that opens the breaker, or 0 if it should never open
+   * @param windowSeconds is the number of seconds within which the network failures must occur
+   * @param coolDownSeconds is the number of seconds for which the breaker stays open before a probe is allowed
+   */
+  public static void setCircuitBreaker(int threshold, long windowSeconds, long coolDownSeconds) {
+    Log.d(TAG, "setCircuitBreaker " + threshold + ", " + windowSeconds + ", " + coolDownSeconds);
+    processor.circuitBreaker.setTiming(threshold, windowSeconds * 1000, coolDownSeconds * 1000);
+  }
+
+  /**
+   * Gets the state of the circuit breaker for Approov token fetches, as a JSON object with the "state", which is
+   * "closed", "open" or "halfOpen", the number of recent network "failures" counted towards opening it, the
+   * "probeInMillis" until a probe is allowed while it is open, and the total number of times it has opened
+   * "opens" and of requests that failed fast "rejections".
+   *
+   * @return ApproovResult with the JSON state
+   */
+  public static ApproovResult getCircuitBreakerState() {
+    return new ApproovResult(processor.circuitBreaker.toJSON());
+  }
+
+  /**
+   * Gets statistics for the Approov token cache, as a JSON object with the number of "hits" for requests
+   * that reused a cached token, the number of "misses" for requests that had to fetch a token, the number of
+   * "unprotectedHits" for requests to hosts already known not to be protected by Approov, each of which avoided
+   * a token fetch, and the number of background "refreshes" of tokens for recently used hosts.
+   *
+   * @return ApproovResult with the JSON statistics
+   */
+  public static ApproovResult getTokenCacheStats() {
+    return new ApproovResult("{\"hits\":" + processor.tokenCache.getHits() + ",\"misses\":" + processor.tokenCache.getMisses() +
+        ",\"unprotectedHits\":" + processor.tokenCache.getUnprotectedHits() + ",\"refreshes\":" + processor.tokenRefresher.getRefreshes() + "}");
+  }
+
+  /**
+   * Sets how long secure strings used for header and query parameter substitutions are cached. A cached
+   * secure string is used without asking the SDK again until it is ttlSeconds old. It may then still be
+   * used for up to a further staleSeconds while it is refreshed in the background. The defaults are
+   * 300 and 3600 seconds respectively.
+   *
+   * @param ttlSeconds is the number of seconds for which a secure string is fresh
+   * @param staleSeconds is the number of seconds after that for which it may be used while being refreshed
+   */
+  public static void setSecureStringCacheTTL(long ttlSeconds, long staleSeconds) {
+    Log.d(TAG, "setSecureStringCacheTTL " + ttlSeconds + ", " + staleSeconds);
+    processor.secureStringCache.setTTL(ttlSeconds, staleSeconds);
+  }
+
+  /**
+   * Gets statistics for the secure string cache, as a JSON object with the number of "hits" for substitutions
+   * that used a fresh cached value, "staleHits" for those that used a stale value while it was refreshed and
+   * "misses" for those that had to wait for a fetch.
+   *
+   * @return ApproovResult with the JSON statistics
+   */
+  public static ApproovResult getSecureStringCacheStats() {
+    return new ApproovResult("{\"hits\":" + processor.secureStringCache.getHits() + ",\"staleHits\":" +
+        processor.secureStringCache.getStaleHits() + ",\"misses\":" + processor.secureStringCache.getMisses() + "}");
+  }
+
+  /**
+   * Gets a snapshot of the latency and outcome metrics for protected requests, so that the time spent adding
+   * Approov protection can be distinguished from the time spent in the backend. This is a JSON object with a
+   * "stages" object giving a latency histogram for each of the "exclusionCheck", "querySubstitution",
+   * "tokenFetch", "headerSubstitution", "pinVerification" and "initializationWait" stages, the last of which
+   * times requests that wait for initializeAsync to complete. Each has the "count", "totalMicros" and
+   * "maxMicros" of the stage, upper bounds on its "p50Micros", "p90Micros" and "p99Micros" percentiles and the
+   * "buckets" counts, where bucket 0 counts durations of less than 1 microsecond and bucket i counts durations of
+   * at least 2^(i-1) and less than 2^i microseconds. A "tokenStatus" object gives the count of each token fetch
+   * status and a "hosts" object gives the same counts for each host. All values are cumulative.
+   *
+   * @return ApproovResult with the JSON metrics
+   */
+  public static ApproovResult getMetrics() {
+    return new ApproovResult(processor.metrics.toJSON());
+  }
+
+  /**
+   * Gets an OkHttpClient that adds Approov protection to its requests, for use by other native plugins that make
+   * their own requests with OkHttp rather than through HttpsURLConnection. Requests made with it have the same
+   * token, secure string substitution and exclusion handling as any other protected request, and their
+   * connections are pinned using the live Approov pins. The client is shared so that its connection pool and
+   * dispatcher are reused, and further customization should use newBuilder() on it so that these are still shared.
+   *
+   * @return OkHttpClient the shared client adding Approov protection
+   */
+  public static OkHttpClient getOkHttpClient() {
+    return processor.getOkHttpClient();
+  }
+
+  /**
+   * Sets the minimum level of the log messages produced while adding Approov protection to requests. Messages
+   * below this level are not built at all, so that no formatting or logging costs are incurred for each request.
+   * The default is "debug", which logs the details of each request, so "error" or "none" should be set to avoid
+   * these costs in production.
+   *
+   * @param level is the minimum level to be logged, which is "debug", "error" or "none"
+   */
+  public static void setLogLevel(String level) {
+    if (level.equals("debug"))
+      ApproovLog.setLevel(ApproovLog.DEBUG);
+    else if (level.equals("error"))
+      ApproovLog.setLevel(ApproovLog.ERROR);
+    else if (level.equals("none"))
+      ApproovLog.setLevel(ApproovLog.NONE);
+    else {
+      Log.e(TAG, "setLogLevel unknown level: " + level);
+      return;
+    }
+    Log.d(TAG, "setLogLevel " + level);
+  }
+
+  /**
+   * Sets the number of trace events that are held in memory for the stages of protected requests, so that
+   * recent activity can be obtained with getTrace. Any existing trace events are discarded. Tracing is disabled
+   * by default.
+   *
+   * @param capacity is the maximum number of events held, which is rounded up to a power of two, or 0 to disable
+   */
+  public static void setTraceCapacity(int capacity) {
+    Log.d(TAG, "setTraceCapacity " + capacity);
+    processor.metrics.trace = (capacity > 0) ? new ApproovTrace(capacity) : null;
+  }
+
+  /**
+   * Gets the trace events held in memory, as a JSON array ordered from the oldest event. Each event is an object
+   * with the "time" in milliseconds since the epoch, the "stage" (as named by getMetrics), the "host", the
+   * "outcome" and the duration in "micros". The outcome is the token fetch status for the "tokenFetch" stage,
+   * "accepted" or "rejected" for "pinVerification", and "failed" for any stage that throws.
+   *
+   * @return ApproovResult with the JSON array of events, which is empty if tracing is disabled
+   */
+  public static ApproovResult getTrace() {
+    ApproovTrace trace = processor.metrics.trace;
+    return new ApproovResult((trace == null) ? "[]" : trace.toJSON());
+  }
+
   /**
    * Helper for fetchToken that must be executed on an instance of ApproovServiceNative.
    *
@@ -609,6 +1080,8 @@ public class ApproovServiceNative {
 
     @Override
     public void approovCallback(Approov.TokenFetchResult result) {
+      if (result.isConfigChanged())
+        processor.configChanged();
       Log.d(TAG, "fetchToken: " + result.getStatus().toString());
       if ((result.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
           (result.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
@@ -651,6 +1124,41 @@ public class ApproovServiceNative {
     }
   }
 
+  /**
+   * Gets the message signatures for a number of messages in a single call. The messages are provided as a JSON
+   * array of strings and the result is a JSON array holding the signature of each message in the same order,
+   * which is null for a message if no signature is available.
+   *
+   * @param messages is the JSON array of the messages to be signed
+   * @return ApproovResult with the JSON array of signatures or any error
+   */
+  public static ApproovResult getMessageSignatures(String messages) {
+    try {
+      JSONArray messagesJSON = new JSONArray(messages);
+      StringBuilder signatures = new StringBuilder("[");
+      for (int i = 0; i < messagesJSON.length(); i++) {
+        if (i > 0)
+          signatures.append(',');
+        String signature = Approov.getMessageSignature(messagesJSON.getString(i));
+        if (signature == null)
+          signatures.append("null");
+        else
+          ApproovMetrics.appendString(signatures, signature);
+      }
+      Log.d(TAG, "getMessageSignatures " + messagesJSON.length());
+      return new ApproovResult(signatures.append(']').toString());
+    }
+    catch (JSONException e) {
+      return new ApproovResult("getMessageSignatures invalid messages: " + e.getMessage(), false);
+    }
+    catch (IllegalStateException e) {
+      return new ApproovResult("IllegalState: " + e.getMessage(), false);
+    }
+    catch (IllegalArgumentException e) {
+      return new ApproovResult("IllegalArgument: " + e.getMessage(), false);
+    }
+  }
+
   /**
    * Helper for fetchSecureString that must be executed on an instance of ApproovServiceNative.
    *
@@ -725,6 +1233,11 @@ public class ApproovServiceNative {
 
     @Override
     public void approovCallback(Approov.TokenFetchResult result) {
+      if (result.isConfigChanged())
+        processor.configChanged();
+      if (type.equals("definition"))
+        // any cached value for the key is no longer valid
+        processor.secureStringCache.invalidate(key);
       Log.d(TAG, "fetchSecureString " + type + " for " + key + ": " + result.getStatus().toString());
       if (result.getStatus() == Approov.TokenFetchStatus.REJECTED)
         // if the request is rejected then we provide a special exception with additional information
@@ -749,6 +1262,95 @@ public class ApproovServiceNative {
     }
   }
 
+  /**
+   * Fetches the secure strings for a number of keys concurrently, providing all of them with a single callback.
+   * The keys are provided as a JSON array of strings and the result is a JSON object mapping each key to its
+   * secure string, which is null if the key is not defined. If any of the fetches fails then an error is
+   * provided instead, in the same way as for fetchSecureString, with a "rejection" taking precedence over a
+   * "network" error. Note that the returned strings should NEVER be cached by your app, you should call this
+   * function when they are needed.
+   *
+   * @param keys is the JSON array of the secure string keys to be looked up
+   * @param callback is an instance of ResultCallback to provide the callback
+   */
+  public static void fetchSecureStrings(String keys, final ResultCallback callback) {
+    List<String> keyList = new ArrayList<>();
+    try {
+      JSONArray keysJSON = new JSONArray(keys);
+      for (int i = 0; i < keysJSON.length(); i++)
+        keyList.add(keysJSON.getString(i));
+    }
+    catch (JSONException e) {
+      callback.result(new ApproovResult("fetchSecureStrings invalid keys: " + e.getMessage(), false));
+      return;
+    }
+    try {
+      processor.fetchSecureStrings(keyList, new ApproovRequestProcessor.SecureStringsCallback() {
+        @Override
+        public void fetched(Map<String, ApproovFetchResult> results) {
+          callback.result(getSecureStringsResult(results));
+        }
+      });
+    }
+    catch (IllegalStateException e) {
+      callback.result(new ApproovResult("fetchSecureStrings IllegalState: " + e.getMessage(), false));
+    }
+    catch (IllegalArgumentException e) {
+      callback.result(new ApproovResult("fetchSecureStrings IllegalArgument: " + e.getMessage(), false));
+    }
+  }
+
+  /**
+   * Gets the overall result of fetching a number of secure strings.
+   *
+   * @param results is the map of each secure string key to the result of its fetch
+   * @return ApproovResult with the JSON object of the secure strings or the most significant error
+   */
+  private static ApproovResult getSecureStringsResult(Map<String, ApproovFetchResult> results) {
+    ApproovResult networkError = null;
+    ApproovResult permanentError = null;
+    StringBuilder secureStrings = new StringBuilder("{");
+    for (Map.Entry<String, ApproovFetchResult> entry: results.entrySet()) {
+      String key = entry.getKey();
+      ApproovFetchResult result = entry.getValue();
+      ApproovFetchStatus status = result.getStatus();
+      Log.d(TAG, "fetchSecureStrings lookup for " + key + ": " + status.toString());
+      if (status == ApproovFetchStatus.REJECTED)
+        // if any request is rejected then we provide a special exception with additional information
+        return new ApproovResult("fetchSecureStrings lookup for " + key + ": " + status.toString() + ": " +
+                result.getARC() + " " + result.getRejectionReasons(),
+                result.getARC(), result.getRejectionReasons());
+      else if ((status == ApproovFetchStatus.NO_NETWORK) ||
+               (status == ApproovFetchStatus.POOR_NETWORK) ||
+               (status == ApproovFetchStatus.MITM_DETECTED)) {
+        // we are unable to get the secure string due to network conditions so the request can
+        // be retried by the user later
+        if (networkError == null)
+          networkError = new ApproovResult("fetchSecureStrings lookup for " + key + ":" + status.toString(), true);
+      }
+      else if ((status != ApproovFetchStatus.SUCCESS) && (status != ApproovFetchStatus.UNKNOWN_KEY)) {
+        // we are unable to get the secure string due to a more permanent error
+        if (permanentError == null)
+          permanentError = new ApproovResult("fetchSecureStrings lookup for " + key + ":" + status.toString(), false);
+      }
+      else {
+        if (secureStrings.length() > 1)
+          secureStrings.append(',');
+        ApproovMetrics.appendString(secureStrings, key);
+        secureStrings.append(':');
+        if (result.getSecureString() == null)
+          secureStrings.append("null");
+        else
+          ApproovMetrics.appendString(secureStrings, result.getSecureString());
+      }
+    }
+    if (networkError != null)
+      return networkError;
+    if (permanentError != null)
+      return permanentError;
+    return new ApproovResult(secureStrings.append('}').toString());
+  }
+
   /**
    * Helper for fetchCustomJWT that must be executed on an instance of ApproovServiceNative.
    *
@@ -800,6 +1402,8 @@ public class ApproovServiceNative {
 
     @Override
     public void approovCallback(Approov.TokenFetchResult result) {
+      if (result.isConfigChanged())
+        processor.configChanged();
       Log.d(TAG, "fetchCustomJWT: " + result.getStatus().toString());
       if (result.getStatus() == Approov.TokenFetchStatus.REJECTED)
         // if the request is rejected then we provide a special exception with additional information
@@ -823,76 +1427,17 @@ public class ApproovServiceNative {
   /**
    * Performs any query parameter substitutions, which may require Approov fetches. This may convert
    * query parameters to map from their original values to a new value using a secure secret fetched
-   * from the Approov cloud. Note that this does not specifically check that the domain being remapped
-   * is added to Approov, so managed trust roots should always be enabled if using a non Approov added
-   * domain to ensure the modified query parameter cannot be intercepted.
+   * from the Approov cloud. Any path templates are also substituted if enabled. Note that this does
+   * not specifically check that the domain being remapped is added to Approov, so managed trust roots
+   * should always be enabled if using a non Approov added domain to ensure the modified query parameter
+   * cannot be intercepted.
    * 
    * @param url is the URL being accessed that may contain query parameters
    * @return any updated URL, or the original if no change was made
    * @throws IOException if there is a problem, including due to an attestation failure
    */
-  public static synchronized URL substituteQueryParams(URL url) throws IOException {
-    // if Approov is not initialized then we don't make a change
-    if (!isInitialized)
-      return url;
-
-    // we are only interested in URLs using the https protocol
-    if (!url.getProtocol().equals("https"))
-      return url;
-
-    // check if the URL matches one of the exclusion regexs and just return if so
-    String urlString = url.toString();
-    Map<String, Pattern> exclusionURLs = getExclusionURLRegexs();
-    for (Pattern pattern: exclusionURLs.values()) {
-      Matcher matcher = pattern.matcher(urlString);
-      if (matcher.find())
-        return url;
-    }
-
-    // perform any query parameter processing
-    URL newURL = null;
-    Map<String, Pattern> subsQueryParams = getSubstitutionQueryParams();
-    for (Map.Entry<String, Pattern> entry: subsQueryParams.entrySet()) {
-        String queryKey = entry.getKey();
-        Pattern pattern = entry.getValue();
-        Matcher matcher = pattern.matcher(urlString);
-        if (matcher.find()) {
-            // we have found an occurrence of the query parameter to be replaced so we look up the existing
-            // value as a key for a secure string
-            String queryValue = matcher.group(1);
-            Approov.TokenFetchResult approovResults = Approov.fetchSecureStringAndWait(queryValue, null);
-            Log.d(TAG, "substituting query parameter: " + queryKey + ", " + approovResults.getStatus().toString());
-            if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS) {
-                // we have a successful lookup so update the URL with the secret value
-                urlString = new StringBuilder(urlString).replace(matcher.start(1),
-                        matcher.end(1), approovResults.getSecureString()).toString();
-                newURL = new URL(urlString);
-            }
-            else if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
-                // if the request is rejected then we provide an exception with the information
-                throw new IOException("Approov query parameter substitution for " + queryKey + ": " +
-                        approovResults.getStatus().toString() + ": " + approovResults.getARC() +
-                        " " + approovResults.getRejectionReasons());
-            else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                     (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                     (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-                // we are unable to get the secure string due to network conditions so the request can
-                // be retried by the user later - unless this is overridden
-                if (!proceedOnNetworkFail)
-                    throw new IOException("Approov query parameter substitution for " + queryKey + ": " +
-                        approovResults.getStatus().toString());
-            }
-            else if (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY)
-                // we have failed to get a secure string with a more serious permanent error
-                throw new IOException("Approov query parameter substitution for " + queryKey + ": " +
-                        approovResults.getStatus().toString());
-        }
-    }
-
-    // return any new URL or just the old one if no changes were made
-    if (newURL != null)
-      return newURL;
-    return url;
+  public static URL substituteQueryParams(URL url) throws IOException {
+    return processor.substituteQueryParams(url);
   }
 
   /**
@@ -908,109 +1453,7 @@ public class ApproovServiceNative {
    * @param connection is the HttpsUrlConnection to which Approov is being added
    * @throws IOException if it is not possible to obtain an Approov token or secure strings
    */
-  public static synchronized void addApproov(HttpsURLConnection connection) throws IOException {
-    // just return if Approov has not been initialized
-    String url = connection.getURL().toString();
-    if (!isInitialized) {
-      Log.d(TAG, "uninitialized forwarded: " + url);
-      return;
-    }
-
-    // requests to localhost are just forwarded
-    String host = connection.getURL().getHost();
-    if (host.equals("localhost")) {
-      Log.d(TAG, "localhost forwarded: " + url);
-      return;
-    }
-
-    // ensure the connection is pinned - this is done even if the URL is excluded in case
-    // the same domain is used for an Approov protected request and the same connection is live
-    connection.setHostnameVerifier(pinningHostnameVerifier);
-
-    // check if the URL matches one of the exclusion regexs and just return if so
-    Map<String, Pattern> exclusionURLs = getExclusionURLRegexs();
-    for (Pattern pattern: exclusionURLs.values()) {
-      Matcher matcher = pattern.matcher(url);
-      if (matcher.find()) {
-        Log.d(TAG, "excluded url: " + url);
-        return;
-      }
-    }
-
-    // update the data hash based on any token binding header
-    if (bindingHeader != null) {
-      String headerValue = connection.getRequestProperty(bindingHeader);
-      if (headerValue != null)
-        Approov.setDataHashInToken(headerValue);
-    }
-
-    // request an Approov token for the domain
-    Approov.TokenFetchResult approovResults = Approov.fetchApproovTokenAndWait(host);
-    Log.d(TAG, "token for " + host + ": " + approovResults.getLoggableToken());
-
-    // log if a configuration update is received and call fetchConfig to clear the update state
-    if (approovResults.isConfigChanged()) {
-      Approov.fetchConfig();
-      Log.d(TAG, "dynamic configuration update received");
-    }
-
-    // check the status of Approov token fetch
-    if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS)
-      // we successfully obtained a token so add it to the header for the request
-      connection.addRequestProperty(approovTokenHeader, approovTokenPrefix + approovResults.getToken());
-    else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-             (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-             (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-      // we are unable to get an Approov token due to network conditions so the request can
-      // be retried by the user later - unless this is overridden
-      if (!proceedOnNetworkFail)
-          throw new IOException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
-    }
-    else if ((approovResults.getStatus() != Approov.TokenFetchStatus.NO_APPROOV_SERVICE) &&
-             (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_URL) &&
-             (approovResults.getStatus() != Approov.TokenFetchStatus.UNPROTECTED_URL))
-      // we have failed to get an Approov token with a more serious permanent error
-      throw new IOException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
-
-    // we only continue additional processing if we had a valid status from Approov, to prevent additional delays
-    // by trying to fetch from Approov again and this also protects against header substitutions in domains not
-    // protected by Approov and therefore potential subject to a MitM
-    if ((approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS) ||
-        (approovResults.getStatus() == Approov.TokenFetchStatus.UNPROTECTED_URL)) {
-      // we now deal with any header substitutions, which may require further fetches but these
-      // should be using cached results
-      Map<String, String> subsHeaders = getSubstitutionHeaders();
-      for (Map.Entry<String, String> entry: subsHeaders.entrySet()) {
-        String header = entry.getKey();
-        String prefix = entry.getValue();
-        String value = connection.getRequestProperty(header);
-        if ((value != null) && value.startsWith(prefix) && (value.length() > prefix.length())) {
-            approovResults = Approov.fetchSecureStringAndWait(value.substring(prefix.length()), null);
-            Log.d(TAG, "substituting header " + header + ": " + approovResults.getStatus().toString());
-            if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS) {
-                // update the header with the actual secret
-                connection.setRequestProperty(header, prefix + approovResults.getSecureString());
-            }
-            else if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
-                // if the request is rejected then we provide the information about the rejection
-                throw new IOException("Approov header substitution for " + header + ": " +
-                        approovResults.getStatus().toString() + ": " + approovResults.getARC() +
-                        " " + approovResults.getRejectionReasons());
-            else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                     (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                     (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-                // we are unable to get the secure string due to network conditions so the request can
-                // be retried by the user later - unless this is overridden
-                if (!proceedOnNetworkFail)
-                    throw new IOException("Approov header substitution for " + header + ": " +
-                        approovResults.getStatus().toString());
-            }
-            else if (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY)
-                // we have failed to get a secure string with a more serious permanent error
-                throw new IOException("Approov header substitution for " + header + ": " +
-                        approovResults.getStatus().toString());
-        }
-      }
-    }
+  public static void addApproov(HttpsURLConnection connection) throws IOException {
+    processor.addApproov(connection);
   }
 }
@@ -27,6 +27,25 @@ export class ApproovService extends ApproovServiceCommon {
             console.log(`ApproovService: ${result.errorMessage}`);
     }
 
+    static async initializeAsync(config: string): Promise<String> {
+        return new Promise<String>((resolve, reject) => {
+            const callbackHandler = new ApproovServiceNative.ResultCallback({
+                result: (result: ApproovResult) => {
+                    if (result.errorType) {
+                        console.log(`ApproovService: ${result.errorMessage}`);
+                        reject({
+                            type: result.errorType,
+                            message: result.errorMessage,
+                        })
+                    }
+                    else
+                        resolve(result.result);
+                }
+            });
+            ApproovServiceNative.initializeAsync(application.android.context, config, callbackHandler);
+        });
+    }
+
     static setProceedOnNetworkFail(): void {
         ApproovServiceNative.setProceedOnNetworkFail();
     }
@@ -43,6 +62,12 @@ export class ApproovService extends ApproovServiceCommon {
         ApproovServiceNative.setBindingHeader(header);
     }
 
+    static setRequestSigning(header: string, signedHeaders: string[]): void {
+        const result = ApproovServiceNative.setRequestSigning(header, JSON.stringify(signedHeaders));
+        if (result.errorType)
+            console.log(`ApproovService: ${result.errorMessage}`);
+    }
+
     static addSubstitutionHeader(header: string, requiredPrefix: string): void {
         ApproovServiceNative.addSubstitutionHeader(header, requiredPrefix);
     }
@@ -59,6 +84,10 @@ export class ApproovService extends ApproovServiceCommon {
         ApproovServiceNative.removeSubstitutionQueryParam(key);
     }
 
+    static setPathTemplateSubstitution(enabled: boolean): void {
+        ApproovServiceNative.setPathTemplateSubstitution(enabled);
+    }
+
     static addExclusionURLRegex(urlRegex: string): void {
         ApproovServiceNative.addExclusionURLRegex(urlRegex);
     }
@@ -67,6 +96,12 @@ export class ApproovService extends ApproovServiceCommon {
         ApproovServiceNative.removeExclusionURLRegex(urlRegex);
     }
 
+    static configure(config: string): void {
+        const result = ApproovServiceNative.configure(config);
+        if (result.errorType)
+            console.log(`ApproovService: ${result.errorMessage}`);
+    }
+
     static prefetch(): void {
         ApproovServiceNative.prefetch();
     }
@@ -91,6 +126,24 @@ export class ApproovService extends ApproovServiceCommon {
         });
     }
 
+    static async warmUp(hosts: string[], secureStrings: string[]): Promise<String> {
+        return new Promise<String>((resolve, reject) => {
+            const callbackHandler = new ApproovServiceNative.ResultCallback({
+                result: (result: ApproovResult) => {
+                    if (result.errorType) {
+                        reject({
+                            type: result.errorType,
+                            message: result.errorMessage,
+                        })
+                    }
+                    else
+                        resolve(result.result);
+                }
+            });
+            ApproovServiceNative.warmUp(JSON.stringify({ hosts: hosts, secureStrings: secureStrings }), callbackHandler);
+        });
+    }
+
     static getDeviceID(): String {
         return ApproovServiceNative.getDeviceID().result;
     }
@@ -120,6 +173,10 @@ export class ApproovService extends ApproovServiceCommon {
     static getMessageSignature(message: string): String {
         return ApproovServiceNative.getMessageSignature(message).result;
     }
+
+    static getMessageSignatures(messages: string[]): String {
+        return ApproovServiceNative.getMessageSignatures(JSON.stringify(messages)).result;
+    }
     
     static async fetchSecureString(key: string, newDef: string): Promise<String> {
         return new Promise<String>((resolve, reject) => {
@@ -141,6 +198,26 @@ export class ApproovService extends ApproovServiceCommon {
         });
     }
 
+    static async fetchSecureStrings(keys: string[]): Promise<String> {
+        return new Promise<String>((resolve, reject) => {
+            const callbackHandler = new ApproovServiceNative.ResultCallback({
+                result: (result: ApproovResult) => {
+                    if (result.errorType) {
+                        reject({
+                            type: result.errorType,
+                            message: result.errorMessage,
+					        rejectionARC: result.rejectionARC,
+					        rejectionReasons: result.rejectionReasons,
+                        })
+                    }
+                    else
+                        resolve(result.result);
+                }
+            });
+            ApproovServiceNative.fetchSecureStrings(JSON.stringify(keys), callbackHandler);
+        });
+    }
+
     static async fetchCustomJWT(payload: string): Promise<String> {
         return new Promise<String>((resolve, reject) => {
             const callbackHandler = new ApproovServiceNative.ResultCallback({
@@ -160,4 +237,52 @@ export class ApproovService extends ApproovServiceCommon {
             ApproovServiceNative.fetchCustomJWT(payload, callbackHandler);
         });
     }
+
+    static setFetchTimeout(timeoutMillis: number): void {
+        ApproovServiceNative.setFetchTimeout(timeoutMillis);
+    }
+
+    static setTokenCacheMargin(marginSeconds: number): void {
+        ApproovServiceNative.setTokenCacheMargin(marginSeconds);
+    }
+
+    static setTokenRefresh(leadSeconds: number, jitterSeconds: number, idleSeconds: number): void {
+        ApproovServiceNative.setTokenRefresh(leadSeconds, jitterSeconds, idleSeconds);
+    }
+
+    static getTokenCacheStats(): String {
+        return ApproovServiceNative.getTokenCacheStats().result;
+    }
+
+    static setSecureStringCacheTTL(ttlSeconds: number, staleSeconds: number): void {
+        ApproovServiceNative.setSecureStringCacheTTL(ttlSeconds, staleSeconds);
+    }
+
+    static getSecureStringCacheStats(): String {
+        return ApproovServiceNative.getSecureStringCacheStats().result;
+    }
+
+    static getMetrics(): String {
+        return ApproovServiceNative.getMetrics().result;
+    }
+
+    static setCircuitBreaker(threshold: number, windowSeconds: number, coolDownSeconds: number): void {
+        ApproovServiceNative.setCircuitBreaker(threshold, windowSeconds, coolDownSeconds);
+    }
+
+    static getCircuitBreakerState(): String {
+        return ApproovServiceNative.getCircuitBreakerState().result;
+    }
+
+    static setLogLevel(level: string): void {
+        ApproovServiceNative.setLogLevel(level);
+    }
+
+    static setTraceCapacity(capacity: number): void {
+        ApproovServiceNative.setTraceCapacity(capacity);
+    }
+
+    static getTrace(): String {
+        return ApproovServiceNative.getTrace().result;
+    }
 }
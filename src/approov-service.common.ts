@@ -20,6 +20,10 @@ export abstract class ApproovServiceCommon {
     throw new Error('Method not overridden');
   }
 
+  static async initializeAsync(config: string): Promise<String> {
+    throw new Error('Method not overridden');
+  }
+
   static setProceedOnNetworkFail(): void {
     throw new Error('Method not overridden');
   }
@@ -36,6 +40,10 @@ export abstract class ApproovServiceCommon {
     throw new Error('Method not overridden');
   }
 
+  static setRequestSigning(header: string, signedHeaders: string[]): void {
+    throw new Error('Method not overridden');
+  }
+
   static addSubstitutionHeader(header: string, requiredPrefix: string): void {
     throw new Error('Method not overridden');
   }
@@ -52,6 +60,10 @@ export abstract class ApproovServiceCommon {
     throw new Error('Method not overridden');
   }
 
+  static setPathTemplateSubstitution(enabled: boolean): void {
+    throw new Error('Method not overridden');
+  }
+
   static addExclusionURLRegex(urlRegex: string): void {
     throw new Error('Method not overridden');
   }
@@ -60,6 +72,10 @@ export abstract class ApproovServiceCommon {
     throw new Error('Method not overridden');
   }
 
+  static configure(config: string): void {
+    throw new Error('Method not overridden');
+  }
+
   static prefetch(): void {
     throw new Error('Method not overridden');
   }
@@ -68,6 +84,10 @@ export abstract class ApproovServiceCommon {
     throw new Error('Method not overridden');
   }
 
+  static async warmUp(hosts: string[], secureStrings: string[]): Promise<String> {
+    throw new Error('Method not overridden');
+  }
+
   static getDeviceID(): String {
     throw new Error('Method not overridden');
   }
@@ -83,12 +103,68 @@ export abstract class ApproovServiceCommon {
   static getMessageSignature(message: string): String {
     throw new Error('Method not overridden');
   }
+
+  static getMessageSignatures(messages: string[]): String {
+    throw new Error('Method not overridden');
+  }
  
   static async fetchSecureString(key: string, newDef: string): Promise<String> {
     throw new Error('Method not overridden');
   }
 
+  static async fetchSecureStrings(keys: string[]): Promise<String> {
+    throw new Error('Method not overridden');
+  }
+
   static async fetchCustomJWT(payload: string): Promise<String> {
     throw new Error('Method not overridden');
   }
+
+  static setFetchTimeout(timeoutMillis: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static setTokenCacheMargin(marginSeconds: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static setTokenRefresh(leadSeconds: number, jitterSeconds: number, idleSeconds: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static getTokenCacheStats(): String {
+    throw new Error('Method not overridden');
+  }
+
+  static setSecureStringCacheTTL(ttlSeconds: number, staleSeconds: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static getSecureStringCacheStats(): String {
+    throw new Error('Method not overridden');
+  }
+
+  static getMetrics(): String {
+    throw new Error('Method not overridden');
+  }
+
+  static setCircuitBreaker(threshold: number, windowSeconds: number, coolDownSeconds: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static getCircuitBreakerState(): String {
+    throw new Error('Method not overridden');
+  }
+
+  static setLogLevel(level: string): void {
+    throw new Error('Method not overridden');
+  }
+
+  static setTraceCapacity(capacity: number): void {
+    throw new Error('Method not overridden');
+  }
+
+  static getTrace(): String {
+    throw new Error('Method not overridden');
+  }
 }
@@ -19,21 +19,40 @@ import { ApproovServiceCommon } from './approov-service.common';
 
 export declare class ApproovService extends ApproovServiceCommon {
   static initialize(config: string): void;
+  static initializeAsync(config: string): Promise<String>;
   static setProceedOnNetworkFail(): void;
   static setTokenHeader(header: string, prefix: string): void;
   static setBindingHeader(header: string): void;
+  static setRequestSigning(header: string, signedHeaders: string[]): void;
   static addSubstitutionHeader(header: string, requiredPrefix: string): void;
   static removeSubstitutionHeader(header: string): void;
   static addSubstitutionQueryParam(key: string): void;
   static removeSubstitutionQueryParam(key: string): void;
+  static setPathTemplateSubstitution(enabled: boolean): void;
   static addExclusionURLRegex(urlRegex: string): void;
   static removeExclusionURLRegex(urlRegex: string): void;
+  static configure(config: string): void;
   static prefetch(): void;
   static precheck(): Promise<void>;
+  static warmUp(hosts: string[], secureStrings: string[]): Promise<String>;
   static getDeviceID(): String;
   static setDataHashInToken(data: string): void;
   static fetchToken(url: string): Promise<String>;
   static getMessageSignature(message: string): String;
+  static getMessageSignatures(messages: string[]): String;
   static fetchSecureString(key: string, newDef: string): Promise<String>;
+  static fetchSecureStrings(keys: string[]): Promise<String>;
   static fetchCustomJWT(payload: string): Promise<String>;
+  static setFetchTimeout(timeoutMillis: number): void;
+  static setTokenCacheMargin(marginSeconds: number): void;
+  static setTokenRefresh(leadSeconds: number, jitterSeconds: number, idleSeconds: number): void;
+  static getTokenCacheStats(): String;
+  static setSecureStringCacheTTL(ttlSeconds: number, staleSeconds: number): void;
+  static getSecureStringCacheStats(): String;
+  static getMetrics(): String;
+  static setCircuitBreaker(threshold: number, windowSeconds: number, coolDownSeconds: number): void;
+  static getCircuitBreakerState(): String;
+  static setLogLevel(level: string): void;
+  static setTraceCapacity(capacity: number): void;
+  static getTrace(): String;
 }
@@ -1,5 +1,11 @@
 /// <reference path="android-declarations.d.ts"/>
 
+declare module okhttp3 {
+	export class OkHttpClient {
+		public static class: java.lang.Class<okhttp3.OkHttpClient>;
+	}
+}
+
 declare module io {
 	export module approov {
 		export module service {
@@ -26,22 +32,42 @@ declare module io {
 					public static setProceedOnNetworkFail(): void;
 					public static prefetch(): void;
 					public static setBindingHeader(param0: string): void;
+					public static setRequestSigning(param0: string, param1: string): io.approov.service.nativescript.ApproovResult;
 					public static addSubstitutionHeader(param0: string, param1: string): void;
 					public static removeSubstitutionHeader(param0: string): void;
 					public static addSubstitutionQueryParam(param0: string): void;
 					public static addExclusionURLRegex(param0: string): void;
 					public static getDeviceID(): io.approov.service.nativescript.ApproovResult;
 					public static initialize(param0: globalAndroid.content.Context, param1: string): io.approov.service.nativescript.ApproovResult;
+					public static initializeAsync(param0: globalAndroid.content.Context, param1: string, param2: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
 					public static removeSubstitutionQueryParam(param0: string): void;
+					public static setPathTemplateSubstitution(param0: boolean): void;
 					public static getMessageSignature(param0: string): io.approov.service.nativescript.ApproovResult;
+					public static getMessageSignatures(param0: string): io.approov.service.nativescript.ApproovResult;
 					public static precheck(param0: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
+					public static warmUp(param0: string, param1: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
 					public static setDataHashInToken(param0: string): io.approov.service.nativescript.ApproovResult;
 					public static removeExclusionURLRegex(param0: string): void;
+					public static configure(param0: string): io.approov.service.nativescript.ApproovResult;
 					public static setTokenHeader(param0: string, param1: string): void;
 					public static fetchSecureString(param0: string, param1: string, param2: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
+					public static fetchSecureStrings(param0: string, param1: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
 					public static setDevKey(param0: string): io.approov.service.nativescript.ApproovResult;
 					public static fetchCustomJWT(param0: string, param1: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
 					public static fetchToken(param0: string, param1: io.approov.service.nativescript.ApproovServiceNative.ResultCallback): void;
+					public static setFetchTimeout(param0: number): void;
+					public static setTokenCacheMargin(param0: number): void;
+					public static setTokenRefresh(param0: number, param1: number, param2: number): void;
+					public static getTokenCacheStats(): io.approov.service.nativescript.ApproovResult;
+					public static setSecureStringCacheTTL(param0: number, param1: number): void;
+					public static getSecureStringCacheStats(): io.approov.service.nativescript.ApproovResult;
+					public static getMetrics(): io.approov.service.nativescript.ApproovResult;
+					public static setCircuitBreaker(param0: number, param1: number, param2: number): void;
+					public static getCircuitBreakerState(): io.approov.service.nativescript.ApproovResult;
+					public static setLogLevel(param0: string): void;
+					public static setTraceCapacity(param0: number): void;
+					public static getOkHttpClient(): okhttp3.OkHttpClient;
+					public static getTrace(): io.approov.service.nativescript.ApproovResult;
 				}
 				export module ApproovServiceNative {
 					export class ResultCallback {